@@ -21,6 +21,7 @@ import com.google.caja.lexer.JsLexer;
 import com.google.caja.lexer.JsTokenQueue;
 import com.google.caja.lexer.Keyword;
 import com.google.caja.lexer.ParseException;
+import com.google.caja.lexer.TextInterner;
 import com.google.caja.lexer.Token;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.AncestorChain;
@@ -150,6 +151,9 @@ public class Linter implements BuildCommand {
       MessageContext mc, MessageQueue mq)
       throws IOException {
     List<LintJob> compUnits = Lists.newArrayList();
+    // The parse trees are kept until all inputs are linted, so share
+    // identifier names between them.
+    TextInterner interner = new TextInterner();
     // Parse each input, and find annotations.
     for (File inp : inputs) {
       CharProducer cp = CharProducer.Factory.fromFile(inp, "UTF-8");
@@ -159,7 +163,8 @@ public class Linter implements BuildCommand {
       mc.addInputSource(src);
       contents.put(src, new FileContent(cp));
 
-      JsTokenQueue tq = new JsTokenQueue(new JsLexer(cp), src);
+      JsTokenQueue tq = new JsTokenQueue(
+          new JsLexer(cp, false, interner), src);
       try {
         if (tq.isEmpty()) { continue; }
         Parser p = new Parser(tq, mq);
@@ -16,19 +16,17 @@ package com.google.caja.demos.playground.server;
 
 import com.google.caja.demos.playground.client.PlaygroundService;
 import com.google.caja.lexer.ExternalReference;
-import com.google.caja.lexer.FetchedData;
 import com.google.caja.lexer.FilePosition;
 import com.google.caja.parser.ParseTreeNode.ReflectiveCtor;
 import com.google.caja.plugin.DataUriFetcher;
+import com.google.caja.plugin.HttpUriFetcher;
 import com.google.caja.plugin.UriFetcher;
 import com.google.caja.plugin.UriFetcher.ChainingUriFetcher;
 import com.google.caja.reporting.BuildInfo;
 import com.google.caja.reporting.MessageLevel;
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -49,22 +47,7 @@ public class GWTCajolingServiceImpl extends RemoteServiceServlet
   public GWTCajolingServiceImpl() {
     this(ChainingUriFetcher.make(
         new DataUriFetcher(),
-        new UriFetcher() {
-          public FetchedData fetch(ExternalReference ref, String mimeType)
-              throws UriFetchException {
-            try {
-              HttpURLConnection conn = (HttpURLConnection)
-                  ref.getUri().toURL().openConnection();
-              // appengine has a caching http proxy; this limits it
-              conn.setRequestProperty("Cache-Control", "max-age=10");
-              return FetchedData.fromConnection(conn);
-            } catch (ClassCastException ex) {
-              throw new UriFetchException(ref, mimeType, ex);
-            } catch (IOException ex) {
-              throw new UriFetchException(ref, mimeType, ex);
-            }
-          }
-        }));
+        new HttpUriFetcher()));
   }
 
   public static String[] getMessageLevels() {
@@ -22,9 +22,17 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import javax.annotation.WillClose;
 
@@ -131,23 +139,40 @@ public abstract class CharProducer implements CharSequence, Cloneable {
      */
     public static CharProducer create(@WillClose Reader r, FilePosition pos)
         throws IOException {
-      int limit = 0;
-      char[] buf = new char[4096];
+      // Read into fixed size chunks, and copy them once into a buffer of the
+      // right size instead of doubling a buffer, which copies the input
+      // repeatedly and needs up to three times its size at the end.
+      List<char[]> chunks = null;
+      int total = 0;
+      char[] chunk = new char[CHUNK_SIZE];
+      int n = 0;
       try {
-        for (int n = 0; (n = r.read(buf, limit, buf.length - limit)) > 0;) {
-          limit += n;
-          if (limit == buf.length) {
-            char[] newBuf = new char[buf.length * 2];
-            System.arraycopy(buf, 0, newBuf, 0, limit);
-            buf = newBuf;
+        for (int k; (k = r.read(chunk, n, chunk.length - n)) > 0;) {
+          n += k;
+          if (n == chunk.length) {
+            if (chunks == null) { chunks = new ArrayList<char[]>(); }
+            chunks.add(chunk);
+            total += n;
+            chunk = new char[CHUNK_SIZE];
+            n = 0;
           }
         }
       } finally {
         r.close();
       }
-      return new CharProducerImpl(buf, limit, pos);
+      if (chunks == null) { return new CharProducerImpl(chunk, n, pos); }
+      char[] buf = new char[total + n];
+      int limit = 0;
+      for (char[] full : chunks) {
+        System.arraycopy(full, 0, buf, limit, full.length);
+        limit += full.length;
+      }
+      System.arraycopy(chunk, 0, buf, limit, n);
+      return new CharProducerImpl(buf, total + n, pos);
     }
 
+    private static final int CHUNK_SIZE = 4096;
+
     public static CharProducer fromFile(File f, String encoding)
         throws IOException {
       return fromFile(f, Charset.forName(encoding));
@@ -157,14 +182,99 @@ public abstract class CharProducer implements CharSequence, Cloneable {
         throws IOException {
       FileInputStream in = new FileInputStream(f);
       try {
-        CharProducer cp = create(
-            new InputStreamReader(in, encoding), new InputSource(f.toURI()));
-        return cp;
+        FileChannel ch = in.getChannel();
+        long size = ch.size();
+        if (size > Integer.MAX_VALUE) {
+          throw new IOException("File too large: " + f);
+        }
+        byte[] bytes = new byte[(int) size];
+        if (size >= MIN_MAPPED_FILE_SIZE) {
+          ch.map(FileChannel.MapMode.READ_ONLY, 0, size).get(bytes);
+        } else {
+          ByteBuffer bb = ByteBuffer.wrap(bytes);
+          while (bb.hasRemaining() && ch.read(bb) >= 0) {}
+        }
+        char[] buf = decode(bytes, encoding);
+        return new CharProducerImpl(
+            buf, buf.length,
+            FilePosition.startOfFile(new InputSource(f.toURI())));
       } finally {
         in.close();
       }
     }
 
+    /** Smaller files are read instead of mapped since mapping has overhead. */
+    private static final int MIN_MAPPED_FILE_SIZE = 1 << 20;
+
+    /**
+     * Decodes bytes into an array of exactly the decoded length.
+     * Malformed and unmappable input is replaced as by an
+     * {@link InputStreamReader}.
+     */
+    private static char[] decode(byte[] bytes, Charset encoding)
+        throws IOException {
+      int nBytes = bytes.length;
+      String name = encoding.name();
+      char[] buf = null;
+      int n = 0;
+      int i = 0;
+      if ("ISO-8859-1".equals(name)) {
+        buf = new char[nBytes];
+        for (; i < nBytes; ++i) { buf[i] = (char) (bytes[i] & 0xff); }
+        return buf;
+      } else if ("US-ASCII".equals(name)) {
+        buf = new char[nBytes];
+        for (int b; i < nBytes && (b = bytes[i]) >= 0; ++i) {
+          buf[i] = (char) b;
+        }
+        n = i;
+        if (i == nBytes) { return buf; }
+      } else if ("UTF-8".equals(name)) {
+        // Decode well-formed UTF-8 here and leave anything else to the decoder
+        // below.
+        Utf8Decoder utf8 = new Utf8Decoder(nBytes);
+        i = utf8.decode(bytes, 0, nBytes);
+        buf = utf8.getChars();
+        n = utf8.getCharCount();
+        if (i == nBytes) { return n == nBytes ? buf : trim(buf, n); }
+      }
+      CharsetDecoder decoder = decoderFor(encoding);
+      if (buf == null) {
+        buf = new char[(int) Math.ceil(nBytes * decoder.maxCharsPerByte())];
+      }
+      CharBuffer chars = CharBuffer.wrap(buf, n, buf.length - n);
+      ByteBuffer in = ByteBuffer.wrap(bytes, i, nBytes - i);
+      CoderResult result = decoder.decode(in, chars, true);
+      if (!result.isUnderflow()) { result.throwException(); }
+      result = decoder.flush(chars);
+      if (!result.isUnderflow()) { result.throwException(); }
+      n = chars.position();
+      return n == buf.length ? buf : trim(buf, n);
+    }
+
+    private static char[] trim(char[] buf, int n) {
+      char[] exact = new char[n];
+      System.arraycopy(buf, 0, exact, 0, n);
+      return exact;
+    }
+
+    /** The last decoder used on each thread, so files can share it. */
+    private static final ThreadLocal<CharsetDecoder> DECODER
+        = new ThreadLocal<CharsetDecoder>();
+
+    private static CharsetDecoder decoderFor(Charset encoding) {
+      CharsetDecoder decoder = DECODER.get();
+      if (decoder == null || !decoder.charset().equals(encoding)) {
+        decoder = encoding.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        DECODER.set(decoder);
+      } else {
+        decoder.reset();
+      }
+      return decoder;
+    }
+
     public static CharProducer fromString(CharSequence s, InputSource src) {
       return fromString(s, FilePosition.startOfFile(src));
     }
@@ -297,6 +407,23 @@ public abstract class CharProducer implements CharSequence, Cloneable {
       return ChainCharProducer.make(srcs);
     }
 
+    /**
+     * A producer of the same characters as p whose
+     * {@link CharProducer#filePositionForOffsets file positions} are only
+     * precise to the line.
+     * A token's position is the start of its line, or for a token that spans
+     * lines, the range from the start of its first line to the start of its
+     * last.  Tokens on the same line share one position, so a lexer does not
+     * create one per token.  Line numbers stay right, so a parser can still
+     * tell when a line break separates two tokens, as JavaScript's semicolon
+     * insertion requires.
+     *
+     * @param p not consumed.
+     */
+    public static CharProducer withLinePositionsOnly(CharProducer p) {
+      return new LinePositionCharProducer(p);
+    }
+
     private Factory() {
       // uninstantiable
     }
@@ -318,6 +445,7 @@ public abstract class CharProducer implements CharSequence, Cloneable {
             this.breaks.lineStartsAt(charInFile + i + 1);
           }
         }
+        this.breaks.makeImmutable();
       }
 
       private CharProducerImpl(CharProducerImpl orig) {
@@ -400,6 +528,60 @@ public abstract class CharProducer implements CharSequence, Cloneable {
   }
 }
 
+final class LinePositionCharProducer extends CharProducer {
+  private final CharProducer p;
+  /** The position of the last single-line token and the line it is on. */
+  private FilePosition linePos;
+  private int lineNo;
+
+  LinePositionCharProducer(CharProducer p) {
+    this(p, p.getOffset());
+  }
+
+  private LinePositionCharProducer(CharProducer p, int offset) {
+    super(p.getBuffer(), p.getLimit());
+    this.p = p;
+    this.consumeTo(offset);
+  }
+
+  @Override
+  public int getCharInFile(int offset) { return p.getCharInFile(offset); }
+
+  @Override
+  public SourceBreaks getSourceBreaks(int offset) {
+    return p.getSourceBreaks(offset);
+  }
+
+  @Override
+  public FilePosition filePositionForOffsets(int start, int end) {
+    SourceBreaks breaks = p.getSourceBreaks(start);
+    int startCharInFile = p.getCharInFile(start);
+    int endCharInFile = p.getCharInFile(end);
+    int startLineNo = breaks.lineAt(startCharInFile);
+    int endLineNo = breaks.lineAt(endCharInFile);
+    if (startLineNo == endLineNo) {
+      if (linePos != null && lineNo == startLineNo
+          && linePos.getBreaks() == breaks) {
+        return linePos;
+      }
+      lineNo = startLineNo;
+      linePos = breaks.toFilePosition(lineStart(breaks, startCharInFile));
+      return linePos;
+    }
+    return breaks.toFilePosition(
+        lineStart(breaks, startCharInFile), lineStart(breaks, endCharInFile));
+  }
+
+  private static int lineStart(SourceBreaks breaks, int charInFile) {
+    return charInFile - breaks.charInLineAt(charInFile) + 1;
+  }
+
+  @Override
+  public CharProducer clone() {
+    return new LinePositionCharProducer(p, getOffset());
+  }
+}
+
 class BufferBackedSequence implements CharSequence {
   private final int start;
   private final int end;
@@ -425,4 +607,7 @@ class BufferBackedSequence implements CharSequence {
     if (start == 0 && end == this.end) { return this; }
     return new BufferBackedSequence(buf, start + this.start, end + this.start);
   }
+
+  @Override
+  public String toString() { return String.valueOf(buf, start, end - start); }
 }
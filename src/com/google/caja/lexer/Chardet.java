@@ -15,6 +15,7 @@
 package com.google.caja.lexer;
 
 import java.io.ByteArrayOutputStream;
+import java.io.CharArrayReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -90,18 +91,48 @@ public final class Chardet {
       charset = UTF1;
       buffered.write(buf, 3, len - 3);
     } else {
+      // Most content is ASCII or UTF-8, which is cheap to check and unlikely
+      // to be valid by accident, so decode as UTF-8 until that fails.
+      Utf8Decoder utf8 = new Utf8Decoder(buf.length);
+      int carry = 0;  // Bytes at the start of buf that begin a sequence.
+      while (true) {
+        int end = carry + len;
+        int decoded = utf8.decode(buf, 0, end);
+        carry = end - decoded;
+        System.arraycopy(buf, decoded, buf, 0, carry);
+        if (carry >= 4) { break; }  // Not UTF-8.
+        if ((len = in.read(buf, carry, buf.length - carry)) <= 0) {
+          if (carry != 0) { break; }  // Truncated.
+          return Pair.pair(
+              (Reader) new CharArrayReader(
+                  utf8.getChars(), 0, utf8.getCharCount()),
+              UTF8);
+        }
+      }
+      // Recover the bytes read so far.  Well-formed UTF-8 round-trips.
+      buffered.write(
+          new String(utf8.getChars(), 0, utf8.getCharCount()).getBytes(UTF8));
+      buffered.write(buf, 0, carry);
+
       // Use jchardet which tries a variety of heuristics to choose an encoding.
       nsDetector det = new nsDetector(nsPSMDetector.ALL);
       // The below is adapted from the main method in HtmlCharsetDetector.
       Observer observer = new Observer();
       det.Init(observer);
-      do {
+      // Start with the bytes read so far.
+      byte[] prefix = buffered.toByteArray();
+      boolean done = false;
+      for (int pos = 0; pos < prefix.length && !done; pos += len) {
+        len = Math.min(buf.length, prefix.length - pos);
+        System.arraycopy(prefix, pos, buf, 0, len);
+        if (isAscii) { isAscii = det.isAscii(buf, len); }
+        if (!isAscii) { done = det.DoIt(buf, len, false); }
+      }
+      while (!done && (len = in.read(buf)) > 0) {
         buffered.write(buf, 0, len);
         if (isAscii) { isAscii = det.isAscii(buf, len); }
-        if (!isAscii) {
-          if (det.DoIt(buf, len, false)) { break; }
-        }
-      } while ((len = in.read(buf)) > 0);
+        if (!isAscii) { done = det.DoIt(buf, len, false); }
+      }
       det.DataEnd();
       charset = observer.charset;
     }
@@ -22,6 +22,8 @@ import com.google.caja.reporting.MessageType;
 import com.google.caja.util.Strings;
 import com.google.common.collect.Lists;
 
+import java.nio.CharBuffer;
+import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
 
@@ -54,8 +56,20 @@ public final class CssLexer implements TokenStream<CssTokenType> {
    */
   public CssLexer(
       CharProducer cp, MessageQueue mq, boolean allowSubstitutions) {
+    this(cp, mq, allowSubstitutions, null);
+  }
+
+  /**
+   * @param allowSubstitutions true iff ${...} style substitutions should be
+   *   allowed as described at {@link CssTokenType#SUBSTITUTION}
+   * @param interner null or a table used to share the text of identifiers
+   *   and punctuation.
+   */
+  public CssLexer(
+      CharProducer cp, MessageQueue mq, boolean allowSubstitutions,
+      TextInterner interner) {
     assert null != cp;
-    this.splitter = new CssSplitter(cp, mq, allowSubstitutions);
+    this.splitter = new CssSplitter(cp, mq, allowSubstitutions, interner);
   }
 
   public boolean hasNext() throws ParseException {
@@ -68,6 +82,67 @@ public final class CssLexer implements TokenStream<CssTokenType> {
     return pending.removeFirst();
   }
 
+  private static final String[] NO_SHARED_TEXTS = new String[0];
+
+  /**
+   * Lexes all of cp into a compact buffer instead of creating a
+   * {@link Token} per token.
+   * The tokens are the same as those a {@code CssLexer} would produce.
+   *
+   * @param allowSubstitutions true iff ${...} style substitutions should be
+   *   allowed as described at {@link CssTokenType#SUBSTITUTION}
+   */
+  public static TokenBuffer<CssTokenType> tokenize(
+      CharProducer cp, MessageQueue mq, boolean allowSubstitutions)
+      throws ParseException {
+    return tokenize(cp, mq, allowSubstitutions, null);
+  }
+
+  /**
+   * @param interner null or a table used to share the text of identifiers
+   *   and punctuation.
+   */
+  public static TokenBuffer<CssTokenType> tokenize(
+      CharProducer cp, MessageQueue mq, boolean allowSubstitutions,
+      TextInterner interner)
+      throws ParseException {
+    TokenBuffer<CssTokenType> tokens = new TokenBuffer<CssTokenType>(
+        CssTokenType.class, cp, NO_SHARED_TEXTS,
+        EnumSet.of(CssTokenType.IDENT, CssTokenType.PUNCTUATION), interner);
+    CssSplitter splitter = new CssSplitter(cp, mq, allowSubstitutions, null);
+    char[] buf = cp.getBuffer();
+    // The index of a "!" or "-" that may be joined with following tokens as
+    // in produce(), or -1.
+    int joinStart = -1;
+    for (CssTokenType type; (type = splitter.split()) != null;) {
+      int start = splitter.getTokenStart(), end = splitter.getTokenEnd();
+      tokens.add(type, start, end);
+      int last = tokens.size() - 1;
+      if (joinStart >= 0) {
+        char joiner = buf[tokens.getStart(joinStart)];
+        if (joiner == '!'
+            && (type == CssTokenType.SPACE || type == CssTokenType.COMMENT)) {
+          continue;
+        }
+        if (type == CssTokenType.IDENT
+            && (joiner == '-'
+                || Strings.eqIgnoreCase(
+                    "important",
+                    decodeCssIdentifier(
+                        CharBuffer.wrap(buf, start, end - start))))) {
+          tokens.join(last - joinStart + 1,
+                      joiner == '-' ? CssTokenType.IDENT
+                      : CssTokenType.DIRECTIVE);
+        }
+        joinStart = -1;
+      } else if (type == CssTokenType.PUNCTUATION && end - start == 1
+                 && (buf[start] == '!' || buf[start] == '-')) {
+        joinStart = last;
+      }
+    }
+    return tokens;
+  }
+
   /**
    * True iff ${...} style substitutions should be
    * allowed as described at {@link CssTokenType#SUBSTITUTION}
@@ -222,18 +297,25 @@ final class CssSplitter implements TokenStream<CssTokenType> {
   private final CharProducer cp;
   private final MessageQueue mq;
   private boolean allowSubstitutions;
+  private final TextInterner interner;
   private Token<CssTokenType> pending;
+  /** The offsets of the token most recently returned by {@link #split}. */
+  private int tokenStart, tokenEnd;
 
   /**
    * @param allowSubstitutions true iff ${...} style substitutions should be
    *   allowed as described at {@link CssTokenType#SUBSTITUTION}
+   * @param interner null or a table used to share the text of identifiers
+   *   and punctuation.
    */
-  CssSplitter(CharProducer cp, MessageQueue mq, boolean allowSubstitutions) {
+  CssSplitter(CharProducer cp, MessageQueue mq, boolean allowSubstitutions,
+              TextInterner interner) {
     assert null != cp;
     // Longest punctuation tokens are <!-- and --> so need LA(3).
     this.cp = cp;
     this.mq = mq;
     this.allowSubstitutions = allowSubstitutions;
+    this.interner = interner;
   }
 
   public boolean hasNext() throws ParseException {
@@ -258,7 +340,36 @@ final class CssSplitter implements TokenStream<CssTokenType> {
 
   private void produce() throws ParseException {
     if (null != pending) { return; }
-    if (cp.isEmpty()) { return; }
+    CssTokenType type = split();
+    if (type == null) { return; }
+    String text;
+    if (interner != null && (type == CssTokenType.IDENT
+                             || type == CssTokenType.PUNCTUATION)) {
+      text = interner.intern(cp.getBuffer(), tokenStart, tokenEnd);
+    } else {
+      text = cp.toString(tokenStart, tokenEnd);
+    }
+    pending = Token.instance(text, type,
+                             cp.filePositionForOffsets(tokenStart, tokenEnd));
+  }
+
+  /** The offset in the producer's buffer of the last token split. */
+  int getTokenStart() { return tokenStart; }
+
+  /** The offset in the producer's buffer past the last token split. */
+  int getTokenEnd() { return tokenEnd; }
+
+  /**
+   * Consumes the next token from the producer without creating a
+   * {@link Token}.
+   * Must not be interleaved with calls to {@link #hasNext} or {@link #next}.
+   *
+   * @return the type of the token which spans
+   *     [{@link #getTokenStart}, {@link #getTokenEnd}), or null at end of
+   *     input.
+   */
+  CssTokenType split() throws ParseException {
+    if (cp.isEmpty()) { return null; }
 
     char[] buf = cp.getBuffer();
     final int start = cp.getOffset();
@@ -527,9 +638,10 @@ final class CssSplitter implements TokenStream<CssTokenType> {
       type = CssTokenType.PUNCTUATION;
     }
     assert end > start;
-    pending = Token.instance(cp.toString(start, end), type,
-                             cp.filePositionForOffsets(start, end));
     cp.consumeTo(end);
+    tokenStart = start;
+    tokenEnd = end;
+    return type;
   }
 
   private static int parseMatch(CharProducer cp, int start, String match) {
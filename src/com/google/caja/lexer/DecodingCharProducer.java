@@ -14,62 +14,106 @@
 
 package com.google.caja.lexer;
 
+import java.util.Arrays;
+
 final class DecodingCharProducer extends CharProducer {
   /**
-   * For each character {@code buf[i]} where offset <= i < limit,
-   * the number of extra characters in HTML entities preceding it.
-   * Because of this definition, it is true for all i where
+   * The deltas as runs: {@code runDeltas[k]} is the delta for every offset
+   * from {@code runStarts[k]} up to the next run start, where the delta for
+   * {@code buf[i]} is the number of extra characters in escape sequences
+   * preceding it.  Because of this definition, it is true for all i where
    * offset <= i < limit, that
    * {@code buf[i]} corresponds to the underlying sequence
-   * {@code underlying[i + deltas[i]:i + deltas[i+1]]}.
+   * {@code underlying[base + i + delta(i):base + i + 1 + delta(i + 1)]}.
+   * Escapes are usually sparse, so there are far fewer runs than characters.
    */
-  private final short[] deltas;
-  private final int poffset;
+  private final int[] runStarts;
+  private final int[] runDeltas;
+  /** The offset in the underlying CharProducer of buf[0] ignoring deltas. */
+  private final int base;
   private final CharProducer p;
 
   static DecodingCharProducer make(Decoder d, CharProducer p) {
     int plimit = p.getLimit(),
-        poffset = p.getOffset(),
-        pavail = plimit - poffset;
+        poffset = p.getOffset();
     char[] pbuf = p.getBuffer();
 
-    short[] deltas = new short[pavail + 1];
-    char[] buf = new char[pavail];
-    int limit = 0;
-    short lastDelta = 0;
-    for (int i = poffset; i < plimit; i = d.end) {
-      d.decode(pbuf, i, plimit);
-      int nCodeUnits = Character.charCount(d.codePoint);
+    // Most inputs contain no escapes, so find the first before allocating.
+    int firstEscape = poffset;
+    while (firstEscape < plimit) {
+      d.decode(pbuf, firstEscape, plimit);
+      int cp = d.codePoint, n = d.end - firstEscape;
+      boolean unchanged = cp < Character.MIN_SUPPLEMENTARY_CODE_POINT
+          ? n == 1 && cp == pbuf[firstEscape]
+          : n == 2 && cp == Character.codePointAt(pbuf, firstEscape, plimit);
+      if (!unchanged) { break; }
+      firstEscape += n;
+    }
+    if (firstEscape == plimit) {
+      // Nothing to decode, so share p's buffer and offsets.
+      DecodingCharProducer view = new DecodingCharProducer(
+          pbuf, plimit, p, NO_DELTAS, NO_DELTAS, 0);
+      view.consume(poffset);
+      return view;
+    }
 
-      deltas[limit] = lastDelta;
-      lastDelta = (short) (deltas[limit] + d.end - i - 1);
-      Character.toChars(d.codePoint, buf, limit);
-      for (int j = limit + 1; j < limit + nCodeUnits; ++j) {
-        deltas[j] = deltas[j - 1];
+    char[] buf = new char[plimit - poffset];
+    int limit = firstEscape - poffset;
+    System.arraycopy(pbuf, poffset, buf, 0, limit);
+    int[] runStarts = new int[8];
+    int[] runDeltas = new int[8];
+    int nRuns = 1;
+    int delta = 0;
+    for (int i = firstEscape; i < plimit; i = d.end) {
+      d.decode(pbuf, i, plimit);
+      if (delta != runDeltas[nRuns - 1]) {
+        if (nRuns == runStarts.length) {
+          runStarts = grow(runStarts);
+          runDeltas = grow(runDeltas);
+        }
+        runStarts[nRuns] = limit;
+        runDeltas[nRuns++] = delta;
       }
-
-      limit += nCodeUnits;
+      delta += d.end - i - 1;
+      limit += Character.toChars(d.codePoint, buf, limit);
     }
-    if (limit != 0) {
-      for (int i = limit; i < pavail + 1; ++i) { deltas[i] = deltas[i - 1]; }
-    }
-    return new DecodingCharProducer(buf, limit, p, deltas, poffset);
+    return new DecodingCharProducer(
+        buf, limit, p, trim(runStarts, nRuns), trim(runDeltas, nRuns),
+        poffset);
+  }
+
+  private static final int[] NO_DELTAS = { 0 };
+
+  private static int[] grow(int[] arr) {
+    int[] newArr = new int[arr.length * 2];
+    System.arraycopy(arr, 0, newArr, 0, arr.length);
+    return newArr;
+  }
+
+  private static int[] trim(int[] arr, int n) {
+    if (n == arr.length) { return arr; }
+    int[] newArr = new int[n];
+    System.arraycopy(arr, 0, newArr, 0, n);
+    return newArr;
   }
 
   private DecodingCharProducer(DecodingCharProducer orig) {
     super(orig.getBuffer(), orig.getLimit());
-    this.deltas = orig.deltas;
-    this.poffset = orig.poffset;
-    this.p = orig;
+    this.runStarts = orig.runStarts;
+    this.runDeltas = orig.runDeltas;
+    this.base = orig.base;
+    this.p = orig.p;
     this.consume(orig.getOffset());
   }
 
   private DecodingCharProducer(
-      char[] buf, int limit, CharProducer p, short[] deltas, int poffset) {
+      char[] buf, int limit, CharProducer p, int[] runStarts, int[] runDeltas,
+      int base) {
     super(buf, limit);
     this.p = p;
-    this.deltas = deltas;
-    this.poffset = poffset;
+    this.runStarts = runStarts;
+    this.runDeltas = runDeltas;
+    this.base = base;
   }
 
   @Override
@@ -89,8 +133,12 @@ final class DecodingCharProducer extends CharProducer {
 
   /** The offset in the underlying CharProducer. */
   public int getUnderlyingOffset(int offset) {
-    int nAvail = deltas.length;
-    return offset - poffset + deltas[offset >= nAvail ? nAvail - 1 : offset];
+    int run = runStarts.length - 1;
+    if (run != 0) {
+      run = Arrays.binarySearch(runStarts, offset);
+      if (run < 0) { run = Math.max(0, ~run - 1); }
+    }
+    return base + offset + runDeltas[run];
   }
 
   static abstract class Decoder {
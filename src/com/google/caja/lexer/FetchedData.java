@@ -16,11 +16,14 @@ package com.google.caja.lexer;
 
 import com.google.caja.SomethingWidgyHappenedError;
 import com.google.caja.util.Charsets;
+import com.google.caja.util.Strings;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.CharArrayReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
@@ -38,8 +41,15 @@ import javax.mail.internet.ParseException;
  * @author jasvir@gmail.com (Jasvir Nagra)
  */
 public abstract class FetchedData {
+  /**
+   * The {@link #getFreshnessLifetime freshness lifetime} of content whose
+   * source did not say how long it may be reused.
+   */
+  public static final long UNKNOWN_FRESHNESS = -1;
+
   protected final String contentType;
   protected final String charSet;
+  private long freshnessLifetime = UNKNOWN_FRESHNESS;
 
   protected FetchedData(String contentType, String charSet) {
     this.contentType = contentType;
@@ -65,6 +75,13 @@ public abstract class FetchedData {
               ? Charsets.UTF_8.name() : charSet), src);
     }
 
+    @Override
+    public Reader getTextualReader() throws UnsupportedEncodingException {
+      return new InputStreamReader(
+          getBinaryContent(),
+          "".equals(charSet) ? Charsets.UTF_8.name() : charSet);
+    }
+
     @Override
     public InputStream getBinaryContent() {
       return new ByteArrayInputStream(content);
@@ -72,6 +89,9 @@ public abstract class FetchedData {
 
     @Override
     public byte[] getByteContent() { return content.clone(); }
+
+    @Override
+    public int getByteLength() { return content.length; }
   }
 
   private static class TextualFetchedData extends FetchedData {
@@ -104,6 +124,21 @@ public abstract class FetchedData {
     return new BinaryFetchedData(content, contentType, charSet, src);
   }
 
+  /**
+   * Like {@link #fromBytes(byte[], String, String, InputSource)} but for
+   * content that is known to be reusable for the given time, e.g. content
+   * read back from a cache.
+   *
+   * @param freshnessLifetime as for {@link #getFreshnessLifetime}.
+   */
+  public static FetchedData fromBytes(
+      byte[] content, String contentType, String charSet, InputSource src,
+      long freshnessLifetime) {
+    FetchedData result = fromBytes(content, contentType, charSet, src);
+    result.freshnessLifetime = freshnessLifetime;
+    return result;
+  }
+
   public static FetchedData fromStream(
       @WillClose InputStream is, String contentType, String charSet,
       InputSource src)
@@ -114,17 +149,32 @@ public abstract class FetchedData {
   public static FetchedData fromConnection(URLConnection connection)
       throws IOException {
     connection.connect();
+    return fromConnection(connection, connection.getInputStream());
+  }
+
+  /**
+   * Like {@link #fromConnection(URLConnection)} but reads the content from the
+   * given stream, e.g. one that undoes the connection's content encoding,
+   * instead of from the connection's own input stream.
+   *
+   * @param connection a connection which has already been connected.
+   */
+  public static FetchedData fromConnection(
+      URLConnection connection, @WillClose InputStream content)
+      throws IOException {
     URI uri;
     try {
       uri = connection.getURL().toURI();
     } catch (URISyntaxException ex) {
       throw new SomethingWidgyHappenedError(ex);
     }
-    return fromBytes(
-        readStream(connection.getInputStream()),
+    FetchedData result = fromBytes(
+        readStream(content),
         connection.getContentType(),
         getCharSet(connection),
         new InputSource(uri));
+    result.freshnessLifetime = getFreshnessLifetime(connection);
+    return result;
   }
 
   public static FetchedData fromCharProducer(
@@ -149,12 +199,28 @@ public abstract class FetchedData {
   public abstract CharProducer getTextualContent()
       throws UnsupportedEncodingException;
 
+  /**
+   * Returns a reader over the decoded content.  Unlike
+   * {@link #getTextualContent} this need not decode all the content up front,
+   * so it is the cheaper way to copy large content elsewhere.
+   */
+  public Reader getTextualReader() throws UnsupportedEncodingException {
+    CharProducer cp = getTextualContent();
+    int offset = cp.getOffset();
+    return new CharArrayReader(cp.getBuffer(), offset, cp.getLimit() - offset);
+  }
+
   public abstract InputStream getBinaryContent()
       throws UnsupportedEncodingException;
 
   public abstract byte[] getByteContent()
       throws UnsupportedEncodingException;
 
+  /** The length of {@link #getByteContent}, without copying it if possible. */
+  public int getByteLength() throws UnsupportedEncodingException {
+    return getByteContent().length;
+  }
+
   /**
    * @return the MIME type of the content.
    */
@@ -168,6 +234,15 @@ public abstract class FetchedData {
    */
   public String getCharSet() { return charSet; }
 
+  /**
+   * @return the number of milliseconds after fetching during which the content
+   * may be reused without going back to the source, as derived from the
+   * {@code Cache-Control} and {@code Expires} headers of an HTTP response.
+   * Zero if the source forbids reuse, or {@link #UNKNOWN_FRESHNESS} if the
+   * source did not say.
+   */
+  public long getFreshnessLifetime() { return freshnessLifetime; }
+
   private static int MAX_RESPONSE_SIZE_BYTES = 1 << 24;  // 16MB
   protected static byte[] readStream(@WillClose InputStream is)
       throws IOException {
@@ -187,6 +262,58 @@ public abstract class FetchedData {
     }
   }
 
+  private static long getFreshnessLifetime(URLConnection conn) {
+    // Cache-Control takes precedence over Expires per RFC 2616 section 14.9.3
+    String cacheControl = conn.getHeaderField("Cache-Control");
+    if (cacheControl != null) {
+      long maxAge = UNKNOWN_FRESHNESS;
+      for (String directive : cacheControl.split(",")) {
+        directive = Strings.lower(directive.trim());
+        // The proxy is a shared cache, so private responses are not reusable.
+        if (directive.startsWith("no-cache") || directive.equals("no-store")
+            || directive.startsWith("private")) {
+          return 0;
+        }
+        if (directive.startsWith("max-age=")) {
+          maxAge = parseDeltaSeconds(directive.substring(8).trim());
+          // Unparseable lifetimes mean already expired.
+          if (maxAge < 0) { return 0; }
+        }
+      }
+      if (maxAge != UNKNOWN_FRESHNESS) { return maxAge; }
+    }
+    if (conn.getHeaderField("Expires") != null) {
+      // Malformed dates, like "0", mean already expired.
+      long expires = conn.getExpiration();
+      if (expires == 0) { return 0; }
+      long date = conn.getDate();
+      if (date == 0) { date = System.currentTimeMillis(); }
+      return Math.max(0, expires - date);
+    }
+    return UNKNOWN_FRESHNESS;
+  }
+
+  /**
+   * Parses the delta-seconds of a Cache-Control directive as millis.  Per
+   * RFC 7234 section 1.2.1 a lifetime too large to represent is as long as
+   * possible instead of overflowing.
+   *
+   * @return the lifetime in millis, or -1 if s is not a non-negative
+   *     integer.
+   */
+  private static long parseDeltaSeconds(String s) {
+    if (s.length() == 0) { return -1; }
+    long seconds = 0;
+    for (int i = 0, n = s.length(); i < n; ++i) {
+      char ch = s.charAt(i);
+      if (ch < '0' || ch > '9') { return -1; }
+      if (seconds < Long.MAX_VALUE / 1000) {
+        seconds = seconds * 10 + (ch - '0');
+      }
+    }
+    return Math.min(seconds, Long.MAX_VALUE / 1000) * 1000;
+  }
+
   private static String getCharSet(URLConnection conn) {
     try {
       String contentType = conn.getContentType();
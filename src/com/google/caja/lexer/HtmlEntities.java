@@ -14,6 +14,7 @@
 
 package com.google.caja.lexer;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -47,13 +48,24 @@ public class HtmlEntities {
       return ((offset + 1L) << 32) | ch;
     }
 
+    // Find the end of the entity while hashing its name as spelled and as
+    // lower-cased, so a named entity can be looked up without a second pass.
     int entityLimit = Math.min(limit, offset + 10);
     int end = -1;
+    int hash = 0, lcaseHash = 0;
+    boolean hasUpper = false;
     for (int i = offset + 1; i < entityLimit; ++i) {
-      if (';' == chars[i]) {
+      char nameChar = chars[i];
+      if (';' == nameChar) {
         end = i;
         break;
       }
+      hash = 31 * hash + nameChar;
+      if ('Z' >= nameChar && nameChar >= 'A') {
+        nameChar |= 32;
+        hasUpper = true;
+      }
+      lcaseHash = 31 * lcaseHash + nameChar;
     }
     if (end < 0 || offset + 2 >= end) {
       return ((offset + 1L) << 32) | '&';
@@ -119,23 +131,9 @@ public class HtmlEntities {
         }
       }
     } else {
-      PunctuationTrie<Integer> t = HtmlEntities.ENTITY_TRIE;
-      for (int i = offset + 1; i < end; ++i) {
-        char nameChar = chars[i];
-        t = t.lookup(nameChar);
-        if (t == null) { break; }
-      }
-      if (t == null) {
-        t = HtmlEntities.ENTITY_TRIE;
-        for (int i = offset + 1; i < end; ++i) {
-          char nameChar = chars[i];
-          if ('Z' >= nameChar && nameChar >= 'A') { nameChar |= 32; }
-          t = t.lookup(nameChar);
-          if (t == null) { break; }
-        }
-      }
-      if (t != null && t.isTerminal()) {
-        codepoint = t.getValue().intValue();
+      codepoint = lookup(hash, chars, offset + 1, end, false);
+      if (codepoint < 0 && hasUpper) {
+        codepoint = lookup(lcaseHash, chars, offset + 1, end, true);
       }
     }
     if (codepoint < 0) {
@@ -147,7 +145,6 @@ public class HtmlEntities {
 
   /** A possible entity name like "amp" or "gt". */
   public static boolean isEntityName(String name) {
-    PunctuationTrie<Integer> t = HtmlEntities.ENTITY_TRIE;
     int n = name.length();
 
     // Treat AMP the same amp, but not Amp.
@@ -162,11 +159,53 @@ public class HtmlEntities {
 
     if (isUcase) { name = Strings.lower(name); }
 
-    for (int i = 0; i < n; ++i) {
-      t = t.lookup(name.charAt(i));
-      if (t == null) { return false; }
+    char[] chars = name.toCharArray();
+    return lookup(hash(chars, 0, n), chars, 0, n, false) >= 0;
+  }
+
+  /*
+   * Named entities are looked up in a perfect hash table built when this
+   * class is loaded.  Each slot holds at most one name, so a lookup hashes
+   * the name, compares it against the one name in its slot, and does no
+   * other probing.
+   */
+
+  /** The length of the longest entity name, and so the width of a slot. */
+  private static final int SLOT_WIDTH;
+  /** Multiplies a name's hash to spread it over the top bits. */
+  private static final int HASH_MULTIPLIER;
+  /** 32 - log2(table size). */
+  private static final int HASH_SHIFT;
+  /** The name in each slot, SLOT_WIDTH chars per slot. */
+  private static final char[] SLOT_NAMES;
+  /** The length of the name in each slot, or 0 if the slot is empty. */
+  private static final byte[] SLOT_NAME_LENGTHS;
+  /** The codepoint of the name in each slot, or -1 if the slot is empty. */
+  private static final int[] SLOT_CODEPOINTS;
+
+  private static int hash(char[] chars, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; ++i) { hash = 31 * hash + chars[i]; }
+    return hash;
+  }
+
+  /**
+   * The codepoint of the entity named by {@code chars[start:end]} or -1.
+   * @param hash the {@link #hash} of the name, lower-cased if lcase.
+   * @param lcase true to match the name as if ASCII upper-case letters were
+   *    lower-case.
+   */
+  private static int lookup(
+      int hash, char[] chars, int start, int end, boolean lcase) {
+    int slot = (hash * HASH_MULTIPLIER) >>> HASH_SHIFT;
+    int n = end - start;
+    if (SLOT_NAME_LENGTHS[slot] != n) { return -1; }
+    for (int i = 0, k = slot * SLOT_WIDTH; i < n; ++i, ++k) {
+      char ch = chars[start + i];
+      if (lcase && 'Z' >= ch && ch >= 'A') { ch |= 32; }
+      if (ch != SLOT_NAMES[k]) { return -1; }
     }
-    return t.isTerminal();
+    return SLOT_CODEPOINTS[slot];
   }
 
   static {
@@ -456,5 +495,66 @@ public class HtmlEntities {
     entities.put("euro", Integer.valueOf('\u20ac'));
 
     ENTITY_TRIE = new PunctuationTrie<Integer>(entities);
+
+    // Find a multiplier that maps each name hash to its own slot.  With a
+    // table at least twice the number of names, one is found in a few tries.
+    // No multiplier separates two names with the same hash, so those are
+    // rejected up front instead of growing the table without bound.
+    int nEntities = entities.size();
+    int[] hashes = new int[nEntities];
+    Map<Integer, String> namesByHash = new HashMap<Integer, String>();
+    int k = 0;
+    for (String name : entities.keySet()) {
+      int h = hash(name.toCharArray(), 0, name.length());
+      String other = namesByHash.put(h, name);
+      if (other != null) {
+        throw new IllegalStateException(
+            "Entities " + other + " and " + name + " have the same hash");
+      }
+      hashes[k++] = h;
+    }
+    int bits = 32 - Integer.numberOfLeadingZeros(nEntities * 2 - 1);
+    int multiplier = 0x9e3779b9;  // Round(2**32 / golden ratio)
+    int shift;
+    search:
+    while (true) {
+      shift = 32 - bits;
+      boolean[] used = new boolean[1 << bits];
+      for (int tries = 0; tries < 1024; ++tries) {
+        Arrays.fill(used, false);
+        boolean collision = false;
+        for (int h : hashes) {
+          int slot = (h * multiplier) >>> shift;
+          if (used[slot]) {
+            collision = true;
+            break;
+          }
+          used[slot] = true;
+        }
+        if (!collision) { break search; }
+        multiplier = multiplier * 0x5deece6d + 0xb;
+        multiplier |= 1;
+      }
+      ++bits;
+    }
+    HASH_MULTIPLIER = multiplier;
+    HASH_SHIFT = shift;
+    int width = 0;
+    for (String name : entities.keySet()) {
+      width = Math.max(width, name.length());
+    }
+    SLOT_WIDTH = width;
+    SLOT_NAMES = new char[width << bits];
+    SLOT_NAME_LENGTHS = new byte[1 << bits];
+    SLOT_CODEPOINTS = new int[1 << bits];
+    Arrays.fill(SLOT_CODEPOINTS, -1);
+    for (Map.Entry<String, Integer> e : entities.entrySet()) {
+      String name = e.getKey();
+      int n = name.length();
+      int slot = (hash(name.toCharArray(), 0, n) * multiplier) >>> shift;
+      name.getChars(0, n, SLOT_NAMES, slot * width);
+      SLOT_NAME_LENGTHS[slot] = (byte) n;
+      SLOT_CODEPOINTS[slot] = e.getValue();
+    }
   }
 }
@@ -17,6 +17,8 @@ package com.google.caja.lexer;
 import com.google.caja.reporting.Message;
 import com.google.caja.reporting.MessageType;
 
+import javax.annotation.Nullable;
+
 /**
  * Splits lines into strings, comments, regular expression literals, and
  * blocks of non-whitespace.
@@ -29,13 +31,24 @@ final class InputElementSplitter extends AbstractTokenStream<JsTokenType> {
    * A trie used to split a chunk of text into punctuation tokens and
    * non-punctuation tokens.
    */
-  private final PunctuationTrie<?> punctuation;
+  private final PunctuationTrie<Punctuation> punctuation;
+  /** Null or a table used to share the text of words that aren't keywords. */
+  private final TextInterner interner;
   /**
-   * The last token that was not a comment token.
-   * This can be used to decide whether to take a particular parsing path
-   * based on token lookbehind, as javascript requires.
+   * The type of the last token that was not a comment token, or null if
+   * there is none.
+   * This and the offsets below can be used to decide whether to take a
+   * particular parsing path based on token lookbehind, as javascript requires.
    */
-  private Token<JsTokenType> lastNonCommentToken;
+  private JsTokenType lastNonCommentType;
+  private Punctuation lastNonCommentPunctuation;
+  private Keyword lastNonCommentKeyword;
+  private int lastNonCommentStart, lastNonCommentEnd;
+  /** The offsets of the token most recently returned by {@link #split}. */
+  private int tokenStart, tokenEnd;
+  /** The punctuation or keyword spelled by that token, if any. */
+  private Punctuation tokenPunctuation;
+  private Keyword tokenKeyword;
 
   /**
    * Whether we are parsing a quasiliteral pattern, as opposed to plain
@@ -43,28 +56,64 @@ final class InputElementSplitter extends AbstractTokenStream<JsTokenType> {
    */
   private final boolean isQuasiliteral;
 
-  public InputElementSplitter(CharProducer p, PunctuationTrie<?> punctuation) {
-    this(p, punctuation, false);
-  }
-
-  public InputElementSplitter(CharProducer p, PunctuationTrie<?> punctuation,
-                              boolean isQuasiliteral) {
+  /**
+   * @param punctuation maps each punctuation string to its
+   *     {@link Punctuation} whose text punctuation tokens share.
+   * @param interner null or a table used to share the text of words.
+   */
+  public InputElementSplitter(
+      CharProducer p, PunctuationTrie<Punctuation> punctuation,
+      boolean isQuasiliteral, TextInterner interner) {
     this.p = p;
     this.punctuation = punctuation;
     this.isQuasiliteral = isQuasiliteral;
+    this.interner = interner;
   }
 
   @Override
-  public Token<JsTokenType> next() throws ParseException {
-    Token<JsTokenType> t = super.next();
-    if (t.type != JsTokenType.COMMENT) {
-      this.lastNonCommentToken = t;
+  protected Token<JsTokenType> produce() throws ParseException {
+    JsTokenType type = split();
+    if (type == null) { return null; }
+    return Token.instance(
+        text(type, tokenStart, tokenEnd), type,
+        p.filePositionForOffsets(tokenStart, tokenEnd));
+  }
+
+  /**
+   * The text of a token, sharing an existing string for punctuation, keywords,
+   * and interned words instead of copying it out of the buffer.
+   */
+  private String text(JsTokenType type, int start, int end) {
+    if (tokenPunctuation != null) { return tokenPunctuation.toString(); }
+    if (tokenKeyword != null) { return tokenKeyword.toString(); }
+    if (type == JsTokenType.WORD && interner != null) {
+      return interner.intern(p.getBuffer(), start, end);
     }
-    return t;
+    return p.toString(start, end);
   }
 
-  @Override
-  protected Token<JsTokenType> produce() throws ParseException {
+  /** The offset in the producer's buffer of the last token split. */
+  int getTokenStart() { return tokenStart; }
+
+  /** The offset in the producer's buffer past the last token split. */
+  int getTokenEnd() { return tokenEnd; }
+
+  /** The punctuation of the last token split if it is punctuation. */
+  @Nullable Punctuation getTokenPunctuation() { return tokenPunctuation; }
+
+  /** The keyword spelled by the last token split if it is a word. */
+  @Nullable Keyword getTokenKeyword() { return tokenKeyword; }
+
+  /**
+   * Consumes the next token from the producer without creating a
+   * {@link Token}.
+   * Must not be interleaved with calls to {@link #hasNext} or {@link #next}.
+   *
+   * @return the type of the token which spans
+   *     [{@link #getTokenStart}, {@link #getTokenEnd}), or null at end of
+   *     input.
+   */
+  JsTokenType split() throws ParseException {
     final char[] buf = p.getBuffer();
     int start = p.getOffset();
     final int limit = p.getLimit();
@@ -142,8 +191,11 @@ final class InputElementSplitter extends AbstractTokenStream<JsTokenType> {
             break;
           default:
             {
-              if (lastNonCommentToken == null
-                  || JsLexer.isRegexp(lastNonCommentToken.text)) {
+              if (lastNonCommentType == null
+                  || JsLexer.isRegexp(
+                      lastNonCommentType, lastNonCommentPunctuation,
+                      lastNonCommentKeyword, buf,
+                      lastNonCommentStart, lastNonCommentEnd)) {
                 boolean closed = false;
                 boolean escaped = false;
                 boolean inCharSet = false;
@@ -242,9 +294,26 @@ final class InputElementSplitter extends AbstractTokenStream<JsTokenType> {
         break;
     }
 
-    FilePosition pos = p.filePositionForOffsets(start, end);
     p.consumeTo(end);
-    return Token.instance(p.toString(start, end), type, pos);
+    Punctuation punc = null;
+    Keyword kw = null;
+    if (type == JsTokenType.PUNCTUATION) {
+      punc = punctuationAt(buf, start, end);
+    } else if (type == JsTokenType.WORD) {
+      kw = JsLexer.keywordAt(buf, start, end);
+    }
+    if (type != JsTokenType.COMMENT) {
+      lastNonCommentType = type;
+      lastNonCommentPunctuation = punc;
+      lastNonCommentKeyword = kw;
+      lastNonCommentStart = start;
+      lastNonCommentEnd = end;
+    }
+    tokenStart = start;
+    tokenEnd = end;
+    tokenPunctuation = punc;
+    tokenKeyword = kw;
+    return type;
   }
 
   static final class ParsedNumber {
@@ -274,36 +343,21 @@ final class InputElementSplitter extends AbstractTokenStream<JsTokenType> {
     return new ParsedNumber(nr.getTokenType(), end);
   }
 
-  private int processPunctuation(int start, int end) {
-    PunctuationTrie<?> t = this.punctuation;
-    // Assumes that for every punctuation string pair (A, B) in t
-    // where A is a strict prefix of B, then for every string C such that
-    // A is a strict prefix of C and C is a strict prefix of B, then
-    // (C is not terminal) -> (B - C) is a prefix in t.
-
-    // This assumption is true for javascript punctuation:
-    // . and ... are the only strings in t with a non-terminal (..) in-between
-    // and ("..." - "..") = "." and "." is a javascript punctuation string.
-
-    // This assumption lets me stick to the one-character lookahead assumption
-    // which allows me to split pessimistically, and rejoin later.
-
-    // There is one another assumption: that every terminal multi-character
-    // punctuation string has a one character prefix that is also a
-    // terminal punctuation string.
-    char[] buf = p.getBuffer();
-    int limit = p.getLimit();
-    for (int i = start; i < end; ++i) {
+  private Punctuation punctuationAt(char[] buf, int start, int end) {
+    PunctuationTrie<Punctuation> t = punctuation;
+    for (int i = start; t != null && i < end; ++i) {
       t = t.lookup(buf[i]);
     }
-    assert t.isTerminal();
-    while (end < limit) {
-      char ch = buf[end];
-      PunctuationTrie<?> t2 = t.lookup(ch);
-      if (null == t2 || !t2.isTerminal()) { break; }
-      ++end;
-      t = t2;
-    }
-    return end;
+    return t != null ? t.getValue() : null;
+  }
+
+  private int processPunctuation(int start, int end) {
+    // The punctuation strings are such that every prefix of the longest match
+    // is itself a punctuation string, so the longest match is also what a
+    // greedy scan with one character of lookahead would produce.
+    int matchEnd = punctuation.longestMatch(
+        p.getBuffer(), start, p.getLimit());
+    assert matchEnd >= end;
+    return matchEnd;
   }
 }
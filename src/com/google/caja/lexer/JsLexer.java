@@ -14,9 +14,14 @@
 
 package com.google.caja.lexer;
 
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.TreeMap;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
+
 /**
  * Tokenizes javascript source.
  *
@@ -25,13 +30,43 @@ import java.util.regex.Pattern;
 public class JsLexer implements TokenStream<JsTokenType> {
   private TokenStream<JsTokenType> ts;
 
-  private static PunctuationTrie<?> JAVASCRIPT_PUNCTUATOR;
+  /** Maps each punctuation string to its {@link Punctuation}. */
+  private static final PunctuationTrie<Punctuation> JAVASCRIPT_PUNCTUATOR;
   static {
-    TreeMap<String, Void> javascriptPunctuation = new TreeMap<String, Void>();
+    TreeMap<String, Punctuation> javascriptPunctuation
+        = new TreeMap<String, Punctuation>();
     for (Punctuation p : Punctuation.values()) {
-      javascriptPunctuation.put(p.toString(), null);
+      javascriptPunctuation.put(p.toString(), p);
     }
-    JAVASCRIPT_PUNCTUATOR = new PunctuationTrie<Void>(javascriptPunctuation);
+    JAVASCRIPT_PUNCTUATOR = new PunctuationTrie<Punctuation>(
+        javascriptPunctuation);
+  }
+
+  /**
+   * The text that punctuation and keyword tokens share in a
+   * {@link TokenBuffer}: each {@link Punctuation} by ordinal, then each
+   * {@link Keyword} by ordinal after {@link #KEYWORD_TEXTS}.
+   */
+  private static final String[] TOKEN_TEXTS;
+  private static final int KEYWORD_TEXTS = Punctuation.values().length;
+  static {
+    Keyword[] keywords = Keyword.values();
+    TOKEN_TEXTS = new String[KEYWORD_TEXTS + keywords.length];
+    for (Punctuation p : Punctuation.values()) {
+      TOKEN_TEXTS[p.ordinal()] = p.toString();
+    }
+    for (Keyword k : keywords) {
+      TOKEN_TEXTS[KEYWORD_TEXTS + k.ordinal()] = k.toString();
+    }
+  }
+
+  private static final PunctuationTrie<Keyword> KEYWORDS;
+  static {
+    TreeMap<String, Keyword> keywords = new TreeMap<String, Keyword>();
+    for (Keyword k : Keyword.values()) {
+      keywords.put(k.toString(), k);
+    }
+    KEYWORDS = new PunctuationTrie<Keyword>(keywords);
   }
 
   public JsLexer(CharProducer producer) {
@@ -39,15 +74,108 @@ public class JsLexer implements TokenStream<JsTokenType> {
   }
 
   public JsLexer(CharProducer producer, boolean isQuasiliteral) {
+    this(producer, isQuasiliteral, null);
+  }
+
+  /**
+   * Punctuation and keyword tokens always share the text of their
+   * {@link Punctuation} and {@link Keyword}.
+   *
+   * @param interner null or a table used to share the text of other words.
+   */
+  public JsLexer(
+      CharProducer producer, boolean isQuasiliteral, TextInterner interner) {
     this.ts = new WordClassifier(
         new InputElementSplitter(producer, JAVASCRIPT_PUNCTUATOR,
-                                 isQuasiliteral));
+                                 isQuasiliteral, interner));
+  }
+
+  /**
+   * Lexes all of producer into a compact buffer instead of creating a
+   * {@link Token} per token.
+   * The tokens are the same as those a {@code JsLexer} would produce.
+   */
+  public static TokenBuffer<JsTokenType> tokenize(CharProducer producer)
+      throws ParseException {
+    return tokenize(producer, false);
+  }
+
+  public static TokenBuffer<JsTokenType> tokenize(
+      CharProducer producer, boolean isQuasiliteral)
+      throws ParseException {
+    return tokenize(producer, isQuasiliteral, null);
+  }
+
+  /**
+   * @param interner null or a table used to share the text of words that
+   *     are not keywords.
+   */
+  public static TokenBuffer<JsTokenType> tokenize(
+      CharProducer producer, boolean isQuasiliteral, TextInterner interner)
+      throws ParseException {
+    TokenBuffer<JsTokenType> tokens = new TokenBuffer<JsTokenType>(
+        JsTokenType.class, producer, TOKEN_TEXTS,
+        EnumSet.of(JsTokenType.WORD), interner);
+    InputElementSplitter splitter = new InputElementSplitter(
+        producer, JAVASCRIPT_PUNCTUATOR, isQuasiliteral, null);
+    char[] buf = producer.getBuffer();
+    for (JsTokenType type; (type = splitter.split()) != null;) {
+      int start = splitter.getTokenStart(), end = splitter.getTokenEnd();
+      int sharedText = -1;
+      if (type == JsTokenType.PUNCTUATION) {
+        Punctuation p = splitter.getTokenPunctuation();
+        if (p != null) { sharedText = p.ordinal(); }
+      } else if (type == JsTokenType.WORD) {
+        Keyword k = splitter.getTokenKeyword();
+        if (k != null) { sharedText = KEYWORD_TEXTS + k.ordinal(); }
+        type = WordClassifier.classifyWord(k, buf, start, end);
+      }
+      tokens.add(type, start, end, sharedText);
+    }
+    return tokens;
   }
 
   public boolean hasNext() throws ParseException { return ts.hasNext(); }
 
   public Token<JsTokenType> next() throws ParseException { return ts.next(); }
 
+  /** The punctuation that may precede a RegExp literal. */
+  private static final EnumSet<Punctuation> PUNCTUATION_BEFORE_REGEXP_LITERAL
+      = EnumSet.noneOf(Punctuation.class);
+  /** The keywords that may precede a RegExp literal. */
+  private static final EnumSet<Keyword> KEYWORD_BEFORE_REGEXP_LITERAL
+      = EnumSet.noneOf(Keyword.class);
+  /** Other words, such as reserved words, that precede a RegExp literal. */
+  private static final String[] WORD_BEFORE_REGEXP_LITERAL;
+  static {
+    String[] validPreceders = new String[] {
+        "!", "!=", "!==", "#", "%", "%=", "&", "&&", "&&=", "&=", "(", "*",
+        "*=", "+", "+=", ",", "-", "-=", ".", "...", "/", "/=", ":", "::", ";",
+        "<", "<<", "<<=", "<=", "=", "==", "===", ">", ">=", ">>", ">>=", ">>>",
+        ">>>=", "?", "[", "^", "^=", "{", "|", "|=", "||", "||=", "~",
+        "abstract", "break", "case", "catch", "class", "const", "continue",
+        "debugger", "default", "delete", "do", "else", "enum", "export",
+        "extends", "final", "finally", "for", "function", "goto", "if",
+        "implements", "import", "in", "instanceof", "native", "new", "package",
+        "return", "static", "switch", "synchronized", "throw", "throws",
+        "transient", "try", "typeof", "var", "void", "volatile", "while",
+        "with",
+    };
+    List<String> words = new ArrayList<String>();
+    for (String preceder : validPreceders) {
+      Punctuation p = Punctuation.fromString(preceder);
+      Keyword k = Keyword.fromString(preceder);
+      if (p != null) {
+        PUNCTUATION_BEFORE_REGEXP_LITERAL.add(p);
+      } else if (k != null) {
+        KEYWORD_BEFORE_REGEXP_LITERAL.add(k);
+      } else {
+        words.add(preceder);
+      }
+    }
+    WORD_BEFORE_REGEXP_LITERAL = words.toArray(new String[words.size()]);
+  }
+
   /**
    * According to
    * <tt>http://www.mozilla.org/js/language/js20/rationale/syntax.html</tt>
@@ -83,46 +211,46 @@ public class JsLexer implements TokenStream<JsTokenType> {
    *       token of an expression statement.
    *   </ol>
    * </blockquote>
+   *
+   * @param type the type of the last token that is not a comment, as
+   *     produced by {@link InputElementSplitter}.
+   * @param p the punctuation of that token if type is PUNCTUATION.
+   * @param k the keyword spelled by that token if it is a word.
+   * @param buf a buffer containing the text of that token in [start, end).
+   *     Only examined for words that are not keywords.
+   * @return true if a slash following that token starts a RegExp literal.
    */
-  private static final Pattern TOKEN_BEFORE_REGEXP_LITERAL_RE;
-  static {
-    StringBuilder sb = new StringBuilder();
-    String[] validPreceders = new String[] {
-        "!", "!=", "!==", "#", "%", "%=", "&", "&&", "&&=", "&=", "(", "*",
-        "*=", "+", "+=", ",", "-", "-=", ".", "...", "/", "/=", ":", "::", ";",
-        "<", "<<", "<<=", "<=", "=", "==", "===", ">", ">=", ">>", ">>=", ">>>",
-        ">>>=", "?", "[", "^", "^=", "{", "|", "|=", "||", "||=", "~",
-        "abstract", "break", "case", "catch", "class", "const", "continue",
-        "debugger", "default", "delete", "do", "else", "enum", "export",
-        "extends", "final", "finally", "for", "function", "goto", "if",
-        "implements", "import", "in", "instanceof", "native", "new", "package",
-        "return", "static", "switch", "synchronized", "throw", "throws",
-        "transient", "try", "typeof", "var", "void", "volatile", "while",
-        "with",
-    };
-    sb.append("^(?:");
-    for (int i = 0; i < validPreceders.length; i++) {
-      if (i != 0) { sb.append('|'); }
-      sb.append("(?:");
-      sb.append(Pattern.quote(validPreceders[i]));
-      sb.append(')');
-    }
-    sb.append(")$");
-    TOKEN_BEFORE_REGEXP_LITERAL_RE = Pattern.compile(sb.toString());
+  static boolean isRegexp(
+      JsTokenType type, @Nullable Punctuation p, @Nullable Keyword k,
+      char[] buf, int start, int end) {
+    switch (type) {
+      case PUNCTUATION:
+        return p != null && PUNCTUATION_BEFORE_REGEXP_LITERAL.contains(p);
+      case WORD: case KEYWORD:
+        if (k != null) { return KEYWORD_BEFORE_REGEXP_LITERAL.contains(k); }
+        int n = end - start;
+        words:
+        for (String word : WORD_BEFORE_REGEXP_LITERAL) {
+          if (word.length() != n) { continue; }
+          for (int i = 0; i < n; ++i) {
+            if (word.charAt(i) != buf[start + i]) { continue words; }
+          }
+          return true;
+        }
+        return false;
+      default:
+        // Strings, numbers and RegExp literals
+        return false;
+    }
   }
 
-  static boolean isRegexp(String previous) {
-    if (TOKEN_BEFORE_REGEXP_LITERAL_RE.matcher(previous).find()) {
-      // There is one case the above doesn't handle.
-      // If the preceding token is a number that ends with a decimal point, the
-      // regex will mistake it as a "." token which is in validPreceders.
-      if (previous.length() >= 2 && previous.endsWith(".")) {
-        char secondToLast = previous.charAt(previous.length() - 2);
-        if (secondToLast >= '0' && secondToLast <= '9') { return false; }
-      }
-      return true;
+  /** The keyword spelled by {@code buf[start:end]} or null. */
+  static Keyword keywordAt(char[] buf, int start, int end) {
+    PunctuationTrie<Keyword> t = KEYWORDS;
+    for (int i = start; t != null && i < end; ++i) {
+      t = t.lookup(buf[i]);
     }
-    return false;
+    return t != null ? t.getValue() : null;
   }
 
   private static Pattern INTEGER_LITERAL_RE = Pattern.compile(
@@ -146,27 +274,7 @@ public class JsLexer implements TokenStream<JsTokenType> {
     public Token<JsTokenType> next() throws ParseException {
       Token<JsTokenType> tok = stream.next();
       if (tok.type == JsTokenType.WORD) {
-        JsTokenType type = JsTokenType.WORD;
-        if (null != Keyword.fromString(tok.text)) {
-          type = JsTokenType.KEYWORD;
-        } else if (0 < tok.text.length()) {
-          char ch = tok.text.charAt(0);
-          if ((ch >= '0' && ch <= '9') || '-' == ch || '+' == ch || '.' == ch) {
-            // Verify tok is a well formed numeric token.
-            if (INTEGER_LITERAL_RE.matcher(tok.text).matches()) {
-              type = JsTokenType.INTEGER;
-            } else {
-              String text = tok.text;
-              try {
-                Double.parseDouble(text);
-                type = JsTokenType.FLOAT;
-              } catch (NumberFormatException ex) {
-                // Not a valid numeric token.  Will be rejected as an identifier
-                // by the parser.
-              }
-            }
-          }
-        }
+        JsTokenType type = classifyWord(tok.text);
         if (JsTokenType.WORD != type) {
           tok = Token.instance(tok.text, type, tok.pos);
         }
@@ -174,6 +282,46 @@ public class JsLexer implements TokenStream<JsTokenType> {
       return tok;
     }
 
+    static JsTokenType classifyWord(String text) {
+      if (null != Keyword.fromString(text)) { return JsTokenType.KEYWORD; }
+      return classifyNumber(text);
+    }
+
+    /**
+     * Like {@link #classifyWord(String)} without allocating for keywords.
+     * @param k the keyword spelled by {@code buf[start:end]} if any.
+     */
+    static JsTokenType classifyWord(
+        @Nullable Keyword k, char[] buf, int start, int end) {
+      if (k != null) { return JsTokenType.KEYWORD; }
+      char ch = buf[start];
+      if ((ch >= '0' && ch <= '9') || '-' == ch || '+' == ch || '.' == ch) {
+        return classifyNumber(String.valueOf(buf, start, end - start));
+      }
+      return JsTokenType.WORD;
+    }
+
+    private static JsTokenType classifyNumber(String text) {
+      if (0 < text.length()) {
+        char ch = text.charAt(0);
+        if ((ch >= '0' && ch <= '9') || '-' == ch || '+' == ch || '.' == ch) {
+          // Verify tok is a well formed numeric token.
+          if (INTEGER_LITERAL_RE.matcher(text).matches()) {
+            return JsTokenType.INTEGER;
+          } else {
+            try {
+              Double.parseDouble(text);
+              return JsTokenType.FLOAT;
+            } catch (NumberFormatException ex) {
+              // Not a valid numeric token.  Will be rejected as an identifier
+              // by the parser.
+            }
+          }
+        }
+      }
+      return JsTokenType.WORD;
+    }
+
   }  // WordClassifier
 
   public static boolean isJsSpace(char ch) {
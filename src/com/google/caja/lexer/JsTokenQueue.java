@@ -27,6 +27,14 @@ public final class JsTokenQueue extends TokenQueue<JsTokenType> {
     this(lexer, file, NO_COMMENT);
   }
 
+  /**
+   * A queue over tokens lexed by {@link JsLexer#tokenize}.
+   * Each token is created as the queue reaches it.
+   */
+  public JsTokenQueue(TokenBuffer<JsTokenType> tokens, InputSource file) {
+    this(tokens.toTokenStream(), file, NO_COMMENT);
+  }
+
   public JsTokenQueue(
       TokenStream<JsTokenType> lexer, InputSource file,
       Criterion<Token<JsTokenType>> filter) {
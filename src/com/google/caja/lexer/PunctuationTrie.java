@@ -30,6 +30,12 @@ import java.util.TreeMap;
 public final class PunctuationTrie<T> {
   private final char[] childMap;
   private final PunctuationTrie<T>[] children;
+  /**
+   * The children for ASCII characters indexed by {@code ch - asciiMin} so
+   * that the common case does not need to search childMap.
+   */
+  private final PunctuationTrie<T>[] asciiChildren;
+  private final char asciiMin;
   private final boolean terminal;
   private final T value;
 
@@ -60,6 +66,8 @@ public final class PunctuationTrie<T> {
       if (start + 1 == end) {  // base case
         this.childMap = ZERO_CHARS;
         this.children = ownedChildArray(ZERO_TRIES);
+        this.asciiChildren = this.children;
+        this.asciiMin = 0;
         return;
       } else {
         ++start;
@@ -96,6 +104,20 @@ public final class PunctuationTrie<T> {
     childMap[childIndex] = lastCh;
     children[childIndex++] = new PunctuationTrie<T>(
         elements, depth + 1, childStart, end);
+
+    int nAscii = 0;
+    while (nAscii < childCount && childMap[nAscii] < 0x80) { ++nAscii; }
+    if (nAscii == 0) {
+      this.asciiMin = 0;
+      this.asciiChildren = ownedChildArray(ZERO_TRIES);
+    } else {
+      this.asciiMin = childMap[0];
+      this.asciiChildren = ownedChildArray(
+          new PunctuationTrie<?>[childMap[nAscii - 1] - asciiMin + 1]);
+      for (int i = 0; i < nAscii; ++i) {
+        asciiChildren[childMap[i] - asciiMin] = children[i];
+      }
+    }
   }
 
   /** Does this node correspond to a complete string in the input set. */
@@ -119,7 +141,10 @@ public final class PunctuationTrie<T> {
    * @return null if no such trie.
    */
   public PunctuationTrie<T> lookup(char ch) {
-    int i = Arrays.binarySearch(childMap, ch);
+    int i = ch - asciiMin;
+    if (i >= 0 && i < asciiChildren.length) { return asciiChildren[i]; }
+    if (ch < 0x80) { return null; }
+    i = Arrays.binarySearch(childMap, ch);
     return i >= 0 ? children[i] : null;
   }
 
@@ -139,7 +164,31 @@ public final class PunctuationTrie<T> {
   }
 
   public boolean contains(char ch) {
-    return Arrays.binarySearch(childMap, ch) >= 0;
+    return lookup(ch) != null;
+  }
+
+  /**
+   * The end of the longest string s such that the string for this trie
+   * appended with s is terminal and s is a prefix of {@code buf[start:end]}.
+   * @return an index in [start, end], or -1 if there is no such s.
+   */
+  public int longestMatch(char[] buf, int start, int end) {
+    int match = terminal ? start : -1;
+    PunctuationTrie<T> t = this;
+    for (int i = start; i < end; ++i) {
+      char ch = buf[i];
+      int j = ch - t.asciiMin;
+      if (j >= 0 && j < t.asciiChildren.length) {
+        t = t.asciiChildren[j];
+      } else if (ch < 0x80) {
+        break;
+      } else {
+        t = t.lookup(ch);
+      }
+      if (t == null) { break; }
+      if (t.terminal) { match = i + 1; }
+    }
+    return match;
   }
 
   private static <T> List<Map.Entry<String, T>> sortedUniqEntries(
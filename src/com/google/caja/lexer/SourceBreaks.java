@@ -19,6 +19,11 @@ import java.io.Serializable;
 /**
  * Encapsulates an {@link InputSource} and the positions of newlines in that
  * source file.
+ * <p>
+ * Line breaks are added while an input is read, and then the breaks are
+ * {@link #makeImmutable made immutable}, which happens at the latest when the
+ * first {@link FilePosition} is created from them.  Once immutable, instances
+ * may be shared between threads.
  *
  * @author mikesamuel@gmail.com
  */
@@ -35,9 +40,9 @@ public final class SourceBreaks implements Serializable {
    * file need never end.
    * There are no zero-length lines.
    */
-  private int[] lineNums = new int[1024];
+  private int[] lineNums = new int[4];
   /** The line-number on which character zero falls. */
-  private int lineNumberZero;
+  private final int lineNumberZero;
 
   public SourceBreaks(InputSource src, int lineNumberZero) {
     this.src = src;
@@ -52,12 +57,19 @@ public final class SourceBreaks implements Serializable {
     return charInFile - lineNums[lineno - 1] + 1;
   }
 
-  private int cachedCharInFile = -1, cachedAnswer = -1;
+  /**
+   * The last lookup done by {@link #lineAt}, packed so that it can be read and
+   * written atomically: the complement of the char in file is in the high
+   * word and the answer in the low word.  Zero, the default, caches nothing
+   * that is ever looked up.
+   */
+  private transient volatile long cachedLookup;
+
   int lineAt(int charInFile) {
-    if (cachedCharInFile == charInFile) {
-      return cachedAnswer + lineNumberZero;
+    long cached = cachedLookup;
+    if ((int) (cached >>> 32) == ~charInFile) {
+      return (int) cached + lineNumberZero;
     }
-    cachedCharInFile = charInFile;
 
     int lineNum = boundedBinarySearch(lineNums, charInFile, nLines);
     if (lineNum < 0) {
@@ -66,7 +78,8 @@ public final class SourceBreaks implements Serializable {
       ++lineNum;
     }
 
-    return (cachedAnswer = lineNum) + lineNumberZero;
+    cachedLookup = (((long) ~charInFile) << 32) | (lineNum & 0xffffffffL);
+    return lineNum + lineNumberZero;
   }
 
   public FilePosition toFilePosition(int charInFile) {
@@ -93,15 +106,22 @@ public final class SourceBreaks implements Serializable {
     // TODO(jasvir): Issue 1502
     //assert nLines == 0 || charInFile > lineNums[nLines - 1];
     if (nLines == lineNums.length) {
-      int[] newLineNums = new int[nLines * 2];
+      int[] newLineNums = new int[Math.max(4, nLines * 2)];
       System.arraycopy(lineNums, 0, newLineNums, 0, nLines);
       lineNums = newLineNums;
     }
     lineNums[nLines++] = charInFile;
-    cachedCharInFile = -1;
+    cachedLookup = 0;
   }
 
+  /** Prevents further changes and releases any unused line table space. */
   public void makeImmutable() {
+    if (immutable) { return; }
+    if (nLines != lineNums.length) {
+      int[] trimmed = new int[nLines];
+      System.arraycopy(lineNums, 0, trimmed, 0, nLines);
+      lineNums = trimmed;
+    }
     this.immutable = true;
   }
 
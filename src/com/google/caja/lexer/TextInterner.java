@@ -0,0 +1,70 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lexer;
+
+/**
+ * A bounded table of token text that lets the lexers share one String between
+ * all the occurrences of an identifier, so that a parse tree that is kept
+ * around does not hold a copy of each name per use.
+ * <p>
+ * The table is direct mapped: a text that hashes to a slot holding a different
+ * string replaces it.  So the table never grows past its capacity, and a text
+ * that is evicted is simply copied again the next time it is seen.
+ * <p>
+ * This class is not thread-safe.  Use one instance per compilation.
+ *
+ * @see JsLexer#JsLexer(CharProducer, boolean, TextInterner)
+ * @see CssLexer#CssLexer(CharProducer, com.google.caja.reporting.MessageQueue,
+ *     boolean, TextInterner)
+ */
+public final class TextInterner {
+  private final String[] table;
+  private final int mask;
+
+  public TextInterner() { this(4096); }
+
+  /**
+   * @param capacity the minimum number of slots.  It is rounded up to a power
+   *     of two, which is the maximum number of strings held.
+   */
+  public TextInterner(int capacity) {
+    if (capacity <= 0) { throw new IllegalArgumentException("" + capacity); }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) { size <<= 1; }
+    this.table = new String[size];
+    this.mask = size - 1;
+  }
+
+  /**
+   * A string containing {@code buf[start:end]}.
+   * Only allocates if the table does not already hold one.
+   */
+  public String intern(char[] buf, int start, int end) {
+    int n = end - start;
+    int h = 0;
+    for (int i = start; i < end; ++i) { h = 31 * h + buf[i]; }
+    h ^= (h >>> 16);
+    int slot = h & mask;
+    String s = table[slot];
+    if (s != null && s.length() == n) {
+      int i = 0;
+      while (i < n && s.charAt(i) == buf[start + i]) { ++i; }
+      if (i == n) { return s; }
+    }
+    s = String.valueOf(buf, start, n);
+    table[slot] = s;
+    return s;
+  }
+}
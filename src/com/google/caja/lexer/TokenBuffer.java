@@ -0,0 +1,188 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lexer;
+
+import java.util.EnumSet;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nullable;
+
+/**
+ * A compact list of tokens that stores each token as a type and a range of
+ * offsets into the buffer of the {@link CharProducer} that was lexed.
+ * <p>
+ * Unlike a {@link TokenStream}, lexing into a token buffer does not allocate
+ * a {@link Token}, a {@code String}, or a {@link FilePosition} per token.
+ * Those are created on demand by {@link #getToken}, {@link #getText} and
+ * {@link #getFilePosition}.
+ * Tokens whose text the lexer shares, such as keywords, share it here too.
+ *
+ * @see JsLexer#tokenize
+ * @see CssLexer#tokenize
+ */
+public final class TokenBuffer<T extends Enum<T> & TokenType> {
+  private final CharProducer cp;
+  private final T[] types;
+  /** Texts that tokens may share instead of copying out of the buffer. */
+  private final String[] sharedTexts;
+  /** The types of tokens whose text is interned if there is an interner. */
+  private final EnumSet<T> internedTypes;
+  private final TextInterner interner;
+  /**
+   * The ordinal of each token's type in the low 16 bits, and one more than
+   * the index of its shared text, or zero, in the high bits.
+   */
+  private int[] kinds;
+  private int[] starts;
+  private int[] ends;
+  private int size;
+
+  /**
+   * @param cp the producer whose buffer the token offsets index into.
+   *     Consuming characters from it does not invalidate the offsets.
+   * @param sharedTexts the texts that tokens added with a shared text index
+   *     use.
+   * @param internedTypes the types of tokens whose text is interned.
+   * @param interner null or a table used to share the text of tokens of
+   *     internedTypes.
+   */
+  TokenBuffer(Class<T> typeClass, CharProducer cp, String[] sharedTexts,
+              EnumSet<T> internedTypes, @Nullable TextInterner interner) {
+    this.cp = cp;
+    this.types = typeClass.getEnumConstants();
+    this.sharedTexts = sharedTexts;
+    this.internedTypes = internedTypes;
+    this.interner = interner;
+    // Tokens average several characters.
+    int capacity = Math.max(16, (cp.getLimit() - cp.getOffset()) >> 3);
+    this.kinds = new int[capacity];
+    this.starts = new int[capacity];
+    this.ends = new int[capacity];
+  }
+
+  /** Appends a token spanning {@code getBuffer()[start:end]}. */
+  void add(T type, int start, int end) {
+    add(type, start, end, -1);
+  }
+
+  /**
+   * Appends a token spanning {@code getBuffer()[start:end]}.
+   * @param sharedText the index in sharedTexts of the token's text, or -1 if
+   *     it has none.
+   */
+  void add(T type, int start, int end, int sharedText) {
+    if (size == kinds.length) {
+      int capacity = size * 2;
+      kinds = grow(kinds, capacity);
+      starts = grow(starts, capacity);
+      ends = grow(ends, capacity);
+    }
+    kinds[size] = type.ordinal() | ((sharedText + 1) << 16);
+    starts[size] = start;
+    ends[size] = end;
+    ++size;
+  }
+
+  /**
+   * Replaces the last n tokens with one of the given type.
+   * Tokens are contiguous, so the new token spans all n.
+   */
+  void join(int n, T type) {
+    int first = size - n;
+    kinds[first] = type.ordinal();
+    ends[first] = ends[size - 1];
+    size = first + 1;
+  }
+
+  private static int[] grow(int[] arr, int capacity) {
+    int[] newArr = new int[capacity];
+    System.arraycopy(arr, 0, newArr, 0, arr.length);
+    return newArr;
+  }
+
+  /** The count of tokens. */
+  public int size() { return size; }
+
+  public T getType(int i) { return types[kinds[checkIndex(i)] & 0xffff]; }
+
+  /** The offset in {@link #getBuffer} of the first character of token i. */
+  public int getStart(int i) { return starts[checkIndex(i)]; }
+
+  /** The offset in {@link #getBuffer} past the last character of token i. */
+  public int getEnd(int i) { return ends[checkIndex(i)]; }
+
+  /** The buffer that token offsets index into.  Should not be modified. */
+  public char[] getBuffer() { return cp.getBuffer(); }
+
+  /**
+   * The text of token i.  This is the text the lexer shares for tokens like
+   * keywords, an interned string, or else a new string.
+   */
+  public String getText(int i) {
+    int kind = kinds[checkIndex(i)];
+    int sharedText = (kind >>> 16) - 1;
+    if (sharedText >= 0) { return sharedTexts[sharedText]; }
+    if (interner != null && internedTypes.contains(types[kind & 0xffff])) {
+      return interner.intern(cp.getBuffer(), starts[i], ends[i]);
+    }
+    return cp.toString(starts[i], ends[i]);
+  }
+
+  /** True iff the text of token i is s.  Does not allocate. */
+  public boolean textEquals(int i, CharSequence s) {
+    checkIndex(i);
+    int start = starts[i], n = ends[i] - start;
+    if (n != s.length()) { return false; }
+    char[] buf = cp.getBuffer();
+    for (int j = 0; j < n; ++j) {
+      if (buf[start + j] != s.charAt(j)) { return false; }
+    }
+    return true;
+  }
+
+  public FilePosition getFilePosition(int i) {
+    checkIndex(i);
+    return cp.filePositionForOffsets(starts[i], ends[i]);
+  }
+
+  /** A new token equivalent to the one a {@link TokenStream} would produce. */
+  public Token<T> getToken(int i) {
+    return Token.instance(
+        getText(i), getType(i),
+        cp.filePositionForOffsets(starts[i], ends[i]));
+  }
+
+  /**
+   * A stream over the tokens in this buffer that creates each token as it is
+   * fetched, e.g. for use with a {@link TokenQueue}.
+   */
+  public TokenStream<T> toTokenStream() {
+    return new TokenStream<T>() {
+      private int i = 0;
+
+      public boolean hasNext() { return i < size; }
+
+      public Token<T> next() {
+        if (i >= size) { throw new NoSuchElementException(); }
+        return getToken(i++);
+      }
+    };
+  }
+
+  private int checkIndex(int i) {
+    if (i < 0 || i >= size) { throw new IndexOutOfBoundsException("" + i); }
+    return i;
+  }
+}
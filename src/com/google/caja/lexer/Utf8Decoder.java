@@ -0,0 +1,97 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lexer;
+
+/**
+ * Decodes well-formed UTF-8 into a growing char buffer, stopping at the first
+ * sequence that is ill-formed, so that a caller can tell whether bytes are
+ * UTF-8 and decode them in the same pass.
+ * <p>
+ * Overlong encodings and encoded surrogates are treated as ill-formed.
+ */
+final class Utf8Decoder {
+  private char[] chars;
+  private int nChars;
+
+  /** @param capacity the number of chars expected. */
+  Utf8Decoder(int capacity) {
+    this.chars = new char[capacity];
+  }
+
+  /** The decoded chars in [0, {@link #getCharCount}).  Not a copy. */
+  char[] getChars() { return chars; }
+
+  int getCharCount() { return nChars; }
+
+  /**
+   * Appends the chars for the longest prefix of {@code bytes[start:end]} that
+   * is well-formed UTF-8.
+   * @return the index past the last byte decoded.  If less than end, then
+   *    it is the start of a sequence that is ill-formed or truncated by end.
+   *    Since no sequence is longer than 4 bytes, it is ill-formed if there are
+   *    at least 4 bytes left.
+   */
+  int decode(byte[] bytes, int start, int end) {
+    // No sequence decodes to more chars than it has bytes.
+    if (chars.length - nChars < end - start) {
+      char[] newChars = new char[
+          Math.max(chars.length * 2, nChars + end - start)];
+      System.arraycopy(chars, 0, newChars, 0, nChars);
+      chars = newChars;
+    }
+    char[] chars = this.chars;
+    int n = nChars;
+    int i = start;
+    while (i < end) {
+      // Copy runs of ASCII in a tight loop.
+      int b0;
+      while ((b0 = bytes[i]) >= 0) {
+        chars[n++] = (char) b0;
+        if (++i == end) { break; }
+      }
+      if (b0 >= 0) { break; }
+      b0 &= 0xff;
+      int b1 = i + 1 < end ? bytes[i + 1] & 0xff : -1;
+      if ((b1 & 0xc0) != 0x80) { break; }
+      if (b0 >= 0xc2 && b0 <= 0xdf) {
+        chars[n++] = (char) (((b0 & 0x1f) << 6) | (b1 & 0x3f));
+        i += 2;
+        continue;
+      }
+      int b2 = i + 2 < end ? bytes[i + 2] & 0xff : -1;
+      if ((b2 & 0xc0) != 0x80) { break; }
+      if (b0 >= 0xe0 && b0 <= 0xef) {
+        if ((b0 == 0xe0 && b1 < 0xa0) || (b0 == 0xed && b1 > 0x9f)) {
+          break;  // Overlong or a surrogate.
+        }
+        chars[n++] = (char) (
+            ((b0 & 0xf) << 12) | ((b1 & 0x3f) << 6) | (b2 & 0x3f));
+        i += 3;
+        continue;
+      }
+      int b3 = i + 3 < end ? bytes[i + 3] & 0xff : -1;
+      if ((b3 & 0xc0) != 0x80 || b0 < 0xf0 || b0 > 0xf4
+          || (b0 == 0xf0 && b1 < 0x90) || (b0 == 0xf4 && b1 > 0x8f)) {
+        break;
+      }
+      int codePoint = ((b0 & 0x7) << 18) | ((b1 & 0x3f) << 12)
+          | ((b2 & 0x3f) << 6) | (b3 & 0x3f);
+      n += Character.toChars(codePoint, chars, n);
+      i += 4;
+    }
+    nChars = n;
+    return i;
+  }
+}
@@ -169,6 +169,10 @@ public abstract class AbstractParseTreeNode implements MutableParseTreeNode,
     children.getMutableFacet().add(i, child);
   }
 
+  /**
+   * Must be called before any change other than an append so that
+   * traversals can tell whether a child was removed.  See {@link Frame}.
+   */
   private void copyOnWrite() {
     children = new ChildNodes<ParseTreeNode>(children);
   }
@@ -281,72 +285,86 @@ public abstract class AbstractParseTreeNode implements MutableParseTreeNode,
     return sb.toString();
   }
 
-  private enum TraversalType { PREORDER, POSTORDER; }
-
-  private boolean visitChildren(
-       Visitor v, AncestorChain<?> ancestors, TraversalType traversalType) {
-    if (this.children.getImmutableFacet().isEmpty()) { return true; }
+  /**
+   * A node on the explicit stack of an {@link #acceptPreOrder} or
+   * {@link #acceptPostOrder} traversal, and how far through its children the
+   * traversal has got.
+   * <p>
+   * Mutations that insert, replace or remove children copy the child list
+   * before changing it, and appends never remove a child.  So while a node's
+   * child list is the same instance that the traversal is iterating over, no
+   * child has been removed and none of the bookkeeping below needs to search
+   * the list.  Only after a mutation does it search, once, to find its place
+   * again, which costs no more than the copy that the mutation made.
+   */
+  private static final class Frame {
+    final AbstractParseTreeNode node;
+    final AncestorChain<?> ancestors;
+    /** The child list that {@link #index} indexes into. */
+    private ChildNodes<ParseTreeNode> childrenCache;
+    /** The index in childrenCache of the next child to visit. */
+    private int index;
 
-    boolean result = true;
-    // This loop is complicated because it needs to survive mutations to the
-    // child list.
-    ChildNodes<ParseTreeNode> childrenCache = this.children;
+    Frame(AbstractParseTreeNode node, AncestorChain<?> ancestors) {
+      this.node = node;
+      this.ancestors = ancestors;
+      this.childrenCache = node.children;
+    }
 
-    ParseTreeNode next = childrenCache.getImmutableFacet().get(0);
-    childLoop:
-    for (int i = 0; i < childrenCache.getImmutableFacet().size(); ++i) {
-      if (childrenCache != this.children) {
+    /**
+     * The next child to visit, or null if there are no more, picking up where
+     * the traversal left off if a visitor has mutated the child list.
+     */
+    ParseTreeNode nextChild() {
+      List<ParseTreeNode> cached = childrenCache.getImmutableFacet();
+      int i = index;
+      if (i >= cached.size()) { return null; }
+      if (childrenCache != node.children) {
+        List<ParseTreeNode> current = node.children.getImmutableFacet();
         // Used lastIndexOf so we make progress in case a child is on the
         // children list multiple times.
-        int j = this.children.getImmutableFacet().lastIndexOf(next);
+        int j = current.lastIndexOf(cached.get(i));
         if (j < 0) {
           // Try to find the next one to use by looking at children we've
           // already visited.
           for (int k = i; --k >= 0;) {
-            j = this.children.getImmutableFacet().lastIndexOf(
-                childrenCache.getImmutableFacet().get(k));
+            j = current.lastIndexOf(cached.get(k));
             if (j >= 0) { break; }
           }
-          if (j >= 0 && j + 1 < this.children.getImmutableFacet().size()) {
-            ++j;  // Add one since we don't want to reprocess childrenCache[k].
+          if (j >= 0 && j + 1 < current.size()) {
+            ++j;  // Add one since we don't want to reprocess cached[k].
           } else {
             // Check if children from the cached list that we haven't
             // processed yet are still in the new list.
-            for (int k = i + 1; k < childrenCache.getImmutableFacet().size();
-                 ++k) {
-              j = this.children.getImmutableFacet().lastIndexOf(
-                  childrenCache.getImmutableFacet().get(k));
+            for (int k = i + 1; k < cached.size(); ++k) {
+              j = current.lastIndexOf(cached.get(k));
               if (j >= 0) { break; }
             }
             // No children left to process.
-            if (j < 0) { break childLoop; }
+            if (j < 0) { return null; }
           }
         }
         i = j;
-        childrenCache = this.children;
-        next = childrenCache.getImmutableFacet().get(i);
+        childrenCache = node.children;
+        cached = current;
       }
+      index = i + 1;
+      return cached.get(i);
+    }
 
-      ParseTreeNode child = next;
-      next = (i + 1 < childrenCache.getImmutableFacet().size() ?
-          childrenCache.getImmutableFacet().get(i + 1) : null);
-      switch (traversalType) {
-        case PREORDER:
-          child.acceptPreOrder(v, ancestors);
-          break;
-        case POSTORDER:
-          if (!child.acceptPostOrder(v, ancestors)) {
-            result = false;
-            break childLoop;
-          }
-          break;
-      }
+    /**
+     * True if child, which was returned by the last call to
+     * {@link #nextChild}, is still a child of this frame's node.
+     */
+    boolean stillHasChild(ParseTreeNode child) {
+      return childrenCache == node.children
+          || node.children.getImmutableFacet().contains(child);
     }
-    return result;
   }
 
-  // This contains() check makes traversal O(n**2) where n is the
-  // maximal number of children of any node in the tree.
+  // This contains() check is O(n) in the number of siblings, so is only used
+  // for the node at which a traversal starts.  Below that, Frame tracks
+  // whether a child has been removed.
   private boolean stillInParent(AncestorChain<?> ancestors) {
     // If ancestors is empty, then it can't have been removed from its parent
     // by the Visitor unless the visitor has some handle to the parent through
@@ -362,16 +380,57 @@ public abstract class AbstractParseTreeNode implements MutableParseTreeNode,
     // another following, or deletes the node or a following node.
     if (!stillInParent(ancestors.parent)) { return true; }
 
-    // Not removed or replaced, so recurse to children.
-    visitChildren(v, ancestors, TraversalType.PREORDER);
+    // Not removed or replaced, so visit descendants.  This uses an explicit
+    // stack instead of recursing so that deep trees do not overflow the
+    // Java stack.
+    List<Frame> stack = new ArrayList<Frame>();
+    stack.add(new Frame(this, ancestors));
+    while (!stack.isEmpty()) {
+      Frame top = stack.get(stack.size() - 1);
+      ParseTreeNode child = top.nextChild();
+      if (child == null) {
+        stack.remove(stack.size() - 1);
+      } else if (!(child instanceof AbstractParseTreeNode)) {
+        child.acceptPreOrder(v, top.ancestors);
+      } else {
+        AncestorChain<?> chain = AncestorChain.instanceOfChild(
+            top.ancestors, child);
+        // A false return only prunes the child's descendants.
+        if (v.visit(chain) && top.stillHasChild(child)) {
+          stack.add(new Frame((AbstractParseTreeNode) child, chain));
+        }
+      }
+    }
     return true;
   }
 
   public final boolean acceptPostOrder(Visitor v, AncestorChain<?> ancestors) {
     ancestors = AncestorChain.instance(ancestors, this);
-    // Descend into this node's children.
-    if (!visitChildren(v, ancestors, TraversalType.POSTORDER)) {
-      return false;
+    // Descend into this node's descendants, using an explicit stack as above.
+    List<Frame> stack = new ArrayList<Frame>();
+    stack.add(new Frame(this, ancestors));
+    while (true) {
+      Frame top = stack.get(stack.size() - 1);
+      ParseTreeNode child = top.nextChild();
+      if (child != null) {
+        if (child instanceof AbstractParseTreeNode) {
+          stack.add(new Frame(
+              (AbstractParseTreeNode) child,
+              AncestorChain.instanceOfChild(top.ancestors, child)));
+        } else if (!child.acceptPostOrder(v, top.ancestors)) {
+          return false;
+        }
+        continue;
+      }
+      // All of top's children have been visited.
+      stack.remove(stack.size() - 1);
+      if (stack.isEmpty()) { break; }
+      // If top.node has been orphaned, don't visit it...
+      if (stack.get(stack.size() - 1).stillHasChild(top.node)
+          && !v.visit(top.ancestors)) {
+        // A false return ends the whole traversal.
+        return false;
+      }
     }
 
     // If this node has been orphaned, don't visit it...
@@ -14,8 +14,14 @@ public final class AncestorChain<T extends ParseTreeNode> {
   public final int depth;
 
   private AncestorChain(AncestorChain<? extends ParseTreeNode> parent, T node) {
-    if (node == null) { throw new NullPointerException(); }
+    this(parent, node, false);
     assert parent == null || parent.node.children().contains(node);
+  }
+
+  private AncestorChain(
+      AncestorChain<? extends ParseTreeNode> parent, T node,
+      @SuppressWarnings("unused") boolean unchecked) {
+    if (node == null) { throw new NullPointerException(); }
     this.parent = parent;
     this.node = node;
     this.depth = parent == null ? 0 : parent.depth + 1;
@@ -30,6 +36,16 @@ public final class AncestorChain<T extends ParseTreeNode> {
     return new AncestorChain<T>(parent, node);
   }
 
+  /**
+   * Like {@link #instance(AncestorChain, ParseTreeNode)} but for a node that
+   * the caller just took from the parent's children, so does not check, in
+   * time linear in the number of siblings, that it is one.
+   */
+  static <T extends ParseTreeNode> AncestorChain<T> instanceOfChild(
+       AncestorChain<? extends ParseTreeNode> parent, T node) {
+    return new AncestorChain<T>(parent, node, true);
+  }
+
   public <C extends ParseTreeNode> AncestorChain<C> child(C child) {
     return instance(this, child);
   }
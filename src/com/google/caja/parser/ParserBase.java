@@ -88,10 +88,13 @@ public abstract class ParserBase {
     return decodeIdentifier(s);
   }
 
+  private static final Pattern UNICODE_ESCAPE = Pattern.compile(
+      "\\\\u([0-9a-fA-F]{4})");  // hexDigits captured in group 1
+
   /**
-   * String form of a regular expression that matches the javascript
-   * IdentifierOrKeyword production, with extensions for quasiliteral
-   * syntax.
+   * True if s, once decoded, matches the javascript IdentifierOrKeyword
+   * production.  {@link #isQuasiIdentifier} additionally allows the
+   * extensions for quasiliteral syntax.
    * <p>From section 7.6 of EcmaScript 262 Edition 3 (ES3), currently found at
    * http://www.ecma-international.org/publications/files/ECMA-ST/Ecma-262.pdf
    * and based on http://www.erights.org/elang/grammar/quasi-overview.html
@@ -137,51 +140,79 @@ public abstract class ParserBase {
    * A <i>UnicodeEscapeSequence</i> cannot be used to put a character
    * into an identifier that would otherwise be illegal.
    */
-  private static final Pattern IDENTIFIER_OR_KEYWORD_RE;
-  private static final Pattern QUASI_IDENTIFIER_OR_KEYWORD_RE;
-  private static final Pattern UNICODE_ESCAPE;  // hexDigits captured in group 1
-  static {
-    String hexDigit = "[0-9a-fA-F]";
-    String letter = "\\p{javaLetter}";
-    String letterOrDigit = "\\p{javaLetterOrDigit}";
-    String combinerOrConnector = "\\p{Mn}\\p{Mc}\\p{Pc}";
-    String identifierStart = "[" + letter + "$_]";
-    String identifierPart = "[" + letterOrDigit + combinerOrConnector + "$_]";
-    String quasiliteralBegin = "@";
-    String optQuasiliteralQuantifier = "[\\+\\*\\?]?";
-    String identifierOrKeyword = identifierStart + identifierPart + "*";
-    IDENTIFIER_OR_KEYWORD_RE = Pattern.compile("^" + identifierOrKeyword + "$");
-    String quasiIdentifierOrKeyword = (
-        "(?:" + identifierOrKeyword + ")"
-        + "|"
-        + "(?:" + (
-            quasiliteralBegin
-            + identifierOrKeyword
-            + optQuasiliteralQuantifier)
-        + ")");
-    QUASI_IDENTIFIER_OR_KEYWORD_RE = Pattern.compile(
-        "^" + quasiIdentifierOrKeyword + "$");
-
-    UNICODE_ESCAPE = Pattern.compile("\\\\u(" + hexDigit + "{4})");
-  }
-
   public static boolean isJavascriptIdentifier(String s) {
-    return IDENTIFIER_OR_KEYWORD_RE.matcher(decodeIdentifier(s)).matches()
+    return isIdentifierOrKeyword(decodeIdentifier(s))
         && Normalizer.isNormalized(s);
   }
 
   public static boolean isQuasiIdentifier(String s) {
-    return QUASI_IDENTIFIER_OR_KEYWORD_RE.matcher(decodeIdentifier(s)).matches()
+    return isQuasiIdentifierOrKeyword(decodeIdentifier(s))
         && Normalizer.isNormalized(s);
   }
 
   public boolean isIdentifier(String s) {
+    String decoded = decodeIdentifier(s);
     return (isQuasiliteral
-            ? QUASI_IDENTIFIER_OR_KEYWORD_RE
-            : IDENTIFIER_OR_KEYWORD_RE).matcher(decodeIdentifier(s)).matches()
+            ? isQuasiIdentifierOrKeyword(decoded)
+            : isIdentifierOrKeyword(decoded))
         && Normalizer.isNormalized(s);
   }
 
+  /**
+   * True if s, which must not contain escapes, matches the
+   * <i>IdentifierOrKeyword</i> production above.
+   */
+  public static boolean isIdentifierOrKeyword(String s) {
+    return isIdentifierName(s, 0, s.length());
+  }
+
+  /**
+   * True if s, which must not contain escapes, matches the
+   * <i>QuasiIdentifierOrKeyword</i> production above.
+   */
+  public static boolean isQuasiIdentifierOrKeyword(String s) {
+    int n = s.length();
+    if (n == 0 || s.charAt(0) != '@') { return isIdentifierName(s, 0, n); }
+    switch (s.charAt(n - 1)) {
+      case '+': case '*': case '?': --n; break;
+    }
+    return isIdentifierName(s, 1, n);
+  }
+
+  /** True if codePoint matches the <i>IdentifierStart</i> production. */
+  public static boolean isIdentifierStart(int codePoint) {
+    return Character.isLetter(codePoint) || codePoint == '$'
+        || codePoint == '_';
+  }
+
+  /** True if codePoint matches the <i>IdentifierPart</i> production. */
+  public static boolean isIdentifierPart(int codePoint) {
+    if (Character.isLetterOrDigit(codePoint) || codePoint == '$'
+        || codePoint == '_') {
+      return true;
+    }
+    switch (Character.getType(codePoint)) {
+      case Character.NON_SPACING_MARK:
+      case Character.COMBINING_SPACING_MARK:
+      case Character.CONNECTOR_PUNCTUATION:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static boolean isIdentifierName(String s, int start, int end) {
+    if (start >= end) { return false; }
+    int cp = s.codePointAt(start);
+    if (!isIdentifierStart(cp)) { return false; }
+    for (int i = start + Character.charCount(cp); i < end;
+         i += Character.charCount(cp)) {
+      cp = s.codePointAt(i);
+      if (!isIdentifierPart(cp)) { return false; }
+    }
+    return true;
+  }
+
   /**
    * Decodes escapes in an identifier to their literal codepoints so that
    * identifiers can be compared for equality via string equality of their
@@ -71,17 +71,18 @@ public final class ParserContext {
 
   // Optional settings
   private boolean comments;
+  private boolean linePositionsOnly;
 
   public ParserContext(MessageQueue mq) {
     this(mq, InputSource.UNKNOWN, null, null, null, null, null, null, null,
-        null, false);
+        null, false, false);
   }
 
   private ParserContext(MessageQueue mq, InputSource is, CharProducer cp,
       ContentType type, Charset charset, InputStream inputStream,
       String content, PluginMeta meta,
       Map<InputSource, CharSequence> sourceMap, MessageContext mc,
-      boolean comments) {
+      boolean comments, boolean linePositionsOnly) {
     this.mq = mq;
     this.is = is;
     this.cp = cp;
@@ -93,71 +94,88 @@ public final class ParserContext {
     this.sourceMap = sourceMap;
     this.mc = mc;
     this.comments = comments;
+    this.linePositionsOnly = linePositionsOnly;
   }
 
   public ParserContext withInput(ContentType type) {
     return this.type != type ?
         new ParserContext(mq, is, cp, type, charset, inputStream, content,
-            meta, sourceMap, mc, comments) : this;
+            meta, sourceMap, mc, comments, linePositionsOnly) : this;
   }
 
   public ParserContext withInput(InputSource is) {
     return this.is != is ?
         new ParserContext(mq, is, cp, type, charset, inputStream, content,
-            meta, sourceMap, mc, comments) : this;
+            meta, sourceMap, mc, comments, linePositionsOnly) : this;
   }
 
   public ParserContext withInput(CharProducer cp) {
     return this.cp != cp ?
         new ParserContext(mq, is, cp, type, charset, inputStream, content,
-            meta, sourceMap, mc, comments) : this;
+            meta, sourceMap, mc, comments, linePositionsOnly) : this;
   }
 
   public ParserContext withConfig(MessageContext mc) {
     return this.mc != mc ?
         new ParserContext(mq, is, cp, type, charset, inputStream, content,
-            meta, sourceMap, mc, comments) : this;
+            meta, sourceMap, mc, comments, linePositionsOnly) : this;
   }
 
   public ParserContext withInput(String content) {
     return this.content != content ?
         new ParserContext(mq, is, cp, type, charset, inputStream, content,
-            meta, sourceMap, mc, comments) : this;
+            meta, sourceMap, mc, comments, linePositionsOnly) : this;
   }
 
   public ParserContext withInput(File file) throws IOException {
     return new ParserContext(mq, is, cp, type, charset,
-        new FileInputStream(file), content, meta, sourceMap, mc, comments);
+        new FileInputStream(file), content, meta, sourceMap, mc, comments,
+        linePositionsOnly);
   }
 
   public ParserContext withInput(InputStream inputStream) {
     return this.inputStream != inputStream ?
         new ParserContext(mq, is, cp, type, charset, inputStream, content,
-            meta, sourceMap, mc, comments) : this;
+            meta, sourceMap, mc, comments, linePositionsOnly) : this;
   }
 
   public ParserContext withInput(Charset charset) {
     return this.charset != charset ?
         new ParserContext(mq, is, cp, type, charset, inputStream, content,
-            meta, sourceMap, mc, comments) : this;
+            meta, sourceMap, mc, comments, linePositionsOnly) : this;
   }
 
   public ParserContext withInput(InputStream inputStream, Charset charset) {
     return this.inputStream != inputStream && this.charset != charset ?
         new ParserContext(mq, is, cp, type, charset, inputStream, content,
-            meta, sourceMap, mc, comments) : this;
+            meta, sourceMap, mc, comments, linePositionsOnly) : this;
   }
 
   public ParserContext withConfig(PluginMeta meta) {
     return this.meta != meta ?
         new ParserContext(mq, is, cp, type, charset, inputStream, content,
-            meta, sourceMap, mc, comments) : this;
+            meta, sourceMap, mc, comments, linePositionsOnly) : this;
   }
 
   public ParserContext withSourceMap(Map<InputSource, CharSequence> sourceMap) {
     return this.sourceMap != sourceMap ?
         new ParserContext(mq, is, cp, type, charset, inputStream, content,
-            meta, sourceMap, mc, comments) : this;
+            meta, sourceMap, mc, comments, linePositionsOnly) : this;
+  }
+
+  /**
+   * If true, JavaScript parse trees built by this context have positions
+   * that are only precise to the line, as described at
+   * {@link CharProducer.Factory#withLinePositionsOnly}.
+   * That saves creating a position per token and per node for pipelines that
+   * only need positions to report the rare error.
+   * HTML is unaffected since the DOM parser derives positions from its
+   * tokens' positions.
+   */
+  public ParserContext withLinePositionsOnly(boolean linePositionsOnly) {
+    return this.linePositionsOnly != linePositionsOnly ?
+        new ParserContext(mq, is, cp, type, charset, inputStream, content,
+            meta, sourceMap, mc, comments, linePositionsOnly) : this;
   }
 
   private static InputSource guessInputSource(InputSource is) {
@@ -267,7 +285,9 @@ public final class ParserContext {
   private ParseTreeNode parse() throws ParseException {
     ParseTreeNode input;
     if (ContentType.JS == type) {
-      JsLexer lexer = new JsLexer(cp);
+      JsLexer lexer = new JsLexer(
+          linePositionsOnly ? CharProducer.Factory.withLinePositionsOnly(cp)
+          : cp);
       JsTokenQueue tq = new JsTokenQueue(lexer, is);
       if (tq.isEmpty()) { return null; }
       Parser p = new Parser(tq, mq);
@@ -0,0 +1,259 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lexer.ExternalReference;
+import com.google.caja.lexer.FetchedData;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fetcher that stops asking a failing origin for content for a while, so
+ * that requests for it fail at once instead of each waiting out the
+ * underlying fetcher's timeouts.
+ *
+ * <p>Failures are remembered per URI, and also per host when the host could
+ * not be reached at all, as with a refused connection or a timeout.  After a
+ * failure, fetches of that URI or from that host fail without reaching the
+ * underlying fetcher until a backoff period passes.  The period starts at
+ * {@code initialBackoffMillis} and doubles with each consecutive failure up
+ * to {@code maxBackoffMillis}.  Once it passes, a single fetch is let through
+ * as a trial while others keep failing; if the trial succeeds the failures
+ * are forgotten.
+ *
+ * <p>This class is thread-safe.
+ */
+public class BackoffUriFetcher implements UriFetcher {
+  public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+  public static final long DEFAULT_MAX_BACKOFF_MILLIS = 60000;
+  /**
+   * The most failures remembered per map.  Once it is reached, stale ones
+   * are discarded, and if that is not enough, some that are still backing off
+   * are too, so that the cost of making room is spread over many failures.
+   */
+  static final int MAX_TRACKED = 4096;
+
+  private final UriFetcher delegate;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private final ConcurrentMap<String, Backoff> hosts
+      = new ConcurrentHashMap<String, Backoff>();
+  private final ConcurrentMap<String, Backoff> uris
+      = new ConcurrentHashMap<String, Backoff>();
+  private final AtomicLong fastFailureCount = new AtomicLong();
+  private final AtomicLong backoffCount = new AtomicLong();
+
+  public BackoffUriFetcher(UriFetcher delegate) {
+    this(delegate, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+  }
+
+  public BackoffUriFetcher(
+      UriFetcher delegate, long initialBackoffMillis, long maxBackoffMillis) {
+    if (initialBackoffMillis <= 0) {
+      throw new IllegalArgumentException("" + initialBackoffMillis);
+    }
+    if (maxBackoffMillis < initialBackoffMillis) {
+      throw new IllegalArgumentException("" + maxBackoffMillis);
+    }
+    this.delegate = delegate;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  /** The consecutive failures of one host or URI. */
+  private final class Backoff {
+    private int failures;
+    /** When the next trial may be made. */
+    private long retryTime;
+    private boolean trialInFlight;
+
+    /** True if the caller may go ahead, possibly as the trial. */
+    synchronized boolean tryAcquire(long now) {
+      if (now < retryTime || trialInFlight) { return false; }
+      trialInFlight = true;
+      return true;
+    }
+
+    synchronized void failed(long now) {
+      trialInFlight = false;
+      ++failures;
+      // Doubles up to the maximum without overflowing.
+      long backoff = initialBackoffMillis;
+      for (int i = 1; i < failures && backoff < maxBackoffMillis; ++i) {
+        backoff *= 2;
+      }
+      retryTime = now + Math.min(backoff, maxBackoffMillis);
+    }
+
+    synchronized void release() { trialInFlight = false; }
+
+    synchronized boolean isStale(long now) {
+      return !trialInFlight && now >= retryTime;
+    }
+
+    synchronized boolean isBackingOff(long now) {
+      return now < retryTime;
+    }
+
+    synchronized int getFailures() { return failures; }
+  }
+
+  public FetchedData fetch(ExternalReference ref, String mimeType)
+      throws UriFetchException {
+    URI uri = ref.getUri();
+    String uriKey = uri.toString();
+    String hostKey = hostKey(uri);
+    long now = currentTime();
+
+    Backoff uriBackoff = uris.get(uriKey);
+    Backoff hostBackoff = hostKey != null ? hosts.get(hostKey) : null;
+    if (uriBackoff != null && !uriBackoff.tryAcquire(now)) {
+      throw fastFailure(ref, mimeType, uriKey, uriBackoff);
+    }
+    if (hostBackoff != null && !hostBackoff.tryAcquire(now)) {
+      // Give back any trial of the URI since this fetch did not test it.
+      release(uriBackoff);
+      throw fastFailure(ref, mimeType, hostKey, hostBackoff);
+    }
+
+    FetchedData data;
+    try {
+      data = delegate.fetch(ref, mimeType);
+    } catch (UriFetchException ex) {
+      Throwable cause = ex.getCause();
+      if (isLocal(cause)) {
+        // Not the origin's fault.
+        release(uriBackoff);
+        release(hostBackoff);
+        throw ex;
+      }
+      now = currentTime();
+      failed(uris, uriKey, uriBackoff, now);
+      if (hostKey != null && isUnreachable(cause)) {
+        failed(hosts, hostKey, hostBackoff, now);
+      } else {
+        release(hostBackoff);
+      }
+      throw ex;
+    } catch (RuntimeException ex) {
+      release(uriBackoff);
+      release(hostBackoff);
+      throw ex;
+    }
+    if (uriBackoff != null) { uris.remove(uriKey, uriBackoff); }
+    if (hostBackoff != null) { hosts.remove(hostKey, hostBackoff); }
+    return data;
+  }
+
+  /** The number of hosts that are currently not being fetched from. */
+  public int getBackingOffHostCount() {
+    return countBackingOff(hosts);
+  }
+
+  /** The number of URIs that are currently not being fetched. */
+  public int getBackingOffUriCount() {
+    return countBackingOff(uris);
+  }
+
+  /** The number of fetches failed without asking the underlying fetcher. */
+  public long getFastFailureCount() { return fastFailureCount.get(); }
+
+  /** The number of times that a host or URI started a backoff period. */
+  public long getBackoffCount() { return backoffCount.get(); }
+
+  /** The current time in milliseconds.  Overridable for testing. */
+  protected long currentTime() { return System.currentTimeMillis(); }
+
+  private UriFetchException fastFailure(
+      ExternalReference ref, String mimeType, String key, Backoff backoff) {
+    fastFailureCount.incrementAndGet();
+    return new UriFetchException(ref, mimeType, new IOException(
+        "Not fetching from " + key + " after " + backoff.getFailures()
+        + " failures"));
+  }
+
+  private void failed(
+      ConcurrentMap<String, Backoff> backoffs, String key, Backoff backoff,
+      long now) {
+    if (backoff == null) {
+      if (backoffs.size() >= MAX_TRACKED) { prune(backoffs, now); }
+      Backoff newBackoff = new Backoff();
+      backoff = backoffs.putIfAbsent(key, newBackoff);
+      if (backoff == null) { backoff = newBackoff; }
+    }
+    backoff.failed(now);
+    backoffCount.incrementAndGet();
+  }
+
+  /**
+   * Lets another fetch be the trial, after one that neither succeeded nor
+   * failed because of the origin.
+   */
+  private static void release(Backoff backoff) {
+    if (backoff != null) { backoff.release(); }
+  }
+
+  private int countBackingOff(ConcurrentMap<String, Backoff> backoffs) {
+    long now = currentTime();
+    int n = 0;
+    for (Backoff backoff : backoffs.values()) {
+      if (backoff.isBackingOff(now)) { ++n; }
+    }
+    return n;
+  }
+
+  /** Makes room for at least a quarter of MAX_TRACKED new failures. */
+  private static void prune(
+      ConcurrentMap<String, Backoff> backoffs, long now) {
+    for (Iterator<Backoff> it = backoffs.values().iterator(); it.hasNext();) {
+      if (it.next().isStale(now)) { it.remove(); }
+    }
+    int excess = backoffs.size() - MAX_TRACKED * 3 / 4;
+    for (Iterator<Backoff> it = backoffs.values().iterator();
+         excess > 0 && it.hasNext(); --excess) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  /**
+   * True if the failure happened before reaching the origin, so says nothing
+   * about it.
+   */
+  private static boolean isLocal(Throwable cause) {
+    return cause instanceof InterruptedException
+        || cause instanceof HttpUriFetcher.HostThrottledException;
+  }
+
+  private static String hostKey(URI uri) {
+    String authority = uri.getRawAuthority();
+    return authority != null ? uri.getScheme() + "://" + authority : null;
+  }
+
+  /** True if the failure means that the host could not be reached. */
+  private static boolean isUnreachable(Throwable cause) {
+    return cause instanceof SocketException
+        || cause instanceof SocketTimeoutException
+        || cause instanceof UnknownHostException;
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lexer.ExternalReference;
+import com.google.caja.lexer.FetchedData;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A fetcher that lets concurrent fetches of the same URI and MIME type share
+ * a single fetch from an underlying fetcher.
+ *
+ * <p>The first caller to ask for a resource fetches it on its own thread, and
+ * callers that ask for the same resource while that fetch is in flight wait
+ * for and receive its result.  If the fetch fails, every waiter gets its own
+ * {@link UriFetchException} with the same cause, so that each can report the
+ * failure against its own reference and message queue.
+ *
+ * <p>Nothing is remembered once a fetch completes; this is not a cache.
+ */
+public final class CoalescingUriFetcher implements UriFetcher {
+  private final UriFetcher delegate;
+  private final ConcurrentMap<List<?>, FutureTask<FetchedData>> inFlight
+      = new ConcurrentHashMap<List<?>, FutureTask<FetchedData>>();
+
+  public CoalescingUriFetcher(UriFetcher delegate) {
+    this.delegate = delegate;
+  }
+
+  public FetchedData fetch(final ExternalReference ref, final String mimeType)
+      throws UriFetchException {
+    List<?> key = Arrays.asList(ref.getUri(), mimeType);
+    FutureTask<FetchedData> fetch = new FutureTask<FetchedData>(
+        new Callable<FetchedData>() {
+          public FetchedData call() throws UriFetchException {
+            return delegate.fetch(ref, mimeType);
+          }
+        });
+    FutureTask<FetchedData> pending = inFlight.putIfAbsent(key, fetch);
+    boolean isLeader = pending == null;
+    if (isLeader) {
+      pending = fetch;
+      try {
+        fetch.run();
+      } finally {
+        inFlight.remove(key, fetch);
+      }
+    }
+
+    try {
+      return pending.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new UriFetchException(ref, mimeType, ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof UriFetchException) {
+        if (isLeader) { throw (UriFetchException) cause; }
+        throw new UriFetchException(ref, mimeType, cause.getCause());
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new UriFetchException(ref, mimeType, cause);
+    }
+  }
+
+  /** The number of distinct fetches currently in flight. */
+  public int getInFlightCount() { return inFlight.size(); }
+}
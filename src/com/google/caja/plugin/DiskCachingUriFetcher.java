@@ -0,0 +1,78 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lexer.ExternalReference;
+import com.google.caja.lexer.FetchedData;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * A fetcher that keeps fetched content in a {@link FetchedDataStore} for as
+ * long as it is fresh, and serves it from there instead of fetching it again.
+ *
+ * <p>Content whose source forbids reuse is not stored and displaces any
+ * content already stored for it.  Problems with the store are treated as
+ * misses, since the underlying fetcher can still do the job.
+ */
+public final class DiskCachingUriFetcher implements UriFetcher {
+  private final UriFetcher delegate;
+  private final FetchedDataStore store;
+  private final long defaultLifetime;
+
+  /**
+   * @param defaultLifetime how long to keep content whose source did not
+   *     specify a {@link FetchedData#getFreshnessLifetime lifetime}.
+   */
+  public DiskCachingUriFetcher(
+      UriFetcher delegate, FetchedDataStore store, long defaultLifetime) {
+    this.delegate = delegate;
+    this.store = store;
+    this.defaultLifetime = defaultLifetime;
+  }
+
+  public FetchedData fetch(ExternalReference ref, String mimeType)
+      throws UriFetchException {
+    URI uri = ref.getUri();
+    try {
+      FetchedData stored = store.get(
+          uri, mimeType, System.currentTimeMillis());
+      if (stored != null) { return stored; }
+    } catch (IOException ex) {
+      // Fall through to the delegate.
+    }
+
+    FetchedData data = delegate.fetch(ref, mimeType);
+    long lifetime = data.getFreshnessLifetime();
+    if (lifetime == FetchedData.UNKNOWN_FRESHNESS) {
+      lifetime = defaultLifetime;
+    }
+    try {
+      if (lifetime > 0) {
+        long now = System.currentTimeMillis();
+        // Saturates since origins may ask for lifetimes of up to
+        // Long.MAX_VALUE.
+        long expiration = now + Math.min(lifetime, Long.MAX_VALUE - now);
+        store.put(uri, mimeType, data, expiration);
+      } else {
+        store.remove(uri, mimeType);
+      }
+    } catch (IOException ex) {
+      // The content is still good even if it could not be kept.
+    }
+    return data;
+  }
+}
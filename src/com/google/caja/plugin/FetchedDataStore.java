@@ -0,0 +1,610 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lexer.FetchedData;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.util.Charsets;
+import com.google.caja.util.Pair;
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+/**
+ * A persistent store of fetched content, keyed by URI and requested MIME
+ * type, so that a restarted server can serve recently fetched content
+ * without going back to its origins.
+ *
+ * <p>Content is kept in a single append-only file of records, each a header
+ * holding a magic number, the payload length and a CRC32 of the payload,
+ * followed by the payload.  A put appends a record, and a removal appends a
+ * tombstone.  Reads go through a read-only memory mapping of the file, so a
+ * hit costs one copy out of the page cache.  The mapping is renewed only once
+ * the file has doubled, and records appended since are read directly.  Only
+ * the index, which maps keys to record offsets, lives on the heap.
+ *
+ * <p>When the file is opened, records are replayed to rebuild the index.
+ * Replay stops at the first record that is truncated or fails its checksum,
+ * as after a crash mid-append, and the file is cut back to the last good
+ * record.  Writes are not forced to disk, so a crash may lose the most recent
+ * puts, but never corrupts the ones before them.
+ *
+ * <p>Replaced, removed and expired records are dead weight until the store
+ * is compacted: live records are copied to a new file which then replaces the
+ * old one by renaming, so a crash during compaction leaves the old file
+ * intact.  Compaction happens on its own once the file is mostly dead or
+ * exceeds its byte budget, in which case the oldest records are dropped.
+ * It runs in the background, and holds the store's lock only to pick the
+ * records to keep and then to copy any written meanwhile and switch files, so
+ * reads and writes carry on while the bulk of the file is copied.
+ *
+ * <p>Only one store may have a file open at a time.  This class is
+ * thread-safe.
+ */
+public final class FetchedDataStore implements Closeable {
+  private static final int MAGIC = 0xCA1AF11E;
+  /** Magic number, payload length and CRC32. */
+  private static final int HEADER_BYTES = 12;
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+  /** Files smaller than this are not compacted just to reclaim space. */
+  private static final long MIN_COMPACTION_BYTES = 1 << 20;
+  /** Compacts stores in the background, one at a time. */
+  private static final Executor BACKGROUND_COMPACTOR;
+  static {
+    ThreadPoolExecutor compactor = new ThreadPoolExecutor(
+        1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "fetched-data-store-compactor");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    compactor.allowCoreThreadTimeOut(true);
+    BACKGROUND_COMPACTOR = compactor;
+  }
+
+  private final File file;
+  private final long maxBytes;
+  private final Executor compactor;
+  /** Held for the whole of a compaction, before the store's own lock. */
+  private final Object compactionLock = new Object();
+  /** True while a compaction is scheduled or running. */
+  private boolean compacting;
+  /** Maps [uri, mimeType] to records in the order they were written. */
+  private final Map<List<String>, Entry> index
+      = new LinkedHashMap<List<String>, Entry>();
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private FileLock lock;
+  /** A mapping of some prefix of the file, or null if not yet needed. */
+  private MappedByteBuffer mapped;
+  /** The length of the file, and the offset of the next record. */
+  private long end;
+  /** The total size of the records in the index. */
+  private long liveBytes;
+
+  private static final class Entry {
+    final long offset;
+    final int size;
+    /** Millis since epoch after which the record is not served. */
+    final long expiration;
+
+    Entry(long offset, int size, long expiration) {
+      this.offset = offset;
+      this.size = size;
+      this.expiration = expiration;
+    }
+  }
+
+  private FetchedDataStore(File file, long maxBytes, Executor compactor) {
+    this.file = file;
+    this.maxBytes = maxBytes;
+    this.compactor = compactor;
+  }
+
+  /**
+   * Opens the store in the given file, creating it if it does not exist.
+   *
+   * @param maxBytes the size past which the file is compacted, dropping the
+   *     oldest content.  At most {@code Integer.MAX_VALUE}.
+   * @throws IOException if the file cannot be read or written, or is in use
+   *     by another store.
+   */
+  public static FetchedDataStore open(File file, long maxBytes)
+      throws IOException {
+    return open(file, maxBytes, BACKGROUND_COMPACTOR);
+  }
+
+  /** @param compactor runs compactions that the store starts on its own. */
+  static FetchedDataStore open(File file, long maxBytes, Executor compactor)
+      throws IOException {
+    if (maxBytes <= 0 || maxBytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("" + maxBytes);
+    }
+    FetchedDataStore store = new FetchedDataStore(file, maxBytes, compactor);
+    // Left over from a compaction that did not finish.
+    compactionFile(file).delete();
+    store.openFile();
+    boolean ok = false;
+    try {
+      store.recover();
+      // The budget may be smaller than when the file was written.
+      store.maybeCompact();
+      ok = true;
+    } finally {
+      if (!ok) { store.close(); }
+    }
+    return store;
+  }
+
+  /**
+   * The content stored for the given key, or null if there is none that
+   * expires after now.  The content's freshness lifetime is the time left
+   * until it expires.
+   */
+  public synchronized @Nullable FetchedData get(
+      URI uri, String mimeType, long now)
+      throws IOException {
+    checkOpen();
+    Entry e = index.get(key(uri, mimeType));
+    if (e == null || e.expiration <= now) { return null; }
+    ByteBuffer record = record(e);
+    record.position(HEADER_BYTES + 1 + 8);
+    readString(record);  // uri
+    readString(record);  // mimeType
+    String contentType = readString(record);
+    String charSet = readString(record);
+    byte[] content = new byte[record.getInt()];
+    record.get(content);
+    return FetchedData.fromBytes(
+        content, contentType, charSet, new InputSource(uri),
+        e.expiration - now);
+  }
+
+  /**
+   * Stores content under the given key until the expiration time, replacing
+   * any already stored.
+   *
+   * @param expiration millis since epoch.
+   */
+  public synchronized void put(
+      URI uri, String mimeType, FetchedData data, long expiration)
+      throws IOException {
+    checkOpen();
+    byte[] content = data.getByteContent();
+    ByteArrayOutputStream buf = new ByteArrayOutputStream(
+        HEADER_BYTES + content.length + 256);
+    DataOutputStream out = new DataOutputStream(buf);
+    writeRecordStart(out, PUT, expiration, uri.toString(), mimeType);
+    writeString(out, data.getContentType());
+    writeString(out, data.getCharSet());
+    out.writeInt(content.length);
+    out.write(content);
+    byte[] record = buf.toByteArray();
+    // Content that could not survive compaction is not worth writing, and
+    // while a compaction catches up the file may not grow without bound.
+    if (record.length > maxBytes / 2
+        || end + record.length > Math.min(2 * maxBytes, Integer.MAX_VALUE)) {
+      remove(uri, mimeType);
+      return;
+    }
+    long offset = append(record);
+    List<String> key = key(uri, mimeType);
+    // Removing first moves the key to the end of the write order.
+    Entry old = index.remove(key);
+    if (old != null) { liveBytes -= old.size; }
+    index.put(key, new Entry(offset, record.length, expiration));
+    liveBytes += record.length;
+    maybeCompact();
+  }
+
+  /** Discards any content stored under the given key. */
+  public synchronized void remove(URI uri, String mimeType)
+      throws IOException {
+    checkOpen();
+    Entry old = index.remove(key(uri, mimeType));
+    if (old == null) { return; }
+    liveBytes -= old.size;
+    append(tombstone(key(uri, mimeType)));
+    maybeCompact();
+  }
+
+  /**
+   * Rewrites the file to hold only content that expires after now, dropping
+   * the oldest content if that is more than half the byte budget.
+   */
+  public void compact(long now) throws IOException {
+    compact(now, null);
+  }
+
+  /**
+   * @param duringCopy run without the store's lock once the records picked
+   *     are copied, to test writes that race with compaction.
+   */
+  void compact(long now, @Nullable Runnable duringCopy) throws IOException {
+    synchronized (compactionLock) {
+      compactLocked(now, duringCopy);
+    }
+  }
+
+  private void compactLocked(long now, @Nullable Runnable duringCopy)
+      throws IOException {
+    List<Pair<List<String>, Entry>> kept = Lists.newArrayList();
+    FileChannel source;
+    synchronized (this) {
+      checkOpen();
+      long budget = maxBytes / 2;
+      long keptBytes = 0;
+      for (Iterator<Entry> it = index.values().iterator(); it.hasNext();) {
+        Entry e = it.next();
+        if (e.expiration <= now) {
+          it.remove();
+          liveBytes -= e.size;
+        } else {
+          keptBytes += e.size;
+        }
+      }
+      for (Iterator<Entry> it = index.values().iterator();
+           keptBytes > budget && it.hasNext();) {
+        Entry e = it.next();
+        keptBytes -= e.size;
+        liveBytes -= e.size;
+        it.remove();
+      }
+      for (Map.Entry<List<String>, Entry> me : index.entrySet()) {
+        kept.add(Pair.pair(me.getKey(), me.getValue()));
+      }
+      source = channel;
+    }
+
+    File tmp = compactionFile(file);
+    RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+    boolean replaced = false;
+    try {
+      FileChannel outChannel = out.getChannel();
+      outChannel.truncate(0);
+      // Records are never changed once appended, so they can be copied
+      // without the lock.
+      Map<Entry, Long> offsets = new IdentityHashMap<Entry, Long>();
+      long offset = 0;
+      for (Pair<List<String>, Entry> p : kept) {
+        Entry e = p.b;
+        copy(source, e, outChannel, offset);
+        offsets.put(e, offset);
+        offset += e.size;
+      }
+      if (duringCopy != null) { duringCopy.run(); }
+
+      synchronized (this) {
+        checkOpen();
+        // Content removed during the copy must stay removed after a restart.
+        for (Pair<List<String>, Entry> p : kept) {
+          if (!index.containsKey(p.a)) {
+            byte[] tombstone = tombstone(p.a);
+            write(outChannel, tombstone, offset);
+            offset += tombstone.length;
+          }
+        }
+        // Keep the write order, adding records written during the copy.
+        Map<List<String>, Entry> compacted
+            = new LinkedHashMap<List<String>, Entry>();
+        long compactedLiveBytes = 0;
+        for (Map.Entry<List<String>, Entry> me : index.entrySet()) {
+          Entry e = me.getValue();
+          Long newOffset = offsets.get(e);
+          if (newOffset == null) {
+            copy(source, e, outChannel, offset);
+            newOffset = offset;
+            offset += e.size;
+          }
+          compacted.put(
+              me.getKey(), new Entry(newOffset, e.size, e.expiration));
+          compactedLiveBytes += e.size;
+        }
+        outChannel.force(true);
+        out.close();
+
+        closeFile();
+        // Some platforms will not rename over an existing file.
+        replaced = tmp.renameTo(file)
+            || (file.delete() && tmp.renameTo(file));
+        openFile();
+        if (!replaced) {
+          // Start over from whichever file is now in place.
+          index.clear();
+          liveBytes = 0;
+          recover();
+          throw new IOException("Failed to replace " + file);
+        }
+        index.clear();
+        index.putAll(compacted);
+        end = offset;
+        // Less than end if records were replaced during the copy.
+        liveBytes = compactedLiveBytes;
+      }
+    } finally {
+      out.close();
+      if (!replaced) { tmp.delete(); }
+    }
+  }
+
+  /** The number of keys with stored content, including expired content. */
+  public synchronized int size() { return index.size(); }
+
+  /** The size of the file, including dead records. */
+  public synchronized long getFileSize() { return end; }
+
+  /** The size of the records in use, including expired ones. */
+  public synchronized long getLiveBytes() { return liveBytes; }
+
+  public synchronized void close() throws IOException {
+    if (raf != null) { closeFile(); }
+  }
+
+  private void openFile() throws IOException {
+    raf = new RandomAccessFile(file, "rw");
+    channel = raf.getChannel();
+    try {
+      lock = channel.tryLock();
+    } catch (OverlappingFileLockException ex) {
+      // Locked by this process.
+    }
+    if (lock == null) {
+      closeFile();
+      throw new IOException(file + " is in use");
+    }
+  }
+
+  private void closeFile() throws IOException {
+    // A mapping cannot be released explicitly; it goes with the buffer.
+    mapped = null;
+    try {
+      if (lock != null) { lock.release(); }
+    } finally {
+      lock = null;
+      channel = null;
+      RandomAccessFile raf = this.raf;
+      this.raf = null;
+      raf.close();
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (raf == null) { throw new IOException("Closed"); }
+  }
+
+  /** Rebuilds the index from the records in the file. */
+  private void recover() throws IOException {
+    long size = channel.size();
+    if (size > Integer.MAX_VALUE) {
+      // Too large to map, so not written by a store.
+      throw new IOException(file + " is too large");
+    }
+    end = size;
+    CRC32 crc = new CRC32();
+    long offset = 0;
+    while (offset + HEADER_BYTES <= size) {
+      ByteBuffer buf = map(offset + HEADER_BYTES);
+      int pos = (int) offset;
+      int length = buf.getInt(pos + 4);
+      if (buf.getInt(pos) != MAGIC || length < 0
+          || offset + HEADER_BYTES + length > size) {
+        break;
+      }
+      ByteBuffer record = map(offset + HEADER_BYTES + length).duplicate();
+      record.limit(pos + HEADER_BYTES + length).position(pos);
+      record = record.slice();
+      byte[] payload = new byte[length];
+      record.position(HEADER_BYTES);
+      record.get(payload);
+      crc.reset();
+      crc.update(payload);
+      if ((int) crc.getValue() != record.getInt(8)) { break; }
+
+      record.position(HEADER_BYTES);
+      byte kind = record.get();
+      long expiration = record.getLong();
+      List<String> key;
+      try {
+        key = Arrays.asList(readString(record), readString(record));
+      } catch (RuntimeException ex) {
+        break;  // A checksummed record that this code did not write.
+      }
+      Entry old = index.remove(key);
+      if (old != null) { liveBytes -= old.size; }
+      int recordSize = HEADER_BYTES + length;
+      if (kind == PUT) {
+        index.put(key, new Entry(offset, recordSize, expiration));
+        liveBytes += recordSize;
+      }
+      offset += recordSize;
+    }
+    if (offset != size) {
+      mapped = null;
+      channel.truncate(offset);
+      end = offset;
+    }
+  }
+
+  /** A buffer holding exactly the record for e, positioned at its start. */
+  private ByteBuffer record(Entry e) throws IOException {
+    long recordEnd = e.offset + e.size;
+    if (mapped != null && mapped.capacity() < recordEnd
+        && end < 2L * mapped.capacity()) {
+      // Remapping the file after every append would pile up mappings, so
+      // records written since the last mapping are read directly until the
+      // file doubles.
+      ByteBuffer buf = ByteBuffer.allocate(e.size);
+      while (buf.hasRemaining()) {
+        if (channel.read(buf, e.offset + buf.position()) < 0) {
+          throw new IOException("Record at " + e.offset + " is truncated");
+        }
+      }
+      buf.flip();
+      return buf;
+    }
+    ByteBuffer buf = map(recordEnd).duplicate();
+    buf.limit((int) recordEnd).position((int) e.offset);
+    return buf.slice();
+  }
+
+  /** A mapping of the file that includes at least the first n bytes. */
+  private MappedByteBuffer map(long n) throws IOException {
+    if (mapped == null || mapped.capacity() < n) {
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+    }
+    return mapped;
+  }
+
+  /** Adds a record, filling in its header, and returns its offset. */
+  private long append(byte[] record) throws IOException {
+    // Offsets are mapped as ints.
+    if (end + record.length > Integer.MAX_VALUE) {
+      throw new IOException(file + " is full");
+    }
+    long offset = end;
+    write(channel, record, offset);
+    end += record.length;
+    return offset;
+  }
+
+  /** Fills in the record's header and writes it to out at offset. */
+  private static void write(FileChannel out, byte[] record, long offset)
+      throws IOException {
+    ByteBuffer header = ByteBuffer.wrap(record, 0, HEADER_BYTES);
+    CRC32 crc = new CRC32();
+    crc.update(record, HEADER_BYTES, record.length - HEADER_BYTES);
+    header.putInt(MAGIC).putInt(record.length - HEADER_BYTES)
+        .putInt((int) crc.getValue());
+    ByteBuffer buf = ByteBuffer.wrap(record);
+    while (buf.hasRemaining()) {
+      out.write(buf, offset + buf.position());
+    }
+  }
+
+  /** Starts a compaction if the file is too large or mostly dead. */
+  private void maybeCompact() {
+    if (compacting
+        || !(end > maxBytes
+             || (end > MIN_COMPACTION_BYTES && end - liveBytes > liveBytes))) {
+      return;
+    }
+    compacting = true;
+    try {
+      compactor.execute(new Runnable() {
+        public void run() {
+          try {
+            compact(System.currentTimeMillis());
+          } catch (IOException ex) {
+            // Closed, or the disk is unwritable.  The next write retries.
+          } finally {
+            synchronized (FetchedDataStore.this) { compacting = false; }
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      compacting = false;
+    }
+  }
+
+  /** Copies the record for e to out at the given offset. */
+  private static void copy(
+      FileChannel in, Entry e, FileChannel out, long offset)
+      throws IOException {
+    out.position(offset);
+    for (long n = 0; n < e.size;) {
+      long copied = in.transferTo(e.offset + n, e.size - n, out);
+      if (copied <= 0) {
+        throw new IOException("Record at " + e.offset + " is truncated");
+      }
+      n += copied;
+    }
+  }
+
+  private static void writeRecordStart(
+      DataOutputStream out, byte kind, long expiration, String uri,
+      String mimeType)
+      throws IOException {
+    out.write(new byte[HEADER_BYTES]);  // Filled in by sealRecord.
+    out.writeByte(kind);
+    out.writeLong(expiration);
+    writeString(out, uri);
+    writeString(out, mimeType);
+  }
+
+  /** A record that removes the given key. */
+  private static byte[] tombstone(List<String> key) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    writeRecordStart(
+        new DataOutputStream(buf), REMOVE, 0, key.get(0), key.get(1));
+    return buf.toByteArray();
+  }
+
+  private static void writeString(DataOutputStream out, @Nullable String s)
+      throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = s.getBytes(Charsets.UTF_8.name());
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static @Nullable String readString(ByteBuffer buf)
+      throws IOException {
+    int n = buf.getInt();
+    if (n < 0) { return null; }
+    byte[] bytes = new byte[n];
+    buf.get(bytes);
+    return new String(bytes, Charsets.UTF_8.name());
+  }
+
+  private static List<String> key(URI uri, String mimeType) {
+    return Arrays.asList(uri.toString(), mimeType);
+  }
+
+  private static File compactionFile(File file) {
+    return new File(file.getPath() + ".compact");
+  }
+}
@@ -0,0 +1,124 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lexer.ExternalReference;
+import com.google.caja.lexer.FetchedData;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tries several fetchers in order, like
+ * {@link UriFetcher.ChainingUriFetcher#make}, but without waiting for one to
+ * fail before starting the next.
+ *
+ * <p>Each fetcher is started when the one before it fails, or when the
+ * fetchers already started have been running for the hedge delay without
+ * producing a result.  With a delay of zero all start at once.  The first
+ * success is returned and fetches still in flight are cancelled.  If every
+ * fetcher fails, the {@link UriFetchException} has the first fetcher's
+ * failure as its cause, as with a plain chain.
+ *
+ * <p>Fetches run on the given executor while the calling thread waits, so
+ * delegates must respond to interruption for cancellation to save work.
+ *
+ * <p>This class is thread-safe if its delegates are.
+ */
+public final class HedgingUriFetcher implements UriFetcher {
+  private final Executor executor;
+  private final long hedgeDelayMillis;
+  private final List<UriFetcher> fetchers;
+
+  /**
+   * @param hedgeDelayMillis how long to wait for one fetcher before also
+   *     starting the next, or zero to start them all at once.
+   */
+  public HedgingUriFetcher(
+      Executor executor, long hedgeDelayMillis, UriFetcher... fetchers) {
+    if (hedgeDelayMillis < 0) {
+      throw new IllegalArgumentException("" + hedgeDelayMillis);
+    }
+    this.executor = executor;
+    this.hedgeDelayMillis = hedgeDelayMillis;
+    this.fetchers = Arrays.asList(fetchers.clone());
+  }
+
+  public FetchedData fetch(final ExternalReference ref, final String mimeType)
+      throws UriFetchException {
+    int n = fetchers.size();
+    CompletionService<FetchedData> completion
+        = new ExecutorCompletionService<FetchedData>(executor);
+    List<Future<FetchedData>> started = Lists.newArrayListWithCapacity(n);
+    // Indexed by fetcher so that the first fetcher's failure comes first.
+    Throwable[] causes = new Throwable[n];
+    try {
+      int running = 0;
+      // True at first and after a failure, when the next fetcher starts
+      // without waiting.
+      boolean startNext = true;
+      while (running > 0 || started.size() < n) {
+        Future<FetchedData> done = null;
+        if (!startNext || started.size() == n) {
+          done = started.size() < n
+              ? completion.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS)
+              : completion.take();
+        }
+        if (done == null) {
+          final UriFetcher fetcher = fetchers.get(started.size());
+          started.add(completion.submit(new Callable<FetchedData>() {
+            public FetchedData call() throws UriFetchException {
+              return fetcher.fetch(ref, mimeType);
+            }
+          }));
+          ++running;
+          startNext = false;
+          continue;
+        }
+        --running;
+        try {
+          return done.get();
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          causes[started.indexOf(done)] = cause;
+          startNext = true;
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new UriFetchException(ref, mimeType, ex);
+    } finally {
+      for (Future<FetchedData> fetch : started) { fetch.cancel(true); }
+    }
+    List<Throwable> failures = Lists.newArrayListWithCapacity(n);
+    for (Throwable cause : causes) {
+      if (cause != null) { failures.add(cause); }
+    }
+    throw new UriFetchException(ref, mimeType, failures);
+  }
+}
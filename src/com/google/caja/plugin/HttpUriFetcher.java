@@ -0,0 +1,279 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lexer.ExternalReference;
+import com.google.caja.lexer.FetchedData;
+import com.google.caja.util.Strings;
+import com.google.common.collect.Maps;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A fetcher for {@code http} and {@code https} URIs that reuses connections
+ * and limits the number of concurrent connections to any one host.
+ *
+ * <p>Connections are pooled by the JDK's keep-alive cache, which only takes
+ * back a connection whose response body has been read to the end and closed.
+ * This fetcher makes sure that happens for error responses too, so that a
+ * misbehaving origin does not cost a new TCP and TLS handshake per request.
+ * The size of the idle pool per host is controlled by the standard
+ * {@code http.maxConnections} system property.
+ *
+ * <p>Responses may be compressed with {@code gzip} or {@code deflate} and are
+ * decompressed before the {@link FetchedData} size limit is applied.
+ *
+ * <p>This class is thread-safe.
+ */
+public class HttpUriFetcher implements UriFetcher {
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+  public static final int DEFAULT_TIMEOUT_MILLIS = 15000;
+
+  private final int maxConnectionsPerHost;
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  /**
+   * Limits concurrent connections, keyed by scheme and authority.  Only hosts
+   * with a fetch waiting or in flight have an entry, so this stays as small
+   * as the number of concurrent fetches however many hosts are asked for.
+   * Guarded by itself.
+   */
+  private final Map<String, HostLimit> hostLimits = Maps.newHashMap();
+
+  public HttpUriFetcher() {
+    this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_TIMEOUT_MILLIS,
+         DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param maxConnectionsPerHost the maximum number of requests to a single
+   *     host that may be in flight at once.  Other requests to that host wait
+   *     for up to connectTimeoutMillis for one to finish.
+   * @param connectTimeoutMillis how long to wait for a connection, or zero to
+   *     wait forever.
+   * @param readTimeoutMillis how long to wait for data from an established
+   *     connection, or zero to wait forever.
+   */
+  public HttpUriFetcher(
+      int maxConnectionsPerHost, int connectTimeoutMillis,
+      int readTimeoutMillis) {
+    if (maxConnectionsPerHost <= 0) {
+      throw new IllegalArgumentException("" + maxConnectionsPerHost);
+    }
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  public FetchedData fetch(ExternalReference ref, String mimeType)
+      throws UriFetchException {
+    URI uri = ref.getUri();
+    String scheme = uri.getScheme();
+    if (!("http".equals(scheme) || "https".equals(scheme))
+        || uri.getRawAuthority() == null) {
+      throw new UriFetchException(ref, mimeType);
+    }
+
+    String host = scheme + "://" + uri.getRawAuthority();
+    HostLimit limit = enter(host);
+    try {
+      try {
+        if (!limit.permits.tryAcquire(
+                connectTimeoutMillis > 0
+                ? connectTimeoutMillis : Long.MAX_VALUE,
+                TimeUnit.MILLISECONDS)) {
+          throw new UriFetchException(
+              ref, mimeType, new HostThrottledException(host));
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new UriFetchException(ref, mimeType, ex);
+      }
+      try {
+        return fetchHttp(
+            (HttpURLConnection) uri.toURL().openConnection(), ref, mimeType);
+      } catch (IOException ex) {
+        throw new UriFetchException(ref, mimeType, ex);
+      } finally {
+        limit.permits.release();
+      }
+    } finally {
+      exit(host, limit);
+    }
+  }
+
+  /**
+   * Thrown, as the cause of a {@link UriFetchException}, when a fetch gave up
+   * waiting for one of the host's connections without contacting the host.
+   */
+  public static final class HostThrottledException extends IOException {
+    private static final long serialVersionUID = -1563278957430158574L;
+
+    HostThrottledException(String host) {
+      super("Too many connections to " + host);
+    }
+  }
+
+  /**
+   * Hook for subclasses to add request headers or otherwise configure a
+   * connection before it is connected.
+   */
+  protected void configure(HttpURLConnection conn) {
+    // appengine has a caching http proxy; this limits it
+    conn.setRequestProperty("Cache-Control", "max-age=10");
+  }
+
+  /**
+   * Hook for subclasses to observe each successful fetch.
+   *
+   * @param connectNanos time spent connecting and waiting for the response
+   *     headers.
+   * @param readNanos time spent reading the response body.
+   * @param byteCount the size of the response body as received, before any
+   *     decompression.
+   */
+  protected void fetched(
+      ExternalReference ref, long connectNanos, long readNanos,
+      long byteCount) {
+    // nothing by default
+  }
+
+  private FetchedData fetchHttp(
+      HttpURLConnection conn, ExternalReference ref, String mimeType)
+      throws IOException, UriFetchException {
+    conn.setConnectTimeout(connectTimeoutMillis);
+    conn.setReadTimeout(readTimeoutMillis);
+    conn.setUseCaches(false);
+    conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+    configure(conn);
+    long start = System.nanoTime();
+    conn.connect();
+
+    int status = conn.getResponseCode();
+    long connected = System.nanoTime();
+    if (status < 200 || status >= 300) {
+      // Drain the body so the connection can go back to the keep-alive pool.
+      discard(conn.getErrorStream());
+      throw new UriFetchException(
+          ref, mimeType, new IOException("HTTP status " + status));
+    }
+    CountingInputStream in = new CountingInputStream(conn.getInputStream());
+    FetchedData data = FetchedData.fromConnection(conn, decode(conn, in));
+    fetched(ref, connected - start, System.nanoTime() - connected, in.count);
+    return data;
+  }
+
+  private static InputStream decode(HttpURLConnection conn, InputStream in)
+      throws IOException {
+    String encoding = conn.getContentEncoding();
+    if (encoding == null) { return in; }
+    encoding = Strings.lower(encoding.trim());
+    try {
+      if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+        return new GZIPInputStream(in);
+      } else if ("deflate".equals(encoding)) {
+        return new InflaterInputStream(in);
+      } else if ("identity".equals(encoding) || "".equals(encoding)) {
+        return in;
+      }
+    } catch (IOException ex) {
+      in.close();
+      throw ex;
+    }
+    in.close();
+    throw new IOException("Unsupported content encoding " + encoding);
+  }
+
+  private static void discard(InputStream in) throws IOException {
+    if (in == null) { return; }
+    try {
+      byte[] buf = new byte[4096];
+      while (in.read(buf) >= 0) { /* discard */ }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static final class CountingInputStream extends FilterInputStream {
+    long count;
+
+    CountingInputStream(InputStream in) { super(in); }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) { ++count; }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+      int n = super.read(buf, off, len);
+      if (n > 0) { count += n; }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+
+  /** The connection limit of one host and the fetches that are using it. */
+  private final class HostLimit {
+    final Semaphore permits = new Semaphore(maxConnectionsPerHost, true);
+    /** Fetches waiting for or holding a permit.  Guarded by hostLimits. */
+    int users;
+  }
+
+  /** Registers a fetch from host and returns the limit it must honor. */
+  private HostLimit enter(String host) {
+    synchronized (hostLimits) {
+      HostLimit limit = hostLimits.get(host);
+      if (limit == null) {
+        limit = new HostLimit();
+        hostLimits.put(host, limit);
+      }
+      ++limit.users;
+      return limit;
+    }
+  }
+
+  /**
+   * Undoes {@link #enter} once the fetch no longer holds or waits for a
+   * permit, dropping the limit if no other fetch is using it.
+   */
+  private void exit(String host, HostLimit limit) {
+    synchronized (hostLimits) {
+      if (--limit.users == 0) { hostLimits.remove(host); }
+    }
+  }
+
+  /** The number of hosts that have a fetch waiting or in flight. */
+  int getTrackedHostCount() {
+    synchronized (hostLimits) { return hostLimits.size(); }
+  }
+}
@@ -15,6 +15,7 @@
 package com.google.caja.plugin;
 
 import java.util.List;
+import java.util.concurrent.Executor;
 import com.google.caja.CajaException;
 import com.google.caja.lexer.ExternalReference;
 import com.google.caja.lexer.FetchedData;
@@ -77,9 +78,9 @@ public interface UriFetcher {
   public final static class ChainingUriFetcher {
     public static UriFetcher make(final UriFetcher... fetchers) {
       return new UriFetcher() {
-        List<Throwable> causes = Lists.newArrayList();
         public FetchedData fetch(ExternalReference ref, String mimeType)
             throws UriFetchException {
+          List<Throwable> causes = Lists.newArrayList();
           for (UriFetcher fetcher : fetchers) {
             try {
               return fetcher.fetch(ref, mimeType);
@@ -92,6 +93,18 @@ public interface UriFetcher {
         }
       };
     }
+
+    /**
+     * Like {@link #make} but does not wait for a fetcher to fail before
+     * trying the next; see {@link HedgingUriFetcher}.
+     *
+     * @param hedgeDelayMillis how long to wait for one fetcher before also
+     *     starting the next, or zero to start them all at once.
+     */
+    public static UriFetcher makeHedged(
+        Executor executor, long hedgeDelayMillis, UriFetcher... fetchers) {
+      return new HedgingUriFetcher(executor, hedgeDelayMillis, fetchers);
+    }
   }
 
 }
@@ -0,0 +1,276 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
+
+/**
+ * A Jetty handler that serves {@link ProxyServlet} GET and batch POST
+ * requests without tying up a server thread for the duration of the origin
+ * fetches.
+ *
+ * <p>Each fetch runs on a bounded pool of worker threads while the request is
+ * suspended.  At most {@code maxInFlight} fetches run at once, counting each
+ * entry of a batch as a fetch, and at most {@code maxQueued} more requests
+ * wait for a worker; requests beyond that are rejected with a 503 so that a
+ * slow origin backs up its own requests instead of every server thread.  A
+ * request whose fetch does not finish within the timeout gets a 504.
+ *
+ * <p>With a {@code SelectChannelConnector}, the default for an embedded
+ * {@code Server}, a suspended request releases its thread.  Other connectors
+ * block the server thread as before but still honor the limits.
+ */
+public class AsyncProxyHandler extends AbstractHandler {
+  public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+  public static final int DEFAULT_MAX_QUEUED = 256;
+  /** Long enough for the default fetcher's connect and read timeouts. */
+  public static final long DEFAULT_TIMEOUT_MILLIS = 35000;
+
+  private final ProxyServlet servlet;
+  private final ThreadPoolExecutor executor;
+  private final int maxInFlight;
+  /** Held by each GET and each batch entry while it is handled. */
+  private final Semaphore fetchPermits;
+  private final long timeoutMillis;
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong timeoutCount = new AtomicLong();
+
+  public AsyncProxyHandler(ProxyServlet servlet) {
+    this(servlet, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_QUEUED,
+         DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param maxInFlight the maximum number of origin fetches to run at once.
+   * @param maxQueued the maximum number of requests that may wait for a
+   *     fetch to finish before new requests are rejected.
+   * @param timeoutMillis how long a request waits for its response before
+   *     it is abandoned.
+   */
+  public AsyncProxyHandler(
+      ProxyServlet servlet, int maxInFlight, int maxQueued,
+      long timeoutMillis) {
+    if (maxInFlight <= 0) {
+      throw new IllegalArgumentException("" + maxInFlight);
+    }
+    if (maxQueued < 0) {
+      throw new IllegalArgumentException("" + maxQueued);
+    }
+    this.servlet = servlet;
+    this.timeoutMillis = timeoutMillis;
+    this.maxInFlight = maxInFlight;
+    this.fetchPermits = new Semaphore(maxInFlight);
+    BlockingQueue<Runnable> queue = maxQueued == 0
+        ? new SynchronousQueue<Runnable>()
+        : new ArrayBlockingQueue<Runnable>(maxQueued);
+    this.executor = new ThreadPoolExecutor(
+        maxInFlight, maxInFlight, 60, TimeUnit.SECONDS, queue,
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(
+                r, "proxy-fetch-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  /** The number of requests waiting for a worker. */
+  public int getQueueDepth() { return executor.getQueue().size(); }
+
+  /** The number of origin fetches currently running. */
+  public int getInFlightCount() {
+    return maxInFlight - fetchPermits.availablePermits();
+  }
+
+  /** The number of requests turned away because the queue was full. */
+  public long getRejectedCount() { return rejectedCount.get(); }
+
+  /** The number of requests that did not get a response in time. */
+  public long getTimeoutCount() { return timeoutCount.get(); }
+
+  public void handle(
+      String target, HttpServletRequest req, HttpServletResponse resp,
+      int dispatch)
+      throws IOException, ServletException {
+    String method = req.getMethod();
+    if (!("GET".equals(method) || "POST".equals(method))) {
+      servlet.service(req, resp);
+      return;
+    }
+
+    Continuation continuation = ContinuationSupport.getContinuation(req, null);
+    PendingFetch fetch = (PendingFetch) continuation.getObject();
+    if (fetch == null) {
+      ProxyServlet.checkRequestUri(req);
+      MessageQueue mq = new SimpleMessageQueue();
+      Callable<ProxyServlet.PreparedResponse> task;
+      if ("GET".equals(method)) {
+        task = handleTask(snapshotArgs(req), mq);
+      } else {
+        // Read the body now since the request is not usable from the worker.
+        List<ContentHandlerArgs> batch = ProxyServlet.readBatch(req, mq);
+        if (batch == null) {
+          ProxyServlet.sendBadRequest(resp, mq);
+          return;
+        }
+        task = batchTask(batch, mq);
+      }
+      fetch = new PendingFetch(continuation, task, mq);
+      try {
+        executor.execute(fetch);
+      } catch (RejectedExecutionException ex) {
+        rejectedCount.incrementAndGet();
+        resp.sendError(
+            HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+            "Too many pending requests");
+        return;
+      }
+      continuation.setObject(fetch);
+      // The lock makes checking for completion and suspending atomic with
+      // respect to PendingFetch.done, since a resume that arrives before
+      // the suspend is lost.  Suspending either throws, to be retried once
+      // resumed, or waits on the same monitor, so neither holds the lock
+      // while the request is suspended.
+      synchronized (continuation) {
+        if (!fetch.isDone()) { continuation.suspend(timeoutMillis); }
+      }
+    }
+
+    if (!fetch.isDone()) {
+      fetch.cancel(true);
+      timeoutCount.incrementAndGet();
+      resp.sendError(
+          HttpServletResponse.SC_GATEWAY_TIMEOUT, "Timed out fetching content");
+      return;
+    }
+    ProxyServlet.PreparedResponse result;
+    try {
+      result = fetch.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw (ServletException) new ServletException().initCause(ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw (ServletException) new ServletException().initCause(cause);
+    }
+    servlet.writePrepared(resp, result);
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    executor.shutdownNow();
+    super.doStop();
+  }
+
+  /**
+   * Fetches on a worker, leaving the response to be streamed by the
+   * request's thread once resumed.
+   */
+  private Callable<ProxyServlet.PreparedResponse> handleTask(
+      final ContentHandlerArgs args, final MessageQueue mq) {
+    return new Callable<ProxyServlet.PreparedResponse>() {
+      public ProxyServlet.PreparedResponse call()
+          throws InterruptedException {
+        fetchPermits.acquire();
+        try {
+          return servlet.prepare(args, mq);
+        } finally {
+          fetchPermits.release();
+        }
+      }
+    };
+  }
+
+  private Callable<ProxyServlet.PreparedResponse> batchTask(
+      final List<ContentHandlerArgs> batch, final MessageQueue mq) {
+    return new Callable<ProxyServlet.PreparedResponse>() {
+      public ProxyServlet.PreparedResponse call() {
+        return new ProxyServlet.PreparedResponse(
+            mq, servlet.handleBatch(batch, fetchPermits));
+      }
+    };
+  }
+
+  /**
+   * Copies the request parameters since the fetch reads them on another
+   * thread.
+   */
+  private static ContentHandlerArgs snapshotArgs(HttpServletRequest req) {
+    final Map<String, String> params = Maps.newHashMap();
+    for (Object name : req.getParameterMap().keySet()) {
+      params.put((String) name, req.getParameter((String) name));
+    }
+    return new ContentHandlerArgs() {
+      @Override
+      public String get(String name) { return params.get(name); }
+    };
+  }
+
+  /** A fetch that resumes its request when it completes. */
+  private static final class PendingFetch
+      extends FutureTask<ProxyServlet.PreparedResponse> {
+    final Continuation continuation;
+    final MessageQueue mq;
+
+    /** @param mq the message queue that task reports problems to. */
+    PendingFetch(
+        Continuation continuation,
+        Callable<ProxyServlet.PreparedResponse> task,
+        MessageQueue mq) {
+      super(task);
+      this.continuation = continuation;
+      this.mq = mq;
+    }
+
+    @Override
+    protected void done() {
+      synchronized (continuation) { continuation.resume(); }
+    }
+  }
+}
@@ -0,0 +1,78 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import com.google.caja.lexer.Keyword;
+import com.google.caja.parser.ParserBase;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Decides whether a JSONP callback name is safe to echo into a response.
+ *
+ * <p>A callback is accepted if it could be declared with {@code var}, i.e. it
+ * is a javascript identifier per {@link ParserBase#isJavascriptIdentifier}
+ * and not a {@link Keyword}.  Names containing escape sequences are rejected
+ * since their decoded form is what a browser would call.
+ *
+ * <p>Pages tend to use the same few callback names over and over, so names
+ * that pass are remembered in a small direct-mapped table and later checks
+ * for them neither allocate nor rescan the name.  Rejected names are not
+ * remembered, so bad input cannot push good names out.
+ *
+ * <p>This class is thread-safe.
+ */
+final class JsonpCallbackCheck {
+  private static final int DEFAULT_MEMO_SIZE = 256;
+
+  private final AtomicReferenceArray<String> memo;
+  private final int mask;
+
+  JsonpCallbackCheck() { this(DEFAULT_MEMO_SIZE); }
+
+  /** @param memoSize a power of two. */
+  JsonpCallbackCheck(int memoSize) {
+    if (memoSize <= 0 || (memoSize & (memoSize - 1)) != 0) {
+      throw new IllegalArgumentException("" + memoSize);
+    }
+    this.memo = new AtomicReferenceArray<String>(memoSize);
+    this.mask = memoSize - 1;
+  }
+
+  boolean check(String candidate) {
+    int slot = slotFor(candidate);
+    if (candidate.equals(memo.get(slot))) { return true; }
+    if (!isValid(candidate)) { return false; }
+    memo.set(slot, candidate);
+    return true;
+  }
+
+  /** True if the name is remembered as valid. */
+  boolean isMemoized(String candidate) {
+    return candidate.equals(memo.get(slotFor(candidate)));
+  }
+
+  static boolean isValid(String candidate) {
+    return ParserBase.isJavascriptIdentifier(candidate)
+        // decodeIdentifier returns its input when there is nothing to decode.
+        && candidate.equals(ParserBase.decodeIdentifier(candidate))
+        && !Keyword.isKeyword(candidate);
+  }
+
+  private int slotFor(String candidate) {
+    int h = candidate.hashCode();
+    return (h ^ (h >>> 16)) & mask;
+  }
+}
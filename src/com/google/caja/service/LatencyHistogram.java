@@ -0,0 +1,93 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations with logarithmic buckets.
+ *
+ * <p>Each power of two microseconds is split into four buckets, so a
+ * percentile is accurate to within about 25%, which is plenty to tell where
+ * time goes, in constant space regardless of the number of samples.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int N_BUCKETS = 64 * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(N_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  /** Records one sample. */
+  public void record(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    buckets.incrementAndGet(bucketOf(micros));
+    count.incrementAndGet();
+    totalMicros.addAndGet(micros);
+    for (long max; (max = maxMicros.get()) < micros;) {
+      if (maxMicros.compareAndSet(max, micros)) { break; }
+    }
+  }
+
+  public long getCount() { return count.get(); }
+
+  public long getTotalMicros() { return totalMicros.get(); }
+
+  public long getMaxMicros() { return maxMicros.get(); }
+
+  /**
+   * An upper bound on the given fraction of samples, in microseconds.
+   *
+   * @param fraction in (0, 1], e.g. 0.99 for the 99th percentile.
+   * @return 0 if there are no samples.
+   */
+  public long percentileMicros(double fraction) {
+    long n = count.get();
+    if (n == 0) { return 0; }
+    long rank = (long) Math.ceil(fraction * n);
+    if (rank < 1) { rank = 1; }
+    long seen = 0;
+    for (int i = 0; i < N_BUCKETS; ++i) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return Math.min(upperBound(i), maxMicros.get());
+      }
+    }
+    // Not reached since a sample is bucketed before it is counted.
+    return maxMicros.get();
+  }
+
+  /* visible for testing */ static int bucketOf(long micros) {
+    if (micros < SUB_BUCKETS) { return (int) micros; }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS))
+        & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /** The largest duration in the given bucket. */
+  /* visible for testing */ static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) { return bucket; }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    if (exponent >= 63) { return Long.MAX_VALUE; }
+    long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+}
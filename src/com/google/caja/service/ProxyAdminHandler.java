@@ -0,0 +1,197 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import com.google.caja.plugin.BackoffUriFetcher;
+import com.google.caja.util.Json;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONObject;
+import org.mortbay.jetty.HttpConnection;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+/**
+ * Serves the metrics of a {@link ProxyServlet}.  This is meant to be
+ * reachable only from the local machine.
+ *
+ * <ul>
+ *   <li>{@code /metrics} responds with a JSON object.
+ *   <li>{@code /metrics.txt} responds with one {@code name{labels} value}
+ *     line per metric, as understood by common monitoring scrapers.
+ * </ul>
+ *
+ * Latencies are in microseconds.
+ */
+public class ProxyAdminHandler extends AbstractHandler {
+  private static final double[] QUANTILES = { 0.5, 0.95, 0.99 };
+  private static final String PREFIX = "caja_proxy_";
+
+  private final ProxyServlet servlet;
+  private final AsyncProxyHandler proxyHandler;
+
+  /**
+   * @param proxyHandler the handler serving servlet, if any, whose queue
+   *     gauges are reported.
+   */
+  public ProxyAdminHandler(
+      ProxyServlet servlet, @Nullable AsyncProxyHandler proxyHandler) {
+    this.servlet = servlet;
+    this.proxyHandler = proxyHandler;
+  }
+
+  public void handle(
+      String target, HttpServletRequest req, HttpServletResponse resp,
+      int dispatch)
+      throws IOException {
+    String body;
+    if ("/metrics".equals(target)) {
+      resp.setContentType("application/json; charset=UTF-8");
+      body = renderJson().toJSONString();
+    } else if ("/metrics.txt".equals(target)) {
+      resp.setContentType("text/plain; charset=UTF-8");
+      body = renderText();
+    } else {
+      return;
+    }
+    Request baseRequest = req instanceof Request
+        ? (Request) req : HttpConnection.getCurrentConnection().getRequest();
+    baseRequest.setHandled(true);
+    resp.setStatus(HttpServletResponse.SC_OK);
+    Writer out = resp.getWriter();
+    out.write(body);
+    out.close();
+  }
+
+  JSONObject renderJson() {
+    ProxyMetrics metrics = servlet.getMetrics();
+    JSONObject o = new JSONObject();
+
+    JSONObject latencies = new JSONObject();
+    for (ProxyMetrics.Phase phase : ProxyMetrics.Phase.values()) {
+      LatencyHistogram h = metrics.getLatency(phase);
+      JSONObject latency = new JSONObject();
+      Json.put(latency, "count", h.getCount(), "totalMicros",
+               h.getTotalMicros(), "maxMicros", h.getMaxMicros());
+      for (double q : QUANTILES) {
+        Json.put(latency, "p" + percent(q), h.percentileMicros(q));
+      }
+      Json.put(latencies, phase.getMetricName(), latency);
+    }
+    Json.put(o, "latency", latencies);
+
+    Json.put(o, "bytesIn", metrics.getBytesIn(),
+             "bytesOut", metrics.getBytesOut());
+
+    JSONObject errors = new JSONObject();
+    for (Map.Entry<String, Long> e : metrics.getErrorCounts().entrySet()) {
+      Json.put(errors, e.getKey(), e.getValue());
+    }
+    Json.put(o, "errors", errors);
+
+    ProxyResponseCache cache = servlet.getResponseCache();
+    if (cache != null) {
+      JSONObject c = new JSONObject();
+      Json.put(c, "hits", cache.getHitCount(), "misses", cache.getMissCount(),
+               "evictions", cache.getEvictionCount(),
+               "entries", cache.size(), "bytes", cache.getByteSize());
+      Json.put(o, "cache", c);
+    }
+
+    BackoffUriFetcher backoff = servlet.getOriginBackoff();
+    if (backoff != null) {
+      JSONObject b = new JSONObject();
+      Json.put(b, "hosts", backoff.getBackingOffHostCount(),
+               "uris", backoff.getBackingOffUriCount(),
+               "fastFailures", backoff.getFastFailureCount(),
+               "backoffs", backoff.getBackoffCount());
+      Json.put(o, "backoff", b);
+    }
+
+    if (proxyHandler != null) {
+      JSONObject q = new JSONObject();
+      Json.put(q, "depth", proxyHandler.getQueueDepth(),
+               "inFlight", proxyHandler.getInFlightCount(),
+               "rejected", proxyHandler.getRejectedCount(),
+               "timedOut", proxyHandler.getTimeoutCount());
+      Json.put(o, "queue", q);
+    }
+    return o;
+  }
+
+  String renderText() {
+    ProxyMetrics metrics = servlet.getMetrics();
+    StringBuilder sb = new StringBuilder();
+    for (ProxyMetrics.Phase phase : ProxyMetrics.Phase.values()) {
+      LatencyHistogram h = metrics.getLatency(phase);
+      String label = "phase=\"" + phase.getMetricName() + "\"";
+      for (double q : QUANTILES) {
+        line(sb, "latency_micros", label + ",quantile=\"" + q + "\"",
+             h.percentileMicros(q));
+      }
+      line(sb, "latency_micros_count", label, h.getCount());
+      line(sb, "latency_micros_sum", label, h.getTotalMicros());
+      line(sb, "latency_micros_max", label, h.getMaxMicros());
+    }
+    line(sb, "bytes_in", null, metrics.getBytesIn());
+    line(sb, "bytes_out", null, metrics.getBytesOut());
+    for (Map.Entry<String, Long> e : metrics.getErrorCounts().entrySet()) {
+      line(sb, "errors", "type=\"" + e.getKey() + "\"", e.getValue());
+    }
+
+    ProxyResponseCache cache = servlet.getResponseCache();
+    if (cache != null) {
+      line(sb, "cache_hits", null, cache.getHitCount());
+      line(sb, "cache_misses", null, cache.getMissCount());
+      line(sb, "cache_evictions", null, cache.getEvictionCount());
+      line(sb, "cache_entries", null, cache.size());
+      line(sb, "cache_bytes", null, cache.getByteSize());
+    }
+
+    BackoffUriFetcher backoff = servlet.getOriginBackoff();
+    if (backoff != null) {
+      line(sb, "backoff_hosts", null, backoff.getBackingOffHostCount());
+      line(sb, "backoff_uris", null, backoff.getBackingOffUriCount());
+      line(sb, "backoff_fast_failures", null, backoff.getFastFailureCount());
+      line(sb, "backoffs", null, backoff.getBackoffCount());
+    }
+
+    if (proxyHandler != null) {
+      line(sb, "queue_depth", null, proxyHandler.getQueueDepth());
+      line(sb, "in_flight", null, proxyHandler.getInFlightCount());
+      line(sb, "rejected", null, proxyHandler.getRejectedCount());
+      line(sb, "timed_out", null, proxyHandler.getTimeoutCount());
+    }
+    return sb.toString();
+  }
+
+  private static void line(
+      StringBuilder sb, String name, @Nullable String labels, long value) {
+    sb.append(PREFIX).append(name);
+    if (labels != null) { sb.append('{').append(labels).append('}'); }
+    sb.append(' ').append(value).append('\n');
+  }
+
+  private static String percent(double q) {
+    return Long.toString(Math.round(q * 100));
+  }
+}
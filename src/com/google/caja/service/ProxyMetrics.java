@@ -0,0 +1,118 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessageLevel;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.MessageTypeInt;
+import com.google.caja.util.Strings;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms describing the work done by a
+ * {@link ProxyServlet}.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class ProxyMetrics {
+  /** The stages of serving a request that are timed separately. */
+  public enum Phase {
+    /** Getting content from the fetcher, including any wait for a peer. */
+    FETCH,
+    /** Connecting to the origin and waiting for its response headers. */
+    CONNECT,
+    /** Reading the response body from the origin. */
+    READ,
+    /** Decoding the content to characters. */
+    DECODE,
+    /** Rendering the response envelope. */
+    RENDER,
+    /** Checking that a JSONP callback is a safe identifier. */
+    VALIDATE,
+    ;
+
+    /** The name used in rendered metrics. */
+    public String getMetricName() { return Strings.lower(name()); }
+  }
+
+  private final Map<Phase, LatencyHistogram> latencies;
+  private final AtomicLong bytesIn = new AtomicLong();
+  private final AtomicLong bytesOut = new AtomicLong();
+  private final ConcurrentMap<String, AtomicLong> errorCounts
+      = Maps.newConcurrentMap();
+
+  public ProxyMetrics() {
+    Map<Phase, LatencyHistogram> latencies
+        = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+    for (Phase phase : Phase.values()) {
+      latencies.put(phase, new LatencyHistogram());
+    }
+    this.latencies = Collections.unmodifiableMap(latencies);
+  }
+
+  public void recordLatency(Phase phase, long nanos) {
+    latencies.get(phase).record(nanos);
+  }
+
+  public LatencyHistogram getLatency(Phase phase) {
+    return latencies.get(phase);
+  }
+
+  /** Counts bytes received from origins. */
+  public void recordBytesIn(long n) { bytesIn.addAndGet(n); }
+
+  /** Counts bytes of response bodies sent to clients. */
+  public void recordBytesOut(long n) { bytesOut.addAndGet(n); }
+
+  public long getBytesIn() { return bytesIn.get(); }
+
+  public long getBytesOut() { return bytesOut.get(); }
+
+  /** Counts the errors that caused a request to fail, by message type. */
+  public void recordErrors(MessageQueue mq) {
+    for (Message m : mq.getMessages()) {
+      if (m.getMessageLevel().compareTo(MessageLevel.ERROR) < 0) { continue; }
+      String type = m.getMessageType().name();
+      AtomicLong count = errorCounts.get(type);
+      if (count == null) {
+        AtomicLong newCount = new AtomicLong();
+        count = errorCounts.putIfAbsent(type, newCount);
+        if (count == null) { count = newCount; }
+      }
+      count.incrementAndGet();
+    }
+  }
+
+  public long getErrorCount(MessageTypeInt type) {
+    AtomicLong count = errorCounts.get(type.name());
+    return count != null ? count.get() : 0;
+  }
+
+  /** Error counts keyed by message type name. */
+  public Map<String, Long> getErrorCounts() {
+    Map<String, Long> counts = Maps.newTreeMap();
+    for (Map.Entry<String, AtomicLong> e : errorCounts.entrySet()) {
+      counts.put(e.getKey(), e.getValue().get());
+    }
+    return counts;
+  }
+}
@@ -0,0 +1,195 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import com.google.caja.lexer.FetchedData;
+import com.google.caja.lexer.InputSource;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A bounded in-memory cache of rendered proxy responses.
+ *
+ * <p>Responses are keyed by the request arguments that determine their
+ * content: the {@link CajaArguments#URL url}, the
+ * {@link CajaArguments#INPUT_MIME_TYPE input MIME type}, and the
+ * {@link CajaArguments#ALT alt} and {@link CajaArguments#CALLBACK callback}
+ * that select the JSON envelope.
+ * An entry is reused for as long as the origin said its content is fresh, and
+ * entries are evicted least-recently-used first to keep the total size of
+ * cached content within a byte budget.
+ *
+ * <p>This class is thread-safe.
+ */
+public class ProxyResponseCache {
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  private final long defaultLifetime;
+  /** Access ordered so that iteration starts at the least recently used. */
+  private final LinkedHashMap<List<String>, Entry> entries
+      = new LinkedHashMap<List<String>, Entry>(16, 0.75f, true);
+  private long byteSize;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+
+  /**
+   * @param maxBytes the maximum total size of cached responses.
+   * @param defaultLifetime the number of milliseconds to reuse a response for
+   *     when the origin did not specify a
+   *     {@link FetchedData#getFreshnessLifetime freshness lifetime}.
+   */
+  public ProxyResponseCache(long maxBytes, long defaultLifetime) {
+    this(maxBytes, maxBytes, defaultLifetime);
+  }
+
+  /**
+   * @param maxEntryBytes the size of the largest response to cache, which
+   *     bounds the copy kept of a response while it is streamed.
+   */
+  public ProxyResponseCache(
+      long maxBytes, long maxEntryBytes, long defaultLifetime) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+    this.defaultLifetime = defaultLifetime;
+  }
+
+  /**
+   * @return the cached response for the given request, or null if there is
+   *     no fresh response.
+   */
+  public synchronized FetchedData get(ContentHandlerArgs args) {
+    List<String> key = keyFor(args);
+    Entry e = entries.get(key);
+    if (e != null && e.expiration <= currentTime()) {
+      remove(key);
+      e = null;
+    }
+    if (e == null) {
+      ++missCount;
+      return null;
+    }
+    ++hitCount;
+    return FetchedData.fromBytes(e.content, e.contentType, e.charSet, e.src);
+  }
+
+  /**
+   * Caches a response to the given request.
+   *
+   * @param content the rendered response which must not be modified after
+   *     this call.
+   * @param freshnessLifetime the origin's freshness lifetime of the proxied
+   *     content as given by {@link FetchedData#getFreshnessLifetime}.
+   */
+  public synchronized void put(
+      ContentHandlerArgs args, byte[] content, String contentType,
+      String charSet, InputSource src, long freshnessLifetime) {
+    long lifetime = freshnessLifetime == FetchedData.UNKNOWN_FRESHNESS
+        ? defaultLifetime : freshnessLifetime;
+    List<String> key = keyFor(args);
+    remove(key);
+    if (lifetime <= 0) { return; }
+    long now = currentTime();
+    // Saturates since origins may ask for lifetimes of up to Long.MAX_VALUE.
+    long expiration = now + Math.min(lifetime, Long.MAX_VALUE - now);
+    Entry e = new Entry(
+        content, contentType, charSet, src, expiration, sizeOf(key, content));
+    if (e.size > maxEntryBytes) { return; }
+    entries.put(key, e);
+    byteSize += e.size;
+    for (Iterator<Entry> it = entries.values().iterator();
+         byteSize > maxBytes && it.hasNext();) {
+      byteSize -= it.next().size;
+      it.remove();
+      ++evictionCount;
+    }
+  }
+
+  /** Discards all cached responses. */
+  public synchronized void clear() {
+    entries.clear();
+    byteSize = 0;
+  }
+
+  /** The largest response that may be cached. */
+  public long getMaxEntryBytes() { return maxEntryBytes; }
+
+  /** The number of requests that were answered from the cache. */
+  public synchronized long getHitCount() { return hitCount; }
+
+  /** The number of requests that could not be answered from the cache. */
+  public synchronized long getMissCount() { return missCount; }
+
+  /** The number of responses discarded to stay within the byte budget. */
+  public synchronized long getEvictionCount() { return evictionCount; }
+
+  /** The approximate number of bytes used by cached responses. */
+  public synchronized long getByteSize() { return byteSize; }
+
+  /** The number of cached responses, including any that have expired. */
+  public synchronized int size() { return entries.size(); }
+
+  /** The current time in milliseconds.  Overridable for testing. */
+  protected long currentTime() { return System.currentTimeMillis(); }
+
+  private void remove(List<String> key) {
+    Entry e = entries.remove(key);
+    if (e != null) { byteSize -= e.size; }
+  }
+
+  private static List<String> keyFor(ContentHandlerArgs args) {
+    return Arrays.asList(
+        CajaArguments.URL.get(args),
+        CajaArguments.INPUT_MIME_TYPE.get(args),
+        CajaArguments.ALT.get(args),
+        CajaArguments.CALLBACK.get(args));
+  }
+
+  private static long sizeOf(List<String> key, byte[] content) {
+    long size = content.length;
+    for (String part : key) {
+      if (part != null) { size += 2 * part.length(); }
+    }
+    return size;
+  }
+
+  private static final class Entry {
+    final byte[] content;
+    final String contentType;
+    final String charSet;
+    final InputSource src;
+    final long expiration;
+    final long size;
+
+    Entry(byte[] content, String contentType, String charSet, InputSource src,
+          long expiration, long size) {
+      this.content = content;
+      this.contentType = contentType;
+      this.charSet = charSet;
+      this.src = src;
+      this.expiration = expiration;
+      this.size = size;
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "[ProxyResponseCache hits=" + hitCount + " misses=" + missCount
+        + " evictions=" + evictionCount + " bytes=" + byteSize + "]";
+  }
+}
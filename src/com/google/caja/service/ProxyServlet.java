@@ -15,19 +15,16 @@
 package com.google.caja.service;
 
 import com.google.caja.SomethingWidgyHappenedError;
-import com.google.caja.lexer.CharProducer;
 import com.google.caja.lexer.ExternalReference;
 import com.google.caja.lexer.FetchedData;
 import com.google.caja.lexer.FilePosition;
 import com.google.caja.lexer.InputSource;
-import com.google.caja.lexer.JsLexer;
-import com.google.caja.lexer.JsTokenQueue;
-import com.google.caja.lexer.ParseException;
 import com.google.caja.lexer.escaping.Escaping;
-import com.google.caja.parser.ParseTreeNode;
-import com.google.caja.parser.js.Identifier;
-import com.google.caja.parser.js.Parser;
-import com.google.caja.parser.quasiliteral.QuasiBuilder;
+import com.google.caja.plugin.BackoffUriFetcher;
+import com.google.caja.plugin.CoalescingUriFetcher;
+import com.google.caja.plugin.DiskCachingUriFetcher;
+import com.google.caja.plugin.FetchedDataStore;
+import com.google.caja.plugin.HttpUriFetcher;
 import com.google.caja.plugin.UriFetcher;
 import com.google.caja.reporting.Message;
 import com.google.caja.reporting.MessageContext;
@@ -38,8 +35,9 @@ import com.google.caja.util.Charsets;
 import com.google.caja.util.ContentType;
 import com.google.caja.util.Json;
 import com.google.caja.util.Pair;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Lists;
 
+import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -47,17 +45,29 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Map;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Proxy service used to allow Caja to load cross-origin content.
@@ -86,33 +96,167 @@ public class ProxyServlet extends HttpServlet {
     }
   }
 
+  /** The byte budget of the default response cache. */
+  private static final long DEFAULT_CACHE_BYTES = 32 << 20;  // 32MB
+  /**
+   * The largest response that the default response cache keeps.  Each
+   * streamed cache miss holds a copy of up to this much until it completes.
+   */
+  private static final long DEFAULT_CACHE_ENTRY_BYTES = 1 << 20;  // 1MB
+  /**
+   * How long the default response cache reuses content whose origin did not
+   * specify a lifetime.  This matches the max-age the default fetcher already
+   * tolerates from intermediate caches.
+   */
+  private static final long DEFAULT_CACHE_LIFETIME_MILLIS = 10000;
+  /**
+   * How long the disk cache keeps content whose origin did not specify a
+   * lifetime.  This is longer than the response cache's lifetime, since the
+   * disk cache exists to serve content across a restart, and that content
+   * would mostly be gone by then after ten seconds.  An hour bounds how stale
+   * such content gets while still covering a restart.
+   */
+  private static final long DEFAULT_DISK_CACHE_LIFETIME_MILLIS = 3600000;
+
+  /** Shared by all instances so that they share a memo of good names. */
+  private static final JsonpCallbackCheck CALLBACK_CHECK
+      = new JsonpCallbackCheck();
+
+  /** The most entries that a batch request may have. */
+  static final int MAX_BATCH_SIZE = 64;
+  /** The most bytes of batch request body that will be read. */
+  private static final int MAX_BATCH_REQUEST_BYTES = 64 << 10;
+  /** The most entries of one batch that are handled at once. */
+  private static final int MAX_BATCH_PARALLELISM = 8;
+  /** The most threads helping with batches across all requests. */
+  private static final int MAX_BATCH_THREADS = 32;
+
   private final ContentTypeCheck typeCheck = new LooseContentTypeCheck();
   private final UriFetcher uriFetcher;
-
+  private final ProxyResponseCache responseCache;
+  private final ProxyMetrics metrics;
+  private final BackoffUriFetcher originBackoff;
   /**
-   * Use default UriFetcher.
+   * Runs batch entries alongside the requesting thread.  This never queues;
+   * when it is busy, the requesting thread handles more of its batch itself.
    */
-  public ProxyServlet() {
-    this(new UriFetcher() {
-        public FetchedData fetch(ExternalReference ref, String mimeType)
-            throws UriFetchException {
-          try {
-            HttpURLConnection conn = (HttpURLConnection)
-                ref.getUri().toURL().openConnection();
-            // appengine has a caching http proxy; this limits it
-            conn.setRequestProperty("Cache-Control", "max-age=10");
-            conn.setConnectTimeout(15000);
-            conn.setReadTimeout(15000);
-            return FetchedData.fromConnection(conn);
-          } catch (IOException ex) {
-            throw new UriFetchException(ref, mimeType, ex);
-          }
+  private final ThreadPoolExecutor batchExecutor = new ThreadPoolExecutor(
+      0, MAX_BATCH_THREADS, 60, TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(),
+      new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "proxy-batch-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
         }
       });
+
+  /**
+   * Use default UriFetcher and a default response cache.
+   */
+  public ProxyServlet() {
+    this(new ProxyMetrics(), null);
+  }
+
+  /**
+   * Use default UriFetcher and a default response cache, backed by content
+   * kept on disk so that it survives restarts.
+   */
+  public ProxyServlet(FetchedDataStore diskCache) {
+    this(new ProxyMetrics(), diskCache);
+  }
+
+  private ProxyServlet(
+      ProxyMetrics metrics, @Nullable FetchedDataStore diskCache) {
+    // Requests for content from a failing origin fail fast.
+    this(metrics, new BackoffUriFetcher(new MeteredHttpUriFetcher(metrics)),
+         diskCache);
+  }
+
+  private ProxyServlet(
+      ProxyMetrics metrics, BackoffUriFetcher originBackoff,
+      @Nullable FetchedDataStore diskCache) {
+    // Concurrent requests for the same expired content share one fetch.
+    this(new CoalescingUriFetcher(defaultFetcher(originBackoff, diskCache)),
+      new ProxyResponseCache(
+          DEFAULT_CACHE_BYTES, DEFAULT_CACHE_ENTRY_BYTES,
+          DEFAULT_CACHE_LIFETIME_MILLIS),
+      metrics, originBackoff);
+  }
+
+  private static UriFetcher defaultFetcher(
+      BackoffUriFetcher originBackoff, @Nullable FetchedDataStore diskCache) {
+    UriFetcher fetcher = originBackoff;
+    if (diskCache != null) {
+      fetcher = new DiskCachingUriFetcher(
+          fetcher, diskCache, DEFAULT_DISK_CACHE_LIFETIME_MILLIS);
+    }
+    return fetcher;
   }
 
   public ProxyServlet(UriFetcher fetcher) {
+    this(fetcher, null);
+  }
+
+  /**
+   * @param responseCache caches successful responses, or null to fetch the
+   *     content for every request.
+   */
+  public ProxyServlet(
+      UriFetcher fetcher, @Nullable ProxyResponseCache responseCache) {
+    this(fetcher, responseCache, new ProxyMetrics());
+  }
+
+  /**
+   * @param responseCache caches successful responses, or null to fetch the
+   *     content for every request.
+   * @param metrics receives timings and counts for the requests served.
+   */
+  public ProxyServlet(
+      UriFetcher fetcher, @Nullable ProxyResponseCache responseCache,
+      ProxyMetrics metrics) {
+    this(fetcher, responseCache, metrics, null);
+  }
+
+  private ProxyServlet(
+      UriFetcher fetcher, @Nullable ProxyResponseCache responseCache,
+      ProxyMetrics metrics, @Nullable BackoffUriFetcher originBackoff) {
     this.uriFetcher = fetcher;
+    this.responseCache = responseCache;
+    this.metrics = metrics;
+    this.originBackoff = originBackoff;
+  }
+
+  /** Reports origin connect and read times and the bytes received. */
+  private static final class MeteredHttpUriFetcher extends HttpUriFetcher {
+    private final ProxyMetrics metrics;
+
+    MeteredHttpUriFetcher(ProxyMetrics metrics) { this.metrics = metrics; }
+
+    @Override
+    protected void fetched(
+        ExternalReference ref, long connectNanos, long readNanos,
+        long byteCount) {
+      metrics.recordLatency(ProxyMetrics.Phase.CONNECT, connectNanos);
+      metrics.recordLatency(ProxyMetrics.Phase.READ, readNanos);
+      metrics.recordBytesIn(byteCount);
+    }
+  }
+
+  public ProxyMetrics getMetrics() { return metrics; }
+
+  /**
+   * The part of the default fetcher that backs off from failing origins, or
+   * null if this servlet was given its fetcher.
+   */
+  public @Nullable BackoffUriFetcher getOriginBackoff() {
+    return originBackoff;
+  }
+
+  /** The response cache, or null if responses are not cached. */
+  public @Nullable ProxyResponseCache getResponseCache() {
+    return responseCache;
   }
 
   /**
@@ -173,42 +317,147 @@ public class ProxyServlet extends HttpServlet {
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException {
+    checkRequestUri(req);
     ContentHandlerArgs args = new HttpContentHandlerArgs(req);
+    writePrepared(resp, prepare(args, new SimpleMessageQueue()));
+  }
+
+  /**
+   * Fetches several URLs in one round trip.
+   *
+   * <p>The request body is a JSON array of up to {@link #MAX_BATCH_SIZE}
+   * objects, each with {@code url} and {@code input-mime-type} members that
+   * are validated as for a GET.  The response is a JSON object whose
+   * {@code results} member is an array with, for each entry in order, the
+   * object that a GET with {@code alt=json} would have returned, so a failed
+   * entry has its own messages and does not fail the others.
+   */
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException {
+    checkRequestUri(req);
+    MessageQueue mq = new SimpleMessageQueue();
+    List<ContentHandlerArgs> batch;
+    try {
+      batch = readBatch(req, mq);
+    } catch (IOException ex) {
+      throw (ServletException) new ServletException().initCause(ex);
+    }
+    if (batch == null) {
+      closeBadRequest(resp, HttpServletResponse.SC_BAD_REQUEST, mq);
+      return;
+    }
+    writeResponse(resp, handleBatch(batch), mq);
+  }
 
+  @Override
+  public void destroy() {
+    batchExecutor.shutdown();
+    super.destroy();
+  }
+
+  /**
+   * Sends a 400 response describing the messages in mq.
+   */
+  static void sendBadRequest(HttpServletResponse resp, MessageQueue mq)
+      throws ServletException {
+    closeBadRequest(resp, HttpServletResponse.SC_BAD_REQUEST, mq);
+  }
+
+  /**
+   * Rejects requests that browsers might misinterpret.
+   */
+  static void checkRequestUri(HttpServletRequest req)
+      throws ServletException {
     // URL path parameters can trick IE into misinterpreting responses as HTML
     if (req.getRequestURI().contains(";")) {
       throw new ServletException("Invalid URL path parameter");
     }
+  }
 
-    MessageQueue mq = new SimpleMessageQueue();
-    FetchedData result = handle(args, mq);
+  /**
+   * Writes the result of {@link #prepare} to a servlet response, streaming
+   * fetched content into the response envelope and keeping a copy for the
+   * response cache unless it is too large to cache.
+   */
+  void writePrepared(HttpServletResponse resp, PreparedResponse prepared)
+      throws ServletException {
+    if (prepared.fetched == null) {
+      writeResponse(resp, prepared.complete, prepared.mq);
+      return;
+    }
+    ServletResponseSink sink = new ServletResponseSink(
+        resp, metrics,
+        responseCache != null ? responseCache.getMaxEntryBytes() : 0);
+    try {
+      render(prepared.fetched, prepared.mq, sink);
+      resp.getOutputStream().close();
+    } catch (IOException ex) {
+      throw (ServletException) new ServletException().initCause(ex);
+    }
+    byte[] copy = sink.getCopy();
+    if (copy != null) {
+      responseCache.put(
+          prepared.args, copy, sink.contentType, sink.charSet, sink.src,
+          prepared.fetched.input.getFreshnessLifetime());
+    }
+  }
+
+  /**
+   * Writes the result of {@link #handle} to a servlet response.
+   *
+   * @param result the result of handle, or null if it failed.
+   * @param mq the message queue passed to handle.
+   */
+  void writeResponse(
+      HttpServletResponse resp, @Nullable FetchedData result, MessageQueue mq)
+      throws ServletException {
     if (result == null) {
       closeBadRequest(resp, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, mq);
       return;
     }
 
+    try {
+      resp.setContentLength(result.getByteLength());
+      OutputStream out = startResponse(
+          resp, result.getContentType(), result.getCharSet());
+      // Copy from the binary content rather than getByteContent() which
+      // makes a defensive copy.
+      InputStream in = result.getBinaryContent();
+      byte[] buf = new byte[4096];
+      long total = 0;
+      for (int n; (n = in.read(buf)) > 0;) {
+        out.write(buf, 0, n);
+        total += n;
+      }
+      out.close();
+      metrics.recordBytesOut(total);
+    } catch (IOException ex) {
+      throw (ServletException) new ServletException().initCause(ex);
+    }
+  }
+
+  /**
+   * Sets the status and headers of a successful response.
+   * @return the stream to which the response body should be written.
+   */
+  private static OutputStream startResponse(
+      HttpServletResponse resp, String contentType, String charSet)
+      throws IOException {
     resp.setStatus(HttpServletResponse.SC_OK);
 
-    String responseContentType = result.getContentType();
-    if (result.getCharSet() != null) {
-      responseContentType += ";charset=" + result.getCharSet();
+    String responseContentType = contentType;
+    if (charSet != null) {
+      responseContentType += ";charset=" + charSet;
     }
     if (containsNewline(responseContentType)) {
       throw new IllegalArgumentException(responseContentType);
     }
 
-    try {
-      byte[] content = result.getByteContent();
-      resp.setContentType(responseContentType);
-      resp.setContentLength(content.length);
-      resp.setHeader(UMP.a, UMP.b);
-      resp.setHeader("X-Content-Type-Options", "nosniff");
-
-      resp.getOutputStream().write(content);
-      resp.getOutputStream().close();
-    } catch (IOException ex) {
-      throw (ServletException) new ServletException().initCause(ex);
-    }
+    resp.setContentType(responseContentType);
+    resp.setHeader(UMP.a, UMP.b);
+    resp.setHeader("X-Content-Type-Options", "nosniff");
+    return resp.getOutputStream();
   }
 
   // Used to protect against header splitting attacks.
@@ -216,6 +465,97 @@ public class ProxyServlet extends HttpServlet {
     return s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0;
   }
 
+  /**
+   * Receives the body of a response once the proxy knows that it can produce
+   * one.
+   */
+  private interface ResponseSink {
+    /**
+     * @param src the source of the proxied content.
+     * @return a stream to which the response body is written.
+     */
+    OutputStream open(URI src, String contentType, String charSet)
+        throws IOException;
+  }
+
+  /** Collects a response in memory. */
+  private static final class BufferingSink implements ResponseSink {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    InputSource src;
+    String contentType;
+    String charSet;
+
+    public OutputStream open(URI src, String contentType, String charSet) {
+      this.src = new InputSource(src);
+      this.contentType = contentType;
+      this.charSet = charSet;
+      return bytes;
+    }
+  }
+
+  /**
+   * Writes a response directly to the client, and keeps a copy of it if it
+   * is small enough.
+   */
+  private static final class ServletResponseSink implements ResponseSink {
+    private final HttpServletResponse resp;
+    private final ProxyMetrics metrics;
+    private final long maxCopyBytes;
+    /** Null once the response is known to be too large to copy. */
+    private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    InputSource src;
+    String contentType;
+    String charSet;
+
+    /** @param maxCopyBytes the largest response to keep a copy of. */
+    ServletResponseSink(
+        HttpServletResponse resp, ProxyMetrics metrics, long maxCopyBytes) {
+      this.resp = resp;
+      this.metrics = metrics;
+      this.maxCopyBytes = maxCopyBytes;
+      if (maxCopyBytes <= 0) { copy = null; }
+    }
+
+    /** The bytes written, or null if there were more than maxCopyBytes. */
+    @Nullable byte[] getCopy() {
+      return copy != null ? copy.toByteArray() : null;
+    }
+
+    public OutputStream open(URI src, String contentType, String charSet)
+        throws IOException {
+      this.src = new InputSource(src);
+      this.contentType = contentType;
+      this.charSet = charSet;
+      return new FilterOutputStream(
+          startResponse(resp, contentType, charSet)) {
+        @Override
+        public void write(int b) throws IOException {
+          out.write(b);
+          metrics.recordBytesOut(1);
+          if (reserveCopy(1)) { copy.write(b); }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+          metrics.recordBytesOut(len);
+          if (reserveCopy(len)) { copy.write(b, off, len); }
+        }
+      };
+    }
+
+    /**
+     * True if len more bytes fit in the copy.  If they do not, discards the
+     * copy since the response will not be cached.
+     */
+    private boolean reserveCopy(int len) {
+      if (copy != null && copy.size() + (long) len > maxCopyBytes) {
+        copy = null;
+      }
+      return copy != null;
+    }
+  }
+
   /**
    * Main entry point for the fetching proxy.
    *
@@ -229,31 +569,317 @@ public class ProxyServlet extends HttpServlet {
    */
   public FetchedData handle(ContentHandlerArgs args,
                             MessageQueue mq) {
-    FetchedData result = doHandle(args, mq);
-    if (result == null) {
-      ByteArrayOutputStream intermediateResponse = new ByteArrayOutputStream();
-      Pair<ContentType, String> contentParams =
-          getReturnedContentParams(args);
-      OutputStreamWriter writer = new OutputStreamWriter(
-          intermediateResponse, Charsets.UTF_8);
+    if (responseCache != null) {
+      FetchedData cached = responseCache.get(args);
+      if (cached != null) { return cached; }
+    }
+    Fetched fetched = fetch(args, mq);
+    if (fetched == null) { return renderErrors(args, mq); }
+    BufferingSink response = new BufferingSink();
+    try {
+      render(fetched, mq, response);
+    } catch (IOException e) {
+      // Unlikely IOException to byte array; rethrow
+      throw new SomethingWidgyHappenedError(e);
+    }
+
+    byte[] content = response.bytes.toByteArray();
+    if (responseCache != null) {
+      responseCache.put(
+          args, content, response.contentType, response.charSet,
+          response.src, fetched.input.getFreshnessLifetime());
+    }
+    return FetchedData.fromBytes(
+        content, response.contentType, response.charSet, response.src);
+  }
+
+  /**
+   * Does the part of {@link #handle} that may wait on the origin, so that
+   * {@link #writePrepared} can stream the response from another thread.
+   *
+   * @param mq as for handle.
+   */
+  PreparedResponse prepare(ContentHandlerArgs args, MessageQueue mq) {
+    if (responseCache != null) {
+      FetchedData cached = responseCache.get(args);
+      if (cached != null) { return new PreparedResponse(mq, cached); }
+    }
+    Fetched fetched = fetch(args, mq);
+    if (fetched == null) {
+      return new PreparedResponse(mq, renderErrors(args, mq));
+    }
+    return new PreparedResponse(args, mq, fetched);
+  }
+
+  /**
+   * A response that is ready to write: either complete, or fetched content
+   * that has yet to be rendered into its envelope.
+   */
+  static final class PreparedResponse {
+    /** Null if the response is complete. */
+    final @Nullable ContentHandlerArgs args;
+    final MessageQueue mq;
+    final @Nullable FetchedData complete;
+    /** Null if the response is complete. */
+    final @Nullable Fetched fetched;
+
+    /**
+     * @param complete the whole response, or null to respond with a 500
+     *     describing the messages in mq.
+     */
+    PreparedResponse(MessageQueue mq, @Nullable FetchedData complete) {
+      this.args = null;
+      this.mq = mq;
+      this.complete = complete;
+      this.fetched = null;
+    }
+
+    PreparedResponse(
+        ContentHandlerArgs args, MessageQueue mq, Fetched fetched) {
+      this.args = args;
+      this.mq = mq;
+      this.complete = null;
+      this.fetched = fetched;
+    }
+  }
+
+  /**
+   * Reads the entries of a batch request.
+   *
+   * @return null if the body is not a JSON array of between 1 and
+   *     {@link #MAX_BATCH_SIZE} objects, in which case the reason is added
+   *     to mq.
+   */
+  static @Nullable List<ContentHandlerArgs> readBatch(
+      HttpServletRequest req, MessageQueue mq)
+      throws IOException {
+    if (req.getContentLength() > MAX_BATCH_REQUEST_BYTES) {
+      mq.addMessage(
+          ServiceMessageType.INVALID_BATCH_REQUEST,
+          MessagePart.Factory.valueOf("request body too large"));
+      return null;
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    InputStream in = req.getInputStream();
+    try {
+      byte[] buf = new byte[4096];
+      for (int n; (n = in.read(buf)) > 0;) {
+        body.write(buf, 0, n);
+        if (body.size() > MAX_BATCH_REQUEST_BYTES) {
+          mq.addMessage(
+              ServiceMessageType.INVALID_BATCH_REQUEST,
+              MessagePart.Factory.valueOf("request body too large"));
+          return null;
+        }
+      }
+    } finally {
+      in.close();
+    }
+
+    String charSet = req.getCharacterEncoding();
+    Object json;
+    try {
+      json = JSONValue.parse(
+          body.toString(charSet != null ? charSet : Charsets.UTF_8.name()));
+    } catch (UnsupportedEncodingException ex) {
+      json = null;
+    }
+    if (!(json instanceof JSONArray)) {
+      mq.addMessage(
+          ServiceMessageType.INVALID_BATCH_REQUEST,
+          MessagePart.Factory.valueOf("expected a JSON array"));
+      return null;
+    }
+    JSONArray entries = (JSONArray) json;
+    if (entries.isEmpty() || entries.size() > MAX_BATCH_SIZE) {
+      mq.addMessage(
+          ServiceMessageType.INVALID_BATCH_REQUEST,
+          MessagePart.Factory.valueOf(
+              "expected 1 to " + MAX_BATCH_SIZE + " entries"));
+      return null;
+    }
+    List<ContentHandlerArgs> batch = Lists.newArrayList();
+    for (Object entry : entries) {
+      if (!(entry instanceof JSONObject)) {
+        mq.addMessage(
+            ServiceMessageType.INVALID_BATCH_REQUEST,
+            MessagePart.Factory.valueOf("expected an object per entry"));
+        return null;
+      }
+      batch.add(new BatchEntryArgs((JSONObject) entry));
+    }
+    return batch;
+  }
+
+  /** The arguments for one entry of a batch request. */
+  private static final class BatchEntryArgs extends ContentHandlerArgs {
+    private final JSONObject entry;
+
+    BatchEntryArgs(JSONObject entry) { this.entry = entry; }
+
+    @Override
+    public String get(String name) {
+      // Each entry is rendered as JSON inside the batch response.
+      if (CajaArguments.ALT.getArgKeyword().equals(name)
+          || CajaArguments.CALLBACK.getArgKeyword().equals(name)) {
+        return null;
+      }
+      Object value = entry.get(name);
+      return value instanceof String ? (String) value : null;
+    }
+  }
+
+  /**
+   * Handles each entry of a batch as {@link #handle} would, fetching up to
+   * {@link #MAX_BATCH_PARALLELISM} entries at once.
+   *
+   * @return a JSON object whose {@code results} member has the result of
+   *     each entry in order.
+   */
+  public FetchedData handleBatch(List<? extends ContentHandlerArgs> batch) {
+    return handleBatch(batch, null);
+  }
+
+  /**
+   * Like {@link #handleBatch(List)} but each entry holds one of fetchPermits
+   * while it is handled, so that batch entries count against the same limit
+   * as other fetches.
+   *
+   * @param fetchPermits null to handle entries without waiting for a permit.
+   */
+  public FetchedData handleBatch(
+      final List<? extends ContentHandlerArgs> batch,
+      @Nullable final Semaphore fetchPermits) {
+    final FetchedData[] results = new FetchedData[batch.size()];
+    final AtomicInteger next = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(results.length);
+    Runnable worker = new Runnable() {
+      public void run() {
+        for (int i; (i = next.getAndIncrement()) < results.length;) {
+          try {
+            results[i] = handleBatchEntry(batch.get(i), fetchPermits);
+          } finally {
+            done.countDown();
+          }
+        }
+      }
+    };
+    int helpers = Math.min(results.length, MAX_BATCH_PARALLELISM) - 1;
+    for (int i = 0; i < helpers; ++i) {
+      try {
+        batchExecutor.execute(worker);
+      } catch (RejectedExecutionException ex) {
+        break;  // All helpers are busy, so this thread does more itself.
+      }
+    }
+    worker.run();
+    boolean interrupted = false;
+    while (true) {
+      try {
+        done.await();
+        break;
+      } catch (InterruptedException ex) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) { Thread.currentThread().interrupt(); }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      out.write("{\"results\":[".getBytes(Charsets.UTF_8.name()));
+      for (int i = 0; i < results.length; ++i) {
+        if (i != 0) { out.write(','); }
+        if (results[i] == null) {
+          out.write("null".getBytes(Charsets.UTF_8.name()));
+          continue;
+        }
+        InputStream in = results[i].getBinaryContent();
+        byte[] buf = new byte[4096];
+        for (int n; (n = in.read(buf)) > 0;) { out.write(buf, 0, n); }
+      }
+      out.write("]}".getBytes(Charsets.UTF_8.name()));
+    } catch (IOException e) {
+      // Unlikely IOException to byte array; rethrow
+      throw new SomethingWidgyHappenedError(e);
+    }
+    return FetchedData.fromBytes(
+        out.toByteArray(), ContentType.JSON.mimeType, "UTF-8",
+        InputSource.UNKNOWN);
+  }
+
+  private FetchedData handleBatchEntry(
+      ContentHandlerArgs entry, @Nullable Semaphore fetchPermits) {
+    MessageQueue mq = new SimpleMessageQueue();
+    try {
+      if (fetchPermits == null) { return handle(entry, mq); }
+      fetchPermits.acquire();
       try {
-        renderAsJSON(
-            (String)null, (String)null, contentParams.b, mq, writer, false);
-      } catch (IOException e) {
-        // Unlikely IOException to byte array; rethrow
-        throw new SomethingWidgyHappenedError(e);
+        return handle(entry, mq);
+      } finally {
+        fetchPermits.release();
       }
-      result = FetchedData.fromBytes(
-          intermediateResponse.toByteArray(),
-          contentParams.a.mimeType,
-          "UTF-8",
-          InputSource.UNKNOWN);
+    } catch (InterruptedException e) {
+      // Abandoned, so fail this and the remaining entries quickly.
+      Thread.currentThread().interrupt();
+      mq.addMessage(
+          ServiceMessageType.EXCEPTION_IN_SERVICE,
+          MessagePart.Factory.valueOf(e.toString()));
+      return renderErrors(entry, mq);
+    } catch (RuntimeException e) {
+      mq.addMessage(
+          ServiceMessageType.EXCEPTION_IN_SERVICE,
+          MessagePart.Factory.valueOf(e.toString()));
+      return renderErrors(entry, mq);
     }
-    return result;
   }
 
-  private FetchedData doHandle(ContentHandlerArgs args,
-                               MessageQueue mq) {
+  /** Renders the messages explaining why a request failed. */
+  private FetchedData renderErrors(ContentHandlerArgs args, MessageQueue mq) {
+    metrics.recordErrors(mq);
+    ByteArrayOutputStream intermediateResponse = new ByteArrayOutputStream();
+    Pair<ContentType, String> contentParams =
+        getReturnedContentParams(args);
+    OutputStreamWriter writer = new OutputStreamWriter(
+        intermediateResponse, Charsets.UTF_8);
+    try {
+      renderAsJSON(
+          (String)null, (String)null, contentParams.b, mq, writer, false);
+    } catch (IOException e) {
+      // Unlikely IOException to byte array; rethrow
+      throw new SomethingWidgyHappenedError(e);
+    }
+    return FetchedData.fromBytes(
+        intermediateResponse.toByteArray(),
+        contentParams.a.mimeType,
+        "UTF-8",
+        InputSource.UNKNOWN);
+  }
+
+  /** Content that has been fetched and checked, ready to render. */
+  static final class Fetched {
+    final URI inputUri;
+    final FetchedData input;
+    final Pair<ContentType, String> contentParams;
+    final Reader content;
+
+    Fetched(
+        URI inputUri, FetchedData input,
+        Pair<ContentType, String> contentParams, Reader content) {
+      this.inputUri = inputUri;
+      this.input = input;
+      this.contentParams = contentParams;
+      this.content = content;
+    }
+  }
+
+  /**
+   * Fetches the content requested and checks everything that could go wrong
+   * before committing to a response.
+   *
+   * @return the fetched content, or null if the request failed for reasons
+   *     described in mq.
+   */
+  private @Nullable Fetched fetch(ContentHandlerArgs args, MessageQueue mq) {
     String inputUrlString = CajaArguments.URL.get(args);
     URI inputUri;
     if (inputUrlString == null) {
@@ -282,6 +908,7 @@ public class ProxyServlet extends HttpServlet {
     }
 
     FetchedData inputFetchedData;
+    long start = System.nanoTime();
     try {
       inputFetchedData = uriFetcher.fetch(
           new ExternalReference(inputUri, FilePosition.UNKNOWN),
@@ -289,6 +916,9 @@ public class ProxyServlet extends HttpServlet {
     } catch (UriFetcher.UriFetchException ex) {
       ex.toMessageQueue(mq);
       return null;
+    } finally {
+      metrics.recordLatency(
+          ProxyMetrics.Phase.FETCH, System.nanoTime() - start);
     }
 
     if (!typeCheck.check(
@@ -301,17 +931,26 @@ public class ProxyServlet extends HttpServlet {
       return null;
     }
 
-    ByteArrayOutputStream intermediateResponse = new ByteArrayOutputStream();
-    Pair<String, String> contentInfo;
+    // Check everything that could go wrong before committing to a response.
+    Pair<ContentType, String> contentParams;
+    Reader content;
     try {
-      contentInfo = applyHandler(
-          inputUri,
-          args,
-          inputFetchedData,
-          intermediateResponse,
-          mq);
-    } catch (UnsupportedContentTypeException e) {
-      mq.addMessage(ServiceMessageType.UNSUPPORTED_CONTENT_TYPES);
+      contentParams = getReturnedContentParams(args);
+      if (contentParams.b != null) {
+        long validateStart = System.nanoTime();
+        boolean valid = checkIdentifier(contentParams.b);
+        metrics.recordLatency(
+            ProxyMetrics.Phase.VALIDATE, System.nanoTime() - validateStart);
+        if (!valid) {
+          throw new RuntimeException(
+              "Detected XSS attempt; aborting request");
+        }
+      }
+      content = inputFetchedData.getTextualReader();
+    } catch (UnsupportedEncodingException e) {
+      mq.addMessage(
+          ServiceMessageType.EXCEPTION_IN_SERVICE,
+          MessagePart.Factory.valueOf(e.toString()));
       return null;
     } catch (RuntimeException e) {
       mq.addMessage(
@@ -320,64 +959,30 @@ public class ProxyServlet extends HttpServlet {
       return null;
     }
 
-    return FetchedData.fromBytes(
-        intermediateResponse.toByteArray(),
-        contentInfo.a,
-        contentInfo.b,
-        new InputSource(inputUri));
+    return new Fetched(inputUri, inputFetchedData, contentParams, content);
   }
 
-  private Pair<String, String> applyHandler(URI uri, ContentHandlerArgs args,
-      FetchedData fetched, OutputStream response, MessageQueue mq)
-      throws UnsupportedContentTypeException {
-    Pair<ContentType, String> contentParams =
-        getReturnedContentParams(args);
-
-    OutputStreamWriter writer;
-    try {
-      writer = new OutputStreamWriter(response, Charsets.UTF_8);
-      renderAsJSON(
-          fetched.getTextualContent().toString(),
-          null,
-          contentParams.b, mq, writer, true);
-      writer.flush();
-      return Pair.pair(contentParams.a.mimeType, Charsets.UTF_8.name());
-    } catch (UnsupportedEncodingException ex) {
-      return null;
-    } catch (IOException ex) {
-      throw new SomethingWidgyHappenedError(ex);
-    }
+  /**
+   * Renders fetched content to sink.
+   *
+   * @param mq the message queue passed to {@link #fetch}.
+   * @throws IOException if writing to sink fails.
+   */
+  private void render(Fetched fetched, MessageQueue mq, ResponseSink sink)
+      throws IOException {
+    Writer out = new OutputStreamWriter(
+        sink.open(
+            fetched.inputUri, fetched.contentParams.a.mimeType,
+            Charsets.UTF_8.name()),
+        Charsets.UTF_8);
+    streamAsJSON(fetched.content, fetched.contentParams.b, mq, out);
   }
 
   /**
    * Checks whether a string is a JavaScript Identifier.
    */
   /* visible for testing */ static boolean checkIdentifier(String candidate) {
-    // Using a simple regex is possible if we reject anything but 7-bit ASCII.
-    // However, this implementation ensures Caja has a single point of truth
-    // regarding what constitutes a JS identifier.
-    // TODO(kpreid): Reevaluate whether this is worth the complexity and the
-    // runtime dependency on the JS parser now that there is no cajoler. 
-    MessageQueue mq = new SimpleMessageQueue();
-    Parser parser = new Parser(
-        new JsTokenQueue(
-            new JsLexer(
-                CharProducer.Factory.fromString(
-                    "var " + candidate + ";",
-                    InputSource.UNKNOWN)),
-            InputSource.UNKNOWN),
-        mq);
-    ParseTreeNode node;
-    try { node = parser.parse(); } catch (ParseException e) { return false; }
-    if (node == null || !mq.getMessages().isEmpty()) { return false; }
-    Map<String, ParseTreeNode> bindings = Maps.newHashMap();
-    if (!QuasiBuilder.match("{ var @p; }", node, bindings)) { return false; }
-    if (bindings.size() != 1) { return false; }
-    if (bindings.get("p") == null) { return false; }
-    if (!(bindings.get("p") instanceof Identifier)) { return false; }
-    Identifier p = (Identifier) bindings.get("p");
-    if (!candidate.equals(p.getName())) { return false; }
-    return true;
+    return CALLBACK_CHECK.check(candidate);
   }
 
   private static Pair<ContentType, String> getReturnedContentParams(
@@ -399,6 +1004,92 @@ public class ProxyServlet extends HttpServlet {
     }
   }
 
+  /**
+   * Writes the same envelope as {@link #renderAsJSON} with the content as
+   * {@code html}, but decodes and escapes the content a chunk at a time
+   * instead of building it up as strings.
+   */
+  private void streamAsJSON(
+      Reader content,
+      String jsonpCallback,
+      MessageQueue mq,
+      Writer output) throws IOException {
+    if (jsonpCallback != null) { output.write(jsonpCallback + "("); }
+    // Same member order as the JSONObject that renderAsJSON builds.
+    long decodeNanos = 0;
+    long start = System.nanoTime();
+    output.write("{\"messages\":");
+    output.write(renderMessages(mq).toJSONString());
+    output.write(",\"html\":\"");
+    try {
+      char[] buf = new char[4096];
+      while (true) {
+        long readStart = System.nanoTime();
+        int n = content.read(buf);
+        decodeNanos += System.nanoTime() - readStart;
+        if (n <= 0) { break; }
+        escapeJsonStringBody(buf, n, output);
+      }
+    } finally {
+      content.close();
+    }
+    output.write("\"}");
+    if (jsonpCallback != null) { output.write(");"); }
+    output.flush();
+    metrics.recordLatency(ProxyMetrics.Phase.DECODE, decodeNanos);
+    metrics.recordLatency(
+        ProxyMetrics.Phase.RENDER, System.nanoTime() - start - decodeNanos);
+  }
+
+  /**
+   * Escapes characters the same way as {@link JSONValue#escape} so streamed
+   * responses are identical to buffered ones.
+   */
+  private static void escapeJsonStringBody(char[] chars, int n, Writer out)
+      throws IOException {
+    int pos = 0;
+    for (int i = 0; i < n; ++i) {
+      char ch = chars[i];
+      String esc;
+      switch (ch) {
+        case '"': esc = "\\\""; break;
+        case '\\': esc = "\\\\"; break;
+        case '/': esc = "\\/"; break;
+        case '\b': esc = "\\b"; break;
+        case '\f': esc = "\\f"; break;
+        case '\n': esc = "\\n"; break;
+        case '\r': esc = "\\r"; break;
+        case '\t': esc = "\\t"; break;
+        default:
+          if (ch <= '\u001f' || (ch >= '\u007f' && ch <= '\u009f')
+              || (ch >= '\u2000' && ch <= '\u20ff')) {
+            String hex = Integer.toHexString(ch).toUpperCase(Locale.ENGLISH);
+            esc = "\\u0000".substring(0, 6 - hex.length()) + hex;
+          } else {
+            continue;
+          }
+          break;
+      }
+      out.write(chars, pos, i - pos);
+      out.write(esc);
+      pos = i + 1;
+    }
+    out.write(chars, pos, n - pos);
+  }
+
+  private static JSONArray renderMessages(MessageQueue mq) {
+    JSONArray messages = new JSONArray();
+    for (Message m : mq.getMessages()) {
+      JSONObject msg = new JSONObject();
+      Json.put(msg, "level", m.getMessageLevel().ordinal());
+      Json.put(msg, "name", m.getMessageLevel().name());
+      Json.put(msg, "type", m.getMessageType().name());
+      Json.put(msg, "message", m.toString());
+      Json.push(messages, msg);
+    }
+    return messages;
+  }
+
   private static void renderAsJSON(
       String staticHtml,
       String javascript,
@@ -411,20 +1102,10 @@ public class ProxyServlet extends HttpServlet {
     }
   
     JSONObject o = new JSONObject();
-    JSONArray messages = new JSONArray();
   
     if (staticHtml != null) { Json.put(o, "html", staticHtml); }
     if (javascript != null) { Json.put(o, "js", javascript); }
-    Json.put(o, "messages", messages);
-  
-    for (Message m : mq.getMessages()) {
-      JSONObject msg = new JSONObject();
-      Json.put(msg, "level", m.getMessageLevel().ordinal());
-      Json.put(msg, "name", m.getMessageLevel().name());
-      Json.put(msg, "type", m.getMessageType().name());
-      Json.put(msg, "message", m.toString());
-      Json.push(messages, msg);
-    }
+    Json.put(o, "messages", renderMessages(mq));
   
     String rendered = o.toJSONString();
   
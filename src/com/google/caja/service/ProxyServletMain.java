@@ -14,41 +14,79 @@
 
 package com.google.caja.service;
 
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-
-import org.mortbay.jetty.Server;
-import org.mortbay.jetty.handler.AbstractHandler;
+import com.google.caja.plugin.FetchedDataStore;
 
+import java.io.File;
 import java.io.IOException;
 
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+
 /**
  * A executable for the proxy service.
  *
+ * <p>Usage:
+ * {@code ProxyServletMain [port [maxInFlight [maxQueued [adminPort
+ * [cacheFile]]]]]}
+ * where maxInFlight limits the number of concurrent origin fetches and
+ * maxQueued limits the number of requests that may wait for one before
+ * requests are rejected.  Metrics are served to the local machine only, at
+ * {@code /metrics} and {@code /metrics.txt} on adminPort, which defaults to
+ * the port after the proxy's.  If cacheFile is given, fetched content is also
+ * kept there so that it can be served after a restart.
+ *
  * @author jasvir@gmail.com (Jasvir Nagra)
  */
 public class ProxyServletMain {
+  private static final long DISK_CACHE_BYTES = 256 << 20;  // 256MB
+
   public static void main(String[] args) throws Exception {
     // http://docs.codehaus.org/display/JETTY/Embedding+Jetty
-    int port = 8887;
-    Server server = new Server(port);
-
-    final ProxyServlet servlet = new ProxyServlet();
-
-    server.setHandler(new AbstractHandler() {
-      public void handle(
-          String target, HttpServletRequest req, HttpServletResponse resp,
-          int dispatch)
-          throws ServletException {
-        try {
-          servlet.service(req, resp);
-        } catch (IOException e) {
-          throw (ServletException) new ServletException().initCause(e);
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 8887;
+    int maxInFlight = args.length > 1
+        ? Integer.parseInt(args[1]) : AsyncProxyHandler.DEFAULT_MAX_IN_FLIGHT;
+    int maxQueued = args.length > 2
+        ? Integer.parseInt(args[2]) : AsyncProxyHandler.DEFAULT_MAX_QUEUED;
+    int adminPort = args.length > 3 ? Integer.parseInt(args[3]) : port + 1;
+    File cacheFile = args.length > 4 ? new File(args[4]) : null;
+    final Server server = new Server(port);
+
+    final FetchedDataStore diskCache = cacheFile != null
+        ? FetchedDataStore.open(cacheFile, DISK_CACHE_BYTES) : null;
+    final ProxyServlet servlet = diskCache != null
+        ? new ProxyServlet(diskCache) : new ProxyServlet();
+    if (diskCache != null) {
+      // Stop serving before closing the store so that no request sees it
+      // closed, then release its file.
+      Runtime.getRuntime().addShutdownHook(new Thread("close-disk-cache") {
+        @Override
+        public void run() {
+          try {
+            server.stop();
+          } catch (Exception ex) {
+            ex.printStackTrace();
+          }
+          try {
+            diskCache.close();
+          } catch (IOException ex) {
+            ex.printStackTrace();
+          }
         }
-      }
-    });
+      });
+    }
+
+    AsyncProxyHandler proxyHandler = new AsyncProxyHandler(
+        servlet, maxInFlight, maxQueued,
+        AsyncProxyHandler.DEFAULT_TIMEOUT_MILLIS);
+    server.setHandler(proxyHandler);
     server.start();
+
+    Server admin = new Server();
+    SelectChannelConnector adminConnector = new SelectChannelConnector();
+    adminConnector.setHost("127.0.0.1");
+    adminConnector.setPort(adminPort);
+    admin.addConnector(adminConnector);
+    admin.setHandler(new ProxyAdminHandler(servlet, proxyHandler));
+    admin.start();
   }
 }
-
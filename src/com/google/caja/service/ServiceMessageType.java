@@ -40,6 +40,8 @@ public enum ServiceMessageType implements MessageTypeInt {
       MessageLevel.FATAL_ERROR),
   UNEXPECTED_INPUT_MIME_TYPE("Expected input MIME type %s but found %s",
       MessageLevel.FATAL_ERROR),
+  INVALID_BATCH_REQUEST("Invalid batch request: %s",
+      MessageLevel.FATAL_ERROR),
   ;
 
   private final String formatString;
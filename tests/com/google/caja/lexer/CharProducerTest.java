@@ -18,9 +18,14 @@ import com.google.caja.lexer.escaping.UriUtil;
 import com.google.caja.util.Pair;
 import com.google.caja.util.TestUtil;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.net.URI;
+import java.nio.charset.Charset;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -38,6 +43,72 @@ public final class CharProducerTest extends TestCase {
   private static final InputSource STRING_SOURCE = new InputSource(
       URI.create("file:///CharProducerTest.java"));
 
+  public final void testFromLongReader() throws Exception {
+    // Longer than several of the chunks that create reads into, with a CRLF
+    // split across a chunk boundary.
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < 4095) { sb.append('x'); }
+    sb.append("\r\n");
+    while (sb.length() < 3 * 4096 + 100) { sb.append("abcdefg\n"); }
+    String input = sb.toString();
+    CharProducer cp = CharProducer.Factory.create(
+        new StringReader(input), STRING_SOURCE);
+    assertEquals(input, cp.toString());
+    assertEquals(input.length(), cp.getLimit());
+    assertEquals(input.length(), cp.getBuffer().length);
+    assertEquals("CharProducerTest.java:1+4096@4096",
+                 cp.filePositionForOffsets(4095, 4095).toString());
+    assertEquals("CharProducerTest.java:2+1@4098",
+                 cp.filePositionForOffsets(4097, 4097).toString());
+    assertEquals("CharProducerTest.java:3+1@4106",
+                 cp.filePositionForOffsets(4105, 4105).toString());
+  }
+
+  public final void testFromFile() throws Exception {
+    byte[][] inputs = {
+        new byte[0],
+        "ascii\nonly\r\n".getBytes("UTF-8"),
+        "caf\u00e9 \u2028 \ud834\udd1e\n".getBytes("UTF-8"),
+        // Malformed UTF-8: a truncated sequence and a stray continuation byte
+        { 'a', (byte) 0xe2, (byte) 0x82, 'b', (byte) 0x80, 'c' },
+    };
+    Charset[] charsets = {
+        Charset.forName("UTF-8"), Charset.forName("ISO-8859-1"),
+        Charset.forName("US-ASCII"), Charset.forName("UTF-16LE"),
+    };
+    File f = File.createTempFile("CharProducerTest", ".txt");
+    try {
+      for (byte[] input : inputs) {
+        write(f, input);
+        for (Charset cs : charsets) {
+          String expected = new String(input, cs);
+          CharProducer cp = CharProducer.Factory.fromFile(f, cs);
+          assertEquals(cs + " " + expected, expected, cp.toString());
+          assertEquals(expected.length(), cp.getBuffer().length);
+        }
+      }
+
+      // Big enough to be mapped.
+      StringBuilder sb = new StringBuilder();
+      while (sb.length() < (1 << 20) + 10) { sb.append("line \u00e9\n"); }
+      write(f, sb.toString().getBytes("UTF-8"));
+      CharProducer cp = CharProducer.Factory.fromFile(f, "UTF-8");
+      assertEquals(sb.toString(), cp.toString());
+      assertEquals(3, cp.filePositionForOffsets(16, 16).startLineNo());
+    } finally {
+      f.delete();
+    }
+  }
+
+  private static void write(File f, byte[] bytes) throws IOException {
+    OutputStream out = new FileOutputStream(f);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
   public final void testFromReader() throws Exception {
     InputSource src = new InputSource(
         TestUtil.getResource(CharProducerTest.class, "testinput1.txt"));
@@ -583,4 +654,22 @@ public final class CharProducerTest extends TestCase {
       this.pos = pos;
     }
   }
+
+  public final void testLinePositionsOnly() {
+    CharProducer cp = CharProducer.Factory.withLinePositionsOnly(
+        CharProducer.Factory.fromString("ab cd\nefg\r\nh", STRING_SOURCE));
+    assertEquals("ab cd\nefg\r\nh", cp.toString());
+    FilePosition ab = cp.filePositionForOffsets(0, 2);
+    assertEquals("CharProducerTest.java:1+1@1", ab.toString());
+    assertSame(ab, cp.filePositionForOffsets(3, 5));
+    assertEquals("CharProducerTest.java:2+1@7",
+                 cp.filePositionForOffsets(7, 8).toString());
+    assertEquals("CharProducerTest.java:1+1@1 - 3+1@12",
+                 cp.filePositionForOffsets(4, 12).toString());
+    cp.consume(6);
+    CharProducer clone = cp.clone();
+    assertEquals("efg\r\nh", clone.toString());
+    assertEquals("CharProducerTest.java:3+1@12",
+                 clone.filePositionForOffsets(11, 12).toString());
+  }
 }
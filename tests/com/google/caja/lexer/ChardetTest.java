@@ -106,15 +106,70 @@ public class ChardetTest extends TestCase {
     }
   }
 
+  public final void testUndeclaredUtf8() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; sb.length() < 5000; ++i) {
+      // Vary the alignment of multi-byte sequences with read boundaries.
+      sb.append("<p>").append(i).append(" caf\u00e9 \u65e5\u672c")
+          .append(" \ud834\udd1e</p>\n");
+    }
+    String html = sb.toString();
+    byte[] bytes = html.getBytes("UTF-8");
+    assertCharset(html, bytes, "UTF-8");
+    // A stream that returns one byte at a time splits every sequence.
+    Pair<Reader, String> p = Chardet.guessCharset(
+        new ByteArrayInputStream(bytes) {
+          @Override
+          public int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(1, len));
+          }
+        });
+    assertEquals("UTF-8", p.b);
+    assertEquals(html, readAll(p.a));
+    String ascii = "<html>Hello, World!</html>";
+    assertCharset(ascii, ascii.getBytes("UTF-8"), "UTF-8");
+  }
+
+  public final void testNotUtf8() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < 3000) { sb.append("<p>\u65e5\u672c</p>\n"); }
+    byte[] utf8 = sb.toString().getBytes("UTF-8");
+    // The first chunk is valid UTF-8, but a later byte is not, so the bytes
+    // already decoded have to be recovered for the fallback.
+    byte[] notUtf8 = new byte[utf8.length + 8];
+    System.arraycopy(utf8, 0, notUtf8, 0, utf8.length);
+    System.arraycopy(
+        "caf\u00e9 ok!".getBytes("ISO-8859-1"), 0, notUtf8, utf8.length, 8);
+    assertGuessedConsistently(notUtf8);
+    // Truncated at the end of the input.
+    byte[] truncated = new byte[utf8.length + 2];
+    System.arraycopy(utf8, 0, truncated, 0, utf8.length);
+    truncated[utf8.length] = (byte) 0xe6;
+    truncated[utf8.length + 1] = (byte) 0x97;
+    assertGuessedConsistently(truncated);
+  }
+
+  /** The chars read are the bytes decoded with the guessed charset. */
+  private static void assertGuessedConsistently(byte[] bytes)
+      throws IOException {
+    Pair<Reader, String> p = Chardet.guessCharset(
+        new ByteArrayInputStream(bytes));
+    assertEquals(new String(bytes, p.b), readAll(p.a));
+  }
+
   private static void assertCharset(
       String golden, byte[] bytes, String expectedCharset)
       throws IOException {
     Pair<Reader, String> p = Chardet.guessCharset(
         new ByteArrayInputStream(bytes));
     assertEquals(expectedCharset, p.b);
+    assertEquals(golden, readAll(p.a));
+  }
+
+  private static String readAll(Reader r) throws IOException {
     StringBuilder sb = new StringBuilder();
     char[] buf = new char[1024];
-    for (int n; (n = p.a.read(buf)) > 0;) { sb.append(buf, 0, n); }
-    assertEquals(golden, sb.toString());
+    for (int n; (n = r.read(buf)) > 0;) { sb.append(buf, 0, n); }
+    return sb.toString();
   }
 }
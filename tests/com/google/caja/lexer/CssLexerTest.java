@@ -14,6 +14,7 @@
 
 package com.google.caja.lexer;
 
+import com.google.caja.reporting.DevNullMessageQueue;
 import com.google.caja.reporting.MessageLevel;
 import com.google.caja.reporting.MessageType;
 import com.google.caja.util.CajaTestCase;
@@ -95,16 +96,29 @@ public class CssLexerTest extends CajaTestCase {
   }
 
   private void runTest(CharProducer cp, String golden) throws ParseException {
+    CharProducer copy = cp.clone();
     CssLexer lexer = new CssLexer(cp, mq, true);
     StringBuilder sb = new StringBuilder();
     while (lexer.hasNext()) {
-      Token<CssTokenType> t = lexer.next();
-      sb.append(abbr(t.type.name())).append(" [")
-        .append(escape(t.text)).append("]: ").append(t.pos).append('\n');
-      assert t.text.length() == t.pos.endCharInFile() - t.pos.startCharInFile()
-           : t.text + ": " + t.pos;
+      appendToken(lexer.next(), sb);
     }
     assertEquals(golden.trim(), sb.toString().trim());
+
+    // The compact form should produce the same tokens.
+    TokenBuffer<CssTokenType> tokens = CssLexer.tokenize(
+        copy, DevNullMessageQueue.singleton(), true);
+    sb.setLength(0);
+    for (int i = 0, n = tokens.size(); i < n; ++i) {
+      appendToken(tokens.getToken(i), sb);
+    }
+    assertEquals(golden.trim(), sb.toString().trim());
+  }
+
+  private static void appendToken(Token<CssTokenType> t, StringBuilder sb) {
+    sb.append(abbr(t.type.name())).append(" [")
+      .append(escape(t.text)).append("]: ").append(t.pos).append('\n');
+    assert t.text.length() == t.pos.endCharInFile() - t.pos.startCharInFile()
+         : t.text + ": " + t.pos;
   }
 
   private static final String escape(String s) {
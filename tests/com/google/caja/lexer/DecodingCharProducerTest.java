@@ -100,4 +100,50 @@ public class DecodingCharProducerTest extends CajaTestCase {
         + " 18, 19, 20, 21, 22, 23, 24, 25]",
         Arrays.toString(underlyingOffsets));
   }
+
+  public final void testNoEscapesSharesBuffer() {
+    CharProducer underlying = CharProducer.Factory.fromString(
+        "foo\n\ud834\udd1ebar", FilePosition.instance(is, 1, 101, 101));
+    underlying.consume(1);
+    DecodingCharProducer view = (DecodingCharProducer)
+        CharProducer.Factory.fromJsString(underlying);
+    assertSame(underlying.getBuffer(), view.getBuffer());
+    assertEquals("oo\n\ud834\udd1ebar", view.toString());
+    for (int i = view.getOffset(); i <= view.getLimit(); ++i) {
+      assertEquals(i, view.getUnderlyingOffset(i));
+      assertEquals(underlying.getCharInFile(i), view.getCharInFile(i));
+    }
+    assertEquals(
+        "oo\n\ud834\udd1ebar", view.clone().toString());
+  }
+
+  public final void testConsumedInput() {
+    CharProducer underlying = CharProducer.Factory.fromString(
+        "xy\\u0061b", FilePosition.instance(is, 1, 101, 101));
+    underlying.consume(2);
+    DecodingCharProducer decoded = (DecodingCharProducer)
+        CharProducer.Factory.fromJsString(underlying);
+    assertEquals("ab", decoded.toString());
+    assertEquals(2, decoded.getUnderlyingOffset(0));
+    assertEquals(8, decoded.getUnderlyingOffset(1));
+    assertEquals(103, decoded.getCharInFile(0));
+    assertEquals(109, decoded.getCharInFile(1));
+    CharProducer clone = decoded.clone();
+    assertEquals(103, clone.getCharInFile(0));
+    assertEquals(109, clone.getCharInFile(1));
+  }
+
+  public final void testManyEscapes() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; ++i) { sb.append("a\\x62"); }
+    CharProducer underlying = CharProducer.Factory.fromString(
+        sb.toString(), FilePosition.instance(is, 1, 1, 1));
+    DecodingCharProducer decoded = (DecodingCharProducer)
+        CharProducer.Factory.fromJsString(underlying);
+    assertEquals(200, decoded.getLimit());
+    for (int i = 0; i < 100; ++i) {
+      assertEquals(i * 5, decoded.getUnderlyingOffset(2 * i));
+      assertEquals(i * 5 + 1, decoded.getUnderlyingOffset(2 * i + 1));
+    }
+  }
 }
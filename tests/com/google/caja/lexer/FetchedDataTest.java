@@ -15,12 +15,15 @@
 package com.google.caja.lexer;
 
 import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Strings;
+import com.google.common.collect.Maps;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
@@ -32,6 +35,7 @@ public class FetchedDataTest extends CajaTestCase {
     private String data;
     private String contentType;
     private boolean isConnected;
+    private final Map<String, String> headers = Maps.newHashMap();
 
     public TestURLConnection(
         URL url, String data, @Nullable String contentType) {
@@ -51,6 +55,16 @@ public class FetchedDataTest extends CajaTestCase {
       return contentType;
     }
 
+    @Override
+    public @Nullable String getHeaderField(String name) {
+      return headers.get(Strings.lower(name));
+    }
+
+    TestURLConnection withHeader(String name, String value) {
+      headers.put(Strings.lower(name), value);
+      return this;
+    }
+
     @Override
     public InputStream getInputStream() {
       assertTrue(isConnected);
@@ -107,4 +121,53 @@ public class FetchedDataTest extends CajaTestCase {
         "",
         null);
   }
+
+  private long freshnessLifetime(String... headers) throws Exception {
+    TestURLConnection conn = new TestURLConnection(
+        testUrl, "abcdef", "text/javascript");
+    for (int i = 0; i < headers.length; i += 2) {
+      conn.withHeader(headers[i], headers[i + 1]);
+    }
+    return FetchedData.fromConnection(conn).getFreshnessLifetime();
+  }
+
+  public final void testFreshnessLifetime() throws Exception {
+    assertEquals(FetchedData.UNKNOWN_FRESHNESS, freshnessLifetime());
+    assertEquals(
+        FetchedData.UNKNOWN_FRESHNESS,
+        freshnessLifetime("Cache-Control", "public"));
+    assertEquals(60000, freshnessLifetime("Cache-Control", "max-age=60"));
+    assertEquals(
+        60000, freshnessLifetime("Cache-Control", "public, Max-Age=60"));
+    assertEquals(0, freshnessLifetime("Cache-Control", "no-cache"));
+    assertEquals(0, freshnessLifetime("Cache-Control", "max-age=60, private"));
+    assertEquals(0, freshnessLifetime("Cache-Control", "no-store"));
+    assertEquals(0, freshnessLifetime("Cache-Control", "max-age=bogus"));
+    assertEquals(0, freshnessLifetime("Cache-Control", "max-age=-1"));
+    // Saturates instead of overflowing.
+    assertEquals(
+        Long.MAX_VALUE / 1000 * 1000,
+        freshnessLifetime("Cache-Control", "max-age=9223372036854775807"));
+    assertEquals(
+        Long.MAX_VALUE / 1000 * 1000,
+        freshnessLifetime(
+            "Cache-Control", "max-age=99999999999999999999999999"));
+    assertEquals(
+        3600000,
+        freshnessLifetime(
+            "Date", "Tue, 15 Nov 1994 08:12:31 GMT",
+            "Expires", "Tue, 15 Nov 1994 09:12:31 GMT"));
+    assertEquals(0, freshnessLifetime("Expires", "0"));
+    // Cache-Control trumps Expires.
+    assertEquals(
+        10000,
+        freshnessLifetime(
+            "Cache-Control", "max-age=10",
+            "Expires", "0"));
+    // Content that does not come from a URLConnection has no lifetime.
+    assertEquals(
+        FetchedData.UNKNOWN_FRESHNESS,
+        FetchedData.fromBytes(new byte[0], "text/html", "UTF-8",
+                              InputSource.UNKNOWN).getFreshnessLifetime());
+  }
 }
@@ -0,0 +1,178 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lexer;
+
+import java.util.List;
+
+import com.google.caja.util.Strings;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+public class HtmlEntitiesTest extends TestCase {
+  public final void testDecodeEntityAt() {
+    assertDecoded('&', 5, "&amp;");
+    assertDecoded('&', 5, "&AMP;");
+    assertDecoded('&', 5, "&Amp;");
+    assertDecoded('\u2021', 8, "&Dagger;");
+    assertDecoded('\u2020', 8, "&dagger;");
+    assertDecoded('\u2020', 8, "&DAGGER;");
+    assertDecoded('\u03d1', 10, "&thetasym;");
+    assertDecoded('A', 5, "&#65;x");
+    assertDecoded('A', 6, "&#x41;x");
+    assertDecoded('A', 6, "&#X41;x");
+    assertDecoded('x', 1, "x&amp;");
+    // Not entities.
+    assertDecoded('&', 1, "&amp");
+    assertDecoded('&', 1, "&;");
+    assertDecoded('&', 1, "&a;");
+    assertDecoded('&', 1, "&am;");
+    assertDecoded('&', 1, "&ampx;");
+    assertDecoded('&', 1, "&#6x;");
+    assertDecoded('&', 1, "&thetasyms;");
+  }
+
+  public final void testIsEntityName() {
+    assertTrue(HtmlEntities.isEntityName("amp"));
+    assertTrue(HtmlEntities.isEntityName("AMP"));
+    assertFalse(HtmlEntities.isEntityName("Amp"));
+    assertTrue(HtmlEntities.isEntityName("Dagger"));
+    assertTrue(HtmlEntities.isEntityName("thetasym"));
+    assertFalse(HtmlEntities.isEntityName("am"));
+    assertFalse(HtmlEntities.isEntityName(""));
+    assertFalse(HtmlEntities.isEntityName("thetasyms"));
+  }
+
+  public final void testConsistentWithEntityTrie() {
+    List<String> names = Lists.newArrayList();
+    collectNames(HtmlEntities.ENTITY_TRIE, new StringBuilder(), names);
+    assertFalse(names.isEmpty());
+    for (String name : names) {
+      for (int i = 0; i <= name.length(); ++i) {
+        String prefix = name.substring(0, i);
+        for (String s : new String[] {
+                 prefix, Strings.upper(prefix), prefix + "x", prefix + "X",
+                 Strings.upper(prefix.substring(0, Math.min(1, i)))
+                 + prefix.substring(Math.min(1, i)) }) {
+          char[] chars = ("&" + s + ";").toCharArray();
+          assertEquals(
+              s, decodeWithTrie(chars, 0, chars.length),
+              HtmlEntities.decodeEntityAt(chars, 0, chars.length));
+        }
+      }
+    }
+  }
+
+  public final void testDecodeSpeed() {
+    StringBuilder sb = new StringBuilder();
+    List<String> names = Lists.newArrayList();
+    collectNames(HtmlEntities.ENTITY_TRIE, new StringBuilder(), names);
+    for (String name : names) {
+      sb.append('&').append(name).append(';')
+          .append('&').append(Strings.upper(name)).append(';')
+          .append("&").append(name).append("x;&#160;&#xa0;");
+    }
+    char[] chars = sb.toString().toCharArray();
+    benchmark(chars, 2000, false);  // prime the JIT
+    benchmark(chars, 2000, true);
+    int microsPerRun = benchmark(chars, 5000, false);
+    int trieMicrosPerRun = benchmark(chars, 5000, true);
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".microsPerRun=" + microsPerRun);
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".trieMicrosPerRun="
+        + trieMicrosPerRun);
+  }
+
+  private static int benchmark(char[] chars, int nRuns, boolean useTrie) {
+    long t0 = System.nanoTime();
+    long sum = 0;
+    for (int k = nRuns; --k >= 0;) {
+      for (int i = 0, n = chars.length; i < n;) {
+        long packed = useTrie
+            ? decodeWithTrie(chars, i, n)
+            : HtmlEntities.decodeEntityAt(chars, i, n);
+        sum += packed & 0xffffffffL;
+        i = (int) (packed >>> 32);
+      }
+    }
+    assertTrue(sum != 0);
+    return (int) ((((double) (System.nanoTime() - t0)) / nRuns) / 1e3);
+  }
+
+  private static void assertDecoded(int codepoint, int end, String html) {
+    long packed = HtmlEntities.decodeEntityAt(
+        html.toCharArray(), 0, html.length());
+    assertEquals(html, codepoint, (int) (packed & 0xffffffffL));
+    assertEquals(html, end, (int) (packed >>> 32));
+  }
+
+  private static void collectNames(
+      PunctuationTrie<Integer> t, StringBuilder sb, List<String> out) {
+    if (t.isTerminal()) { out.add(sb.toString()); }
+    for (char ch = 'A'; ch <= 'z'; ++ch) {
+      PunctuationTrie<Integer> child = t.lookup(ch);
+      if (child != null) {
+        sb.append(ch);
+        collectNames(child, sb, out);
+        sb.setLength(sb.length() - 1);
+      }
+    }
+  }
+
+  /**
+   * Decodes the named or numeric entity at offset by walking the entity trie
+   * a character at a time, as decodeEntityAt used to.
+   */
+  private static long decodeWithTrie(char[] chars, int offset, int limit) {
+    if ('&' != chars[offset]) {
+      return ((offset + 1L) << 32) | chars[offset];
+    }
+    int entityLimit = Math.min(limit, offset + 10);
+    int end = -1;
+    for (int i = offset + 1; i < entityLimit; ++i) {
+      if (';' == chars[i]) {
+        end = i;
+        break;
+      }
+    }
+    if (end < 0 || offset + 2 >= end) {
+      return ((offset + 1L) << 32) | '&';
+    }
+    if ('#' == chars[offset + 1]) {
+      // Numeric entities are decoded the same way either way.
+      return HtmlEntities.decodeEntityAt(chars, offset, limit);
+    }
+    PunctuationTrie<Integer> t = HtmlEntities.ENTITY_TRIE;
+    for (int i = offset + 1; i < end; ++i) {
+      t = t.lookup(chars[i]);
+      if (t == null) { break; }
+    }
+    if (t == null) {
+      t = HtmlEntities.ENTITY_TRIE;
+      for (int i = offset + 1; i < end; ++i) {
+        char nameChar = chars[i];
+        if ('Z' >= nameChar && nameChar >= 'A') { nameChar |= 32; }
+        t = t.lookup(nameChar);
+        if (t == null) { break; }
+      }
+    }
+    if (t == null || !t.isTerminal()) {
+      return ((offset + 1L) << 32) | '&';
+    }
+    return ((end + 1L) << 32) | t.getValue().intValue();
+  }
+}
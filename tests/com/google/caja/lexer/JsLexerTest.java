@@ -15,11 +15,16 @@
 package com.google.caja.lexer;
 
 import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Charsets;
 import com.google.caja.util.FailureIsAnOption;
+import com.google.common.collect.Lists;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.InputStreamReader;
 import java.net.URI;
+import java.util.List;
+import java.util.regex.Pattern;
 
 import junit.framework.AssertionFailedError;
 
@@ -59,6 +64,70 @@ public class JsLexerTest extends CajaTestCase {
     assertEquals(golden, output.toString());
   }
 
+  public final void testTokenize() throws Exception {
+    for (String name : new String[] { "lexertest1.js", "lexertest2.js" }) {
+      List<Token<JsTokenType>> expected = Lists.newArrayList();
+      JsLexer lexer = new JsLexer(fromResource(name));
+      while (lexer.hasNext()) { expected.add(lexer.next()); }
+
+      TokenBuffer<JsTokenType> tokens = JsLexer.tokenize(fromResource(name));
+      assertEquals(name, expected.size(), tokens.size());
+      for (int i = 0; i < tokens.size(); ++i) {
+        Token<JsTokenType> want = expected.get(i);
+        Token<JsTokenType> got = tokens.getToken(i);
+        assertEquals(want.text, got.text);
+        assertEquals(want.text, want.type, got.type);
+        assertEquals(want.text, want.pos, got.pos);
+        assertTrue(want.text, tokens.textEquals(i, want.text));
+      }
+    }
+  }
+
+  public final void testSharedTokenText() throws Exception {
+    TextInterner interner = new TextInterner();
+    JsLexer lexer = new JsLexer(
+        fromString("function f(x) { return x + f(x); }"), false, interner);
+    List<Token<JsTokenType>> tokens = Lists.newArrayList();
+    while (lexer.hasNext()) { tokens.add(lexer.next()); }
+    assertSame(Keyword.FUNCTION.toString(), tokens.get(0).text);
+    assertSame(Punctuation.LPAREN.toString(), tokens.get(2).text);
+    assertSame(Keyword.RETURN.toString(), tokens.get(6).text);
+    assertSame(Punctuation.PLUS.toString(), tokens.get(8).text);
+    assertEquals("f", tokens.get(9).text);
+    assertSame(tokens.get(1).text, tokens.get(9).text);
+    assertEquals("x", tokens.get(11).text);
+    assertSame(tokens.get(3).text, tokens.get(11).text);
+  }
+
+  public final void testSharedTokenTextInBuffer() throws Exception {
+    TokenBuffer<JsTokenType> tokens = JsLexer.tokenize(
+        fromString("function f(x) { return x + f(x); }"), false,
+        new TextInterner());
+    assertSame(Keyword.FUNCTION.toString(), tokens.getText(0));
+    assertSame(Punctuation.LPAREN.toString(), tokens.getText(2));
+    assertSame(Keyword.RETURN.toString(), tokens.getToken(6).text);
+    assertSame(Punctuation.PLUS.toString(), tokens.getToken(8).text);
+    assertEquals("f", tokens.getText(9));
+    assertSame(tokens.getText(1), tokens.getText(9));
+    assertSame(tokens.getText(3), tokens.getToken(11).text);
+  }
+
+  public final void testTokenQueueOverTokenBuffer() throws Exception {
+    JsTokenQueue tq = new JsTokenQueue(
+        JsLexer.tokenize(fromString("/* c */ if (x) y = /re/.test(z);")), is);
+    assertEquals(1, tq.filteredTokens().size());
+    assertEquals("/* c */", tq.filteredTokens().get(0).text);
+    assertEquals("if", tq.pop().text);
+    tq.expectToken(Punctuation.LPAREN);
+    assertEquals("x", tq.pop().text);
+    tq.expectToken(Punctuation.RPAREN);
+    assertEquals("y", tq.pop().text);
+    tq.expectToken(Punctuation.EQ);
+    assertEquals(JsTokenType.REGEXP, tq.pop().type);
+    tq.expectToken(Punctuation.DOT);
+    assertEquals("test", tq.pop().text);
+  }
+
   public final void testRegexLiterals() {
     JsLexer lexer = createLexer("foo.replace(/[A-Z]/g, '#')");
     assertNext(lexer, JsTokenType.WORD, "foo");
@@ -72,6 +141,61 @@ public class JsLexerTest extends CajaTestCase {
     assertEmpty(lexer);
   }
 
+  public final void testIsRegexp() {
+    // The regular expression that isRegexp replaced.
+    StringBuilder sb = new StringBuilder("^(?:");
+    String[] validPreceders = new String[] {
+        "!", "!=", "!==", "#", "%", "%=", "&", "&&", "&&=", "&=", "(", "*",
+        "*=", "+", "+=", ",", "-", "-=", ".", "...", "/", "/=", ":", "::", ";",
+        "<", "<<", "<<=", "<=", "=", "==", "===", ">", ">=", ">>", ">>=", ">>>",
+        ">>>=", "?", "[", "^", "^=", "{", "|", "|=", "||", "||=", "~",
+        "abstract", "break", "case", "catch", "class", "const", "continue",
+        "debugger", "default", "delete", "do", "else", "enum", "export",
+        "extends", "final", "finally", "for", "function", "goto", "if",
+        "implements", "import", "in", "instanceof", "native", "new", "package",
+        "return", "static", "switch", "synchronized", "throw", "throws",
+        "transient", "try", "typeof", "var", "void", "volatile", "while",
+        "with",
+    };
+    for (int i = 0; i < validPreceders.length; i++) {
+      if (i != 0) { sb.append('|'); }
+      sb.append("(?:").append(Pattern.quote(validPreceders[i])).append(')');
+    }
+    Pattern reference = Pattern.compile(sb.append(")$").toString());
+
+    List<Token<JsTokenType>> tokens = Lists.newArrayList();
+    for (Punctuation p : Punctuation.values()) {
+      tokens.add(token(p.toString(), JsTokenType.PUNCTUATION));
+    }
+    for (Keyword k : Keyword.values()) {
+      tokens.add(token(k.toString(), JsTokenType.WORD));
+    }
+    for (String word : new String[] {
+             "#", "abstract", "final", "goto", "native", "synchronized",
+             "throws", "transient", "volatile", "foo", "$", "@foo", "if_",
+             "Final" }) {
+      tokens.add(token(word, JsTokenType.WORD));
+    }
+    tokens.add(token("1", JsTokenType.INTEGER));
+    tokens.add(token("1.", JsTokenType.FLOAT));
+    tokens.add(token(".5", JsTokenType.FLOAT));
+    tokens.add(token("'if'", JsTokenType.STRING));
+    tokens.add(token("/=/g", JsTokenType.REGEXP));
+    for (Token<JsTokenType> t : tokens) {
+      Punctuation p = t.type == JsTokenType.PUNCTUATION
+          ? Punctuation.fromString(t.text) : null;
+      Keyword k = t.type == JsTokenType.WORD
+          ? Keyword.fromString(t.text) : null;
+      assertEquals(t.text, reference.matcher(t.text).find(),
+                   JsLexer.isRegexp(t.type, p, k, t.text.toCharArray(),
+                                    0, t.text.length()));
+    }
+  }
+
+  private static Token<JsTokenType> token(String text, JsTokenType type) {
+    return Token.instance(text, type, FilePosition.UNKNOWN);
+  }
+
   public final void testSimpleExpression() {
     JsLexer lexer = createLexer("while (foo) { 1; }");
     assertNext(lexer, JsTokenType.KEYWORD, "while");
@@ -319,4 +443,37 @@ public class JsLexerTest extends CajaTestCase {
                         + " [" + tok.text + "]: " + tok.pos + "\n");
     }
   }
+
+  public final void testLexerSpeed() throws Exception {
+    List<CharProducer> corpus = Lists.newArrayList();
+    for (String dir : new String[] {
+             "third_party/js/sunspider-benchmark",
+             "third_party/js/v8-benchmark" }) {
+      File[] files = new File(dir).listFiles();
+      if (files == null) { return; }  // Not run from the project root.
+      for (File f : files) {
+        if (f.getName().endsWith(".js")) {
+          corpus.add(CharProducer.Factory.fromFile(f, Charsets.UTF_8));
+        }
+      }
+    }
+    benchmark(corpus, 20);  // prime the JIT
+    Thread.sleep(250);  // Let the JIT kick-in.
+    int microsPerRun = benchmark(corpus, 50);
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".microsPerRun=" + microsPerRun);
+  }
+
+  private static int benchmark(List<CharProducer> corpus, int nRuns)
+      throws ParseException {
+    long t0 = System.nanoTime();
+    for (int i = nRuns; --i >= 0;) {
+      for (CharProducer cp : corpus) {
+        JsLexer lexer = new JsLexer(cp.clone());
+        while (lexer.hasNext()) { lexer.next(); }
+      }
+    }
+    return (int) ((((double) (System.nanoTime() - t0)) / nRuns) / 1e3);
+  }
 }
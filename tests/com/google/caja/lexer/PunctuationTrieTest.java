@@ -163,4 +163,44 @@ public class PunctuationTrieTest extends TestCase {
     assertEquals(null, t.lookup('o'));
     assertEquals(4, t.getValue().intValue());
   }
+
+  public final void testLongestMatch() {
+    char[] buf = ">>>= a..b .. <<<< hello".toCharArray();
+    assertEquals(4, jsPunc.longestMatch(buf, 0, buf.length));
+    assertEquals(3, jsPunc.longestMatch(buf, 0, 3));
+    assertEquals(-1, jsPunc.longestMatch(buf, 5, buf.length));
+    // ".." is not terminal, so "a..b" only matches the first ".".
+    assertEquals(7, jsPunc.longestMatch(buf, 6, buf.length));
+    assertEquals(11, jsPunc.longestMatch(buf, 10, buf.length));
+    assertEquals(15, jsPunc.longestMatch(buf, 13, buf.length));
+    assertEquals(-1, skinny.longestMatch(buf, 18, buf.length));
+    // The string for a terminal trie matches the empty string.
+    PunctuationTrie<?> t = jsPunc.lookup("<<");
+    char[] buf2 = "=x".toCharArray();
+    assertEquals(1, t.longestMatch(buf2, 0, 2));
+    assertEquals(0, t.longestMatch(buf2, 0, 0));
+    assertEquals(1, t.longestMatch(buf2, 1, 2));
+  }
+
+  public final void testNonAscii() {
+    Map<String, Integer> m = new TreeMap<String, Integer>();
+    m.put("a", 0);
+    m.put("a\u00e9", 1);
+    m.put("\u2026", 2);
+    m.put("\u2026\u2026", 3);
+    m.put("z", 4);
+    PunctuationTrie<Integer> t = new PunctuationTrie<Integer>(m);
+    assertEquals(0, t.lookup("a").getValue().intValue());
+    assertEquals(1, t.lookup("a\u00e9").getValue().intValue());
+    assertEquals(2, t.lookup('\u2026').getValue().intValue());
+    assertEquals(4, t.lookup('z').getValue().intValue());
+    assertNull(t.lookup('b'));
+    assertNull(t.lookup('\u00e9'));
+    assertTrue(t.contains('\u2026'));
+    assertFalse(t.contains('\u2027'));
+    char[] buf = "a\u00e9\u2026\u2026\u2026".toCharArray();
+    assertEquals(2, t.longestMatch(buf, 0, buf.length));
+    assertEquals(4, t.longestMatch(buf, 2, buf.length));
+    assertEquals(5, t.longestMatch(buf, 4, buf.length));
+  }
 }
@@ -16,6 +16,8 @@ package com.google.caja.lexer;
 
 import com.google.caja.util.CajaTestCase;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class SourceBreaksTest extends CajaTestCase {
   SourceBreaks breaks;
 
@@ -101,4 +103,47 @@ public class SourceBreaksTest extends CajaTestCase {
     assertEquals(8, breaks.lineAt(31));
     assertEquals(8, breaks.lineAt(32));
   }
+
+  public final void testImmutable() {
+    assertEquals(4, breaks.lineAt(16));
+    breaks.makeImmutable();
+    assertTrue(breaks.isImmutable());
+    try {
+      breaks.lineStartsAt(40);
+      fail();
+    } catch (UnsupportedOperationException ex) {
+      // pass
+    }
+    assertEquals(4, breaks.lineAt(16));
+    assertEquals(8, breaks.lineAt(40));
+  }
+
+  public final void testConcurrentLookups() throws Exception {
+    breaks.makeImmutable();
+    final int[] expectedLines = new int[33];
+    final int[] expectedChars = new int[33];
+    for (int i = 1; i <= 32; ++i) {
+      expectedLines[i] = breaks.lineAt(i);
+      expectedChars[i] = breaks.charInLineAt(i);
+    }
+    final AtomicInteger failures = new AtomicInteger();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; ++t) {
+      final int seed = t;
+      threads[t] = new Thread() {
+        @Override public void run() {
+          for (int n = 0; n < 100000; ++n) {
+            int i = 1 + (n * 7 + seed * 13) % 32;
+            if (breaks.lineAt(i) != expectedLines[i]
+                || breaks.charInLineAt(i) != expectedChars[i]) {
+              failures.incrementAndGet();
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) { thread.join(); }
+    assertEquals(0, failures.get());
+  }
 }
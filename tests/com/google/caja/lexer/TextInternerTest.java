@@ -0,0 +1,42 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lexer;
+
+import junit.framework.TestCase;
+
+public class TextInternerTest extends TestCase {
+  public final void testIntern() {
+    TextInterner interner = new TextInterner(16);
+    char[] buf = "foo bar foo fo".toCharArray();
+    String foo = interner.intern(buf, 0, 3);
+    assertEquals("foo", foo);
+    assertSame(foo, interner.intern(buf, 8, 11));
+    assertEquals("bar", interner.intern(buf, 4, 7));
+    assertEquals("fo", interner.intern(buf, 12, 14));
+    assertEquals("", interner.intern(buf, 3, 3));
+  }
+
+  public final void testBounded() {
+    TextInterner interner = new TextInterner(1);
+    char[] buf = "ab".toCharArray();
+    String a = interner.intern(buf, 0, 1);
+    assertSame(a, interner.intern(buf, 0, 1));
+    // Evicts "a" since there is only one slot.
+    assertEquals("b", interner.intern(buf, 1, 2));
+    String a2 = interner.intern(buf, 0, 1);
+    assertEquals(a, a2);
+    assertNotSame(a, a2);
+  }
+}
@@ -25,6 +25,7 @@ import com.google.caja.parser.js.IntegerLiteral;
 import com.google.caja.parser.js.LabeledStatement;
 import com.google.caja.parser.js.LabeledStmtWrapper;
 import com.google.caja.parser.js.Noop;
+import com.google.caja.parser.js.Statement;
 import com.google.caja.parser.js.StringLiteral;
 import com.google.caja.render.JsPrettyPrinter;
 import com.google.caja.reporting.MessageContext;
@@ -713,6 +714,49 @@ public class ParseTreeNodeTest extends CajaTestCase {
                  ie.getNums().toString());
   }
 
+  public final void testDeepTreeDoesNotOverflowStack() {
+    ParseTreeNode n = new ExpressionStmt(
+        FilePosition.UNKNOWN, new IntegerLiteral(FilePosition.UNKNOWN, 0));
+    int depth = 100000;
+    for (int i = depth; --i >= 0;) {
+      n = new Block(FilePosition.UNKNOWN, Arrays.asList((Statement) n));
+    }
+    NodeCounter pre = new NodeCounter();
+    n.acceptPreOrder(pre, null);
+    assertEquals(depth + 2, pre.count);
+    NodeCounter post = new NodeCounter();
+    n.acceptPostOrder(post, null);
+    assertEquals(depth + 2, post.count);
+  }
+
+  public final void testWideBlockTraversalSpeed() {
+    int nStmts = 50000;
+    List<ExpressionStmt> stmts = Lists.newArrayList();
+    for (int i = 0; i < nStmts; ++i) {
+      stmts.add(new ExpressionStmt(
+          FilePosition.UNKNOWN, new IntegerLiteral(FilePosition.UNKNOWN, i)));
+    }
+    Block block = new Block(FilePosition.UNKNOWN, stmts);
+    benchmark(block, 5);  // prime the JIT
+    int microsPerRun = benchmark(block, 20);
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".wideBlock.microsPerRun="
+        + microsPerRun);
+  }
+
+  private static int benchmark(Block block, int nRuns) {
+    long t0 = System.nanoTime();
+    for (int i = nRuns; --i >= 0;) {
+      NodeCounter pre = new NodeCounter();
+      block.acceptPreOrder(pre, null);
+      NodeCounter post = new NodeCounter();
+      block.acceptPostOrder(post, null);
+      assertEquals(pre.count, post.count);
+    }
+    return (int) ((((double) (System.nanoTime() - t0)) / nRuns) / 1e3);
+  }
+
   public final void testSerializable() throws Exception {
     assertSerializable(root);
   }
@@ -794,6 +838,15 @@ public class ParseTreeNodeTest extends CajaTestCase {
     List<Number> getNums() { return nums; }
   }
 
+  static class NodeCounter implements Visitor {
+    int count;
+
+    public boolean visit(AncestorChain<?> ancestors) {
+      ++count;
+      return true;
+    }
+  }
+
   static class IntEnqueuerExcept extends IntEnqueuer {
     private final long exception;
 
@@ -42,6 +42,28 @@ public class ParserBaseTest extends TestCase {
     }
   }
 
+  public final void testIsQuasiIdentifier() {
+    for (String s : new String[] {
+             "foo", "@foo", "@foo*", "@foo+", "@foo?", "@_", "ev\\u0061l",
+         }) {
+      assertTrue(s, ParserBase.isQuasiIdentifier(s));
+    }
+    for (String s : new String[] {
+             "", "@", "@*", "foo*", "@@foo", "@foo**", "@1", "@foo-",
+         }) {
+      assertFalse(s, ParserBase.isQuasiIdentifier(s));
+    }
+  }
+
+  public final void testSupplementaryCodepoints() {
+    // MATHEMATICAL BOLD CAPITAL A is a letter outside the BMP.
+    assertTrue(ParserBase.isJavascriptIdentifier("\ud835\udc00"));
+    assertTrue(ParserBase.isJavascriptIdentifier("a\ud835\udc00"));
+    // A lone surrogate is not a letter.
+    assertFalse(ParserBase.isJavascriptIdentifier("\ud835"));
+    assertFalse(ParserBase.isJavascriptIdentifier("a\udc00"));
+  }
+
   public final void testDecodeIdentifier() {
     assertEquals("eval", ParserBase.decodeIdentifier("eval"));
     assertEquals("eval", ParserBase.decodeIdentifier("ev\\u0061l"));
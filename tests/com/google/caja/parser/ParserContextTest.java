@@ -18,6 +18,7 @@ import java.io.InputStream;
 import java.net.URI;
 import java.util.Map;
 
+import com.google.caja.lexer.FilePosition;
 import com.google.caja.lexer.InputSource;
 import com.google.caja.parser.html.Dom;
 import com.google.caja.parser.html.DomParserTest;
@@ -75,6 +76,26 @@ public class ParserContextTest extends CajaTestCase {
     assertTrue(node instanceof Block);
   }
 
+  public final void testLinePositionsOnly() throws Exception {
+    String src = "var x = 1,\n    y = x\n+ 2\nf(y)";
+    ParserContext ctx = new ParserContext(DevNullMessageQueue.singleton())
+        .withInput(ContentType.JS).withInput(is);
+    ParseTreeNode precise = ctx.withInput(src).build();
+    ParseTreeNode coarse = ctx.withLinePositionsOnly(true).withInput(src)
+        .build();
+    // Semicolon insertion depends on line breaks, so the trees match.
+    assertEquals(render(precise), render(coarse));
+
+    FilePosition declPos = coarse.children().get(0).getFilePosition();
+    assertEquals(1, declPos.startLineNo());
+    assertEquals(1, declPos.startCharInLine());
+    assertEquals(3, declPos.endLineNo());
+    assertEquals(1, declPos.endCharInLine());
+    FilePosition callPos = coarse.children().get(1).getFilePosition();
+    assertEquals(4, callPos.startLineNo());
+    assertEquals(0, callPos.length());
+  }
+
   public final void testGuessCharProducer() throws Exception {
     InputStream html = TestUtil.getResource(DomParserTest.class,
         "amazon.com.html").toURL().openStream();
@@ -0,0 +1,198 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.perf;
+
+import com.google.caja.ancillary.opt.JsOptimizer;
+import com.google.caja.lexer.CharProducer;
+import com.google.caja.lexer.HtmlLexer;
+import com.google.caja.lexer.HtmlTokenType;
+import com.google.caja.lexer.TokenQueue;
+import com.google.caja.parser.ParserContext;
+import com.google.caja.parser.html.DomParser;
+import com.google.caja.parser.html.Nodes;
+import com.google.caja.parser.js.Block;
+import com.google.caja.render.JsMinimalPrinter;
+import com.google.caja.reporting.DevNullMessageQueue;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.RenderContext;
+import com.google.caja.util.Charsets;
+import com.google.caja.util.ContentType;
+import com.google.common.collect.Lists;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * Fails if the core pipelines allocate more bytes per byte of input than
+ * budgeted in {@code allocation-budgets.properties}, so that allocation
+ * regressions are caught before they ship.
+ * <p>
+ * Allocation is measured with the per-thread counters of
+ * {@code com.sun.management.ThreadMXBean}, and fails on JVMs that lack them.
+ * Since the bytes allocated depend on the JVM's object layout, the budgets
+ * hold only for the JVM they were calibrated on, so this is not named like a
+ * test and is run by the {@code microbenchmarks} target instead of with the
+ * other tests.  It must be run from the project root since the corpus
+ * paths are relative to it.
+ */
+public class AllocationBudgets extends TestCase {
+  private static final String CORPUS = "corpus.txt";
+  private static final String BUDGETS = "allocation-budgets.properties";
+  /** Runs that are measured after one run to load classes and fill caches. */
+  private static final int N_RUNS = 3;
+
+  private final MessageQueue mq = DevNullMessageQueue.singleton();
+  private com.sun.management.ThreadMXBean threadBean;
+  private Properties budgets;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    java.lang.management.ThreadMXBean bean
+        = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean
+          && ((com.sun.management.ThreadMXBean) bean)
+             .isThreadAllocatedMemorySupported())) {
+      fail("This JVM does not count the bytes that threads allocate");
+    }
+    threadBean = (com.sun.management.ThreadMXBean) bean;
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    budgets = new Properties();
+    InputStream in = resource(BUDGETS);
+    try {
+      budgets.load(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    threadBean = null;
+    budgets = null;
+    super.tearDown();
+  }
+
+  /** ParserContext.build, then JsOptimizer.optimize, then JsMinimalPrinter. */
+  public final void testJsPipeline() throws Exception {
+    assertWithinBudget("jsPipeline", "js", new Pipeline() {
+      @Override void run(CharProducer cp) throws Exception {
+        Block program = (Block) new ParserContext(mq)
+            .withInput(cp).withInput(ContentType.JS).build();
+        JsOptimizer optimizer = new JsOptimizer(mq);
+        optimizer.addInput(program);
+        StringBuilder sb = new StringBuilder();
+        JsMinimalPrinter printer = new JsMinimalPrinter(sb);
+        optimizer.optimize().render(new RenderContext(printer));
+        printer.noMoreTokens();
+      }
+    });
+  }
+
+  /** DomParser.parseDocument, then Nodes.render. */
+  public final void testHtmlPipeline() throws Exception {
+    assertWithinBudget("htmlPipeline", "html", new Pipeline() {
+      @Override void run(CharProducer cp) throws Exception {
+        HtmlLexer lexer = new HtmlLexer(cp);
+        lexer.setTreatedAsXml(false);
+        TokenQueue<HtmlTokenType> tq = new TokenQueue<HtmlTokenType>(
+            lexer, cp.getSourceBreaks(0).source(), DomParser.SKIP_COMMENTS);
+        Nodes.render(new DomParser(tq, false, mq).parseDocument());
+      }
+    });
+  }
+
+  private static abstract class Pipeline {
+    abstract void run(CharProducer cp) throws Exception;
+  }
+
+  private void assertWithinBudget(String name, String kind, Pipeline p)
+      throws Exception {
+    String budgetStr = budgets.getProperty(name);
+    assertNotNull(BUDGETS + " has no " + name, budgetStr);
+    double budget = Double.parseDouble(budgetStr);
+
+    List<File> files = corpus(kind);
+    assertFalse(files.isEmpty());
+    long inputBytes = 0;
+    List<CharProducer> inputs = Lists.newArrayList();
+    for (File f : files) {
+      assertTrue(f + " not found from " + new File("").getAbsolutePath(),
+                 f.isFile());
+      inputBytes += f.length();
+      inputs.add(CharProducer.Factory.fromFile(f, Charsets.UTF_8));
+    }
+
+    for (CharProducer cp : inputs) { p.run(cp.clone()); }  // Warm up.
+    long allocated = 0;
+    for (int i = N_RUNS; --i >= 0;) {
+      for (CharProducer cp : inputs) {
+        // Cloning shares the buffer, so allocates little, but exclude it.
+        CharProducer input = cp.clone();
+        long before = allocatedBytes();
+        p.run(input);
+        allocated += allocatedBytes() - before;
+      }
+    }
+    double perInputByte = ((double) allocated) / (inputBytes * N_RUNS);
+
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + "." + name
+        + ".allocatedBytesPerInputByte=" + Math.round(perInputByte));
+    assertTrue(
+        name + " allocated " + Math.round(perInputByte)
+        + " bytes per input byte, over the budget of " + budget
+        + " in " + BUDGETS,
+        perInputByte <= budget);
+  }
+
+  private long allocatedBytes() {
+    return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private InputStream resource(String name) {
+    InputStream in = getClass().getResourceAsStream(name);
+    assertNotNull(name + " is not on the classpath", in);
+    return in;
+  }
+
+  private List<File> corpus(String kind) throws IOException {
+    List<File> files = Lists.newArrayList();
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        resource(CORPUS), Charsets.UTF_8));
+    try {
+      for (String line; (line = in.readLine()) != null;) {
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) { continue; }
+        String[] kindAndPath = line.split("\\s+", 2);
+        if (kind.equals(kindAndPath[0])) {
+          files.add(new File(kindAndPath[1]));
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return files;
+  }
+}
@@ -0,0 +1,296 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.perf;
+
+import com.google.caja.ancillary.linter.Linter;
+import com.google.caja.ancillary.opt.JsOptimizer;
+import com.google.caja.lexer.CharProducer;
+import com.google.caja.lexer.CssLexer;
+import com.google.caja.lexer.HtmlLexer;
+import com.google.caja.lexer.HtmlTokenType;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.JsLexer;
+import com.google.caja.lexer.JsTokenQueue;
+import com.google.caja.lexer.ParseException;
+import com.google.caja.lexer.TokenConsumer;
+import com.google.caja.lexer.TokenQueue;
+import com.google.caja.lexer.escaping.Escaping;
+import com.google.caja.parser.html.DomParser;
+import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.Parser;
+import com.google.caja.render.JsMinimalPrinter;
+import com.google.caja.render.JsPrettyPrinter;
+import com.google.caja.reporting.DevNullMessageQueue;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.RenderContext;
+import com.google.caja.util.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Times the lexers, parsers, renderers, optimizer, linter and escapers over
+ * the inputs listed in {@code corpus.txt}.
+ * <p>
+ * Each benchmark warms up, then runs for a fixed time, and prints its mean
+ * time per pass over its part of the corpus as a line like
+ * {@code VarZ:com.google.caja.perf.MicroBenchmarks.jsLexer.microsPerRun=123}
+ * which "tools/dashboard/dashboard.pl" extracts.
+ * {@code ant microbenchmarks} runs these and leaves the results in the JUnit
+ * XML reports under {@code ant-reports/microbenchmarks} so they can be
+ * compared between revisions.
+ * <p>
+ * This is not named like a test so that {@code ant runtests} skips it.
+ * Paths are relative to the project root, so run it from there.
+ */
+public class MicroBenchmarks extends TestCase {
+  private static final String CORPUS = "tests/com/google/caja/perf/corpus.txt";
+  private static final long WARMUP_NANOS = 1000000000L;
+  private static final long MEASURE_NANOS = 2000000000L;
+  private static final int MIN_RUNS = 5;
+
+  private final MessageQueue mq = DevNullMessageQueue.singleton();
+  private List<CharProducer> js, css, html;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    js = Lists.newArrayList();
+    css = Lists.newArrayList();
+    html = Lists.newArrayList();
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(CORPUS), Charsets.UTF_8));
+    try {
+      for (String line; (line = in.readLine()) != null;) {
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) { continue; }
+        String[] kindAndPath = line.split("\\s+", 2);
+        CharProducer cp = CharProducer.Factory.fromFile(
+            new File(kindAndPath[1]), Charsets.UTF_8);
+        String kind = kindAndPath[0];
+        if ("js".equals(kind)) {
+          js.add(cp);
+        } else if ("css".equals(kind)) {
+          css.add(cp);
+        } else if ("html".equals(kind)) {
+          html.add(cp);
+        } else {
+          fail(CORPUS + ": bad kind " + kind);
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    js = css = html = null;
+    super.tearDown();
+  }
+
+  public final void testJsLexer() throws Exception {
+    benchmark("jsLexer", new Op() {
+      @Override void run() throws ParseException {
+        for (CharProducer cp : js) {
+          JsLexer lexer = new JsLexer(cp.clone());
+          while (lexer.hasNext()) { lexer.next(); }
+        }
+      }
+    });
+  }
+
+  public final void testCssLexer() throws Exception {
+    benchmark("cssLexer", new Op() {
+      @Override void run() throws ParseException {
+        for (CharProducer cp : css) {
+          CssLexer lexer = new CssLexer(cp.clone(), mq, false);
+          while (lexer.hasNext()) { lexer.next(); }
+        }
+      }
+    });
+  }
+
+  public final void testHtmlLexer() throws Exception {
+    benchmark("htmlLexer", new Op() {
+      @Override void run() throws ParseException {
+        for (CharProducer cp : html) {
+          HtmlLexer lexer = new HtmlLexer(cp.clone());
+          lexer.setTreatedAsXml(false);
+          while (lexer.hasNext()) { lexer.next(); }
+        }
+      }
+    });
+  }
+
+  public final void testJsParser() throws Exception {
+    benchmark("jsParser", new Op() {
+      @Override void run() throws ParseException {
+        for (CharProducer cp : js) { parse(cp); }
+      }
+    });
+  }
+
+  public final void testDomParser() throws Exception {
+    benchmark("domParser", new Op() {
+      @Override void run() throws ParseException {
+        for (CharProducer cp : html) {
+          HtmlLexer lexer = new HtmlLexer(cp.clone());
+          lexer.setTreatedAsXml(false);
+          TokenQueue<HtmlTokenType> tq = new TokenQueue<HtmlTokenType>(
+              lexer, source(cp), DomParser.SKIP_COMMENTS);
+          DomParser p = new DomParser(tq, false, mq);
+          p.setNeedsDebugData(false);
+          p.parseDocument();
+        }
+      }
+    });
+  }
+
+  public final void testJsMinimalPrinter() throws Exception {
+    final List<Block> programs = parseAll(js);
+    benchmark("jsMinimalPrinter", new Op() {
+      @Override void run() {
+        for (Block program : programs) {
+          render(program, new JsMinimalPrinter(new StringBuilder()));
+        }
+      }
+    });
+  }
+
+  public final void testJsPrettyPrinter() throws Exception {
+    final List<Block> programs = parseAll(js);
+    benchmark("jsPrettyPrinter", new Op() {
+      @Override void run() {
+        for (Block program : programs) {
+          render(program, new JsPrettyPrinter(new StringBuilder()));
+        }
+      }
+    });
+  }
+
+  public final void testJsOptimizer() throws Exception {
+    final List<Block> programs = parseAll(js);
+    benchmark("jsOptimizer", new Op() {
+      private JsOptimizer optimizer;
+
+      @Override void setUp() {
+        // The optimizer modifies its inputs, so give it copies.
+        optimizer = new JsOptimizer(mq);
+        for (Block program : programs) {
+          optimizer.addInput((Block) program.clone());
+        }
+      }
+
+      @Override void run() { optimizer.optimize(); }
+    });
+  }
+
+  public final void testLinter() throws Exception {
+    final List<Block> programs = parseAll(js);
+    benchmark("linter", new Op() {
+      private List<Linter.LintJob> jobs;
+
+      @Override void setUp() {
+        // The linter attaches scopes to its inputs, so give it copies.
+        jobs = Lists.newArrayList();
+        for (Block program : programs) {
+          jobs.add(Linter.makeLintJob((Block) program.clone(), mq));
+        }
+      }
+
+      @Override void run() {
+        Linter.lint(
+            jobs, new Linter.Environment(Sets.<String>newHashSet()), mq);
+      }
+    });
+  }
+
+  public final void testEscaping() throws Exception {
+    benchmark("escaping", new Op() {
+      @Override void run() {
+        StringBuilder sb = new StringBuilder();
+        for (CharProducer cp : js) {
+          sb.setLength(0);
+          Escaping.escapeJsString(cp, true, true, sb);
+          sb.setLength(0);
+          Escaping.escapeXml(cp, true, sb);
+        }
+      }
+    });
+  }
+
+  /** A unit of work to time. */
+  private static abstract class Op {
+    /** Called before each run, and not timed. */
+    void setUp() throws Exception { /* nothing to do by default */ }
+
+    abstract void run() throws Exception;
+  }
+
+  private void benchmark(String name, Op op) throws Exception {
+    time(op, WARMUP_NANOS);  // prime the JIT
+    long nanosPerRun = time(op, MEASURE_NANOS);
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + "." + name + ".microsPerRun="
+        + (nanosPerRun / 1000));
+  }
+
+  /**
+   * Runs op at least {@link #MIN_RUNS} times and until minNanos have been
+   * spent in it.
+   * @return the mean nanoseconds per run.
+   */
+  private static long time(Op op, long minNanos) throws Exception {
+    long total = 0;
+    int nRuns = 0;
+    while (nRuns < MIN_RUNS || total < minNanos) {
+      op.setUp();
+      long t0 = System.nanoTime();
+      op.run();
+      total += System.nanoTime() - t0;
+      ++nRuns;
+    }
+    return total / nRuns;
+  }
+
+  private Block parse(CharProducer cp) throws ParseException {
+    JsTokenQueue tq = new JsTokenQueue(new JsLexer(cp.clone()), source(cp));
+    return new Parser(tq, mq).parse();
+  }
+
+  private List<Block> parseAll(List<CharProducer> cps) throws ParseException {
+    List<Block> programs = Lists.newArrayList();
+    for (CharProducer cp : cps) { programs.add(parse(cp)); }
+    return programs;
+  }
+
+  private static InputSource source(CharProducer cp) {
+    return cp.getSourceBreaks(0).source();
+  }
+
+  private static void render(Block program, TokenConsumer tc) {
+    program.renderBody(new RenderContext(tc));
+    tc.noMoreTokens();
+  }
+}
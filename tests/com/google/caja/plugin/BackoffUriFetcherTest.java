@@ -0,0 +1,210 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lexer.ExternalReference;
+import com.google.caja.lexer.FetchedData;
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Charsets;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class BackoffUriFetcherTest extends CajaTestCase {
+  private static final URI URI_A = URI.create("http://example.com/a.js");
+  private static final URI URI_B = URI.create("http://example.com/b.js");
+  private static final URI URI_C = URI.create("http://example.org/c.js");
+
+  private final AtomicInteger fetchCount = new AtomicInteger();
+  /** The cause of failure for the next fetches, or null to succeed. */
+  private volatile IOException failure;
+  /** If not null, fetches wait for this after counting down started. */
+  private volatile CountDownLatch gate;
+  private final CountDownLatch started = new CountDownLatch(1);
+  private long now;
+  private BackoffUriFetcher fetcher;
+
+  private final UriFetcher origin = new UriFetcher() {
+    public FetchedData fetch(ExternalReference ref, String mimeType)
+        throws UriFetchException {
+      fetchCount.incrementAndGet();
+      if (gate != null) {
+        started.countDown();
+        try {
+          gate.await();
+        } catch (InterruptedException ex) {
+          throw new UriFetchException(ref, mimeType, ex);
+        }
+      }
+      if (failure != null) {
+        throw new UriFetchException(ref, mimeType, failure);
+      }
+      return FetchedData.fromBytes(
+          "alert(1)".getBytes(Charsets.UTF_8), mimeType, "UTF-8",
+          new InputSource(ref.getUri()));
+    }
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    now = 1000000;
+    fetcher = new BackoffUriFetcher(origin, 1000, 4000) {
+      @Override
+      protected long currentTime() { return now; }
+    };
+  }
+
+  private boolean fetch(URI uri) {
+    try {
+      fetcher.fetch(new ExternalReference(uri, FilePosition.UNKNOWN),
+                    "text/javascript");
+      return true;
+    } catch (UriFetcher.UriFetchException ex) {
+      return false;
+    }
+  }
+
+  public final void testUriBackoff() {
+    failure = new IOException("HTTP status 404");
+    assertFalse(fetch(URI_A));
+    assertEquals(1, fetchCount.get());
+
+    failure = null;
+    assertFalse(fetch(URI_A));
+    assertEquals(1, fetchCount.get());
+    assertEquals(1, fetcher.getFastFailureCount());
+    assertEquals(1, fetcher.getBackingOffUriCount());
+    // The host is fine.
+    assertEquals(0, fetcher.getBackingOffHostCount());
+    assertTrue(fetch(URI_B));
+
+    now += 1000;
+    assertTrue(fetch(URI_A));
+    assertEquals(3, fetchCount.get());
+    assertEquals(0, fetcher.getBackingOffUriCount());
+    // The success was forgotten along with the failure.
+    assertTrue(fetch(URI_A));
+    assertEquals(4, fetchCount.get());
+  }
+
+  public final void testBackoffDoubles() {
+    failure = new IOException("HTTP status 500");
+    assertFalse(fetch(URI_A));
+    now += 1000;
+    assertFalse(fetch(URI_A));
+    assertEquals(2, fetchCount.get());
+    now += 1999;
+    assertFalse(fetch(URI_A));
+    assertEquals(2, fetchCount.get());
+    now += 1;
+    assertFalse(fetch(URI_A));
+    assertEquals(3, fetchCount.get());
+    // Capped at the maximum.
+    for (int i = 0; i < 40; ++i) {
+      now += 4000;
+      assertFalse(fetch(URI_A));
+    }
+    assertEquals(43, fetchCount.get());
+    assertEquals(43, fetcher.getBackoffCount());
+  }
+
+  public final void testUnreachableHost() {
+    failure = new ConnectException("Connection refused");
+    assertFalse(fetch(URI_A));
+    assertEquals(1, fetcher.getBackingOffHostCount());
+
+    failure = null;
+    // Other URIs from the host fail fast too.
+    assertFalse(fetch(URI_B));
+    assertEquals(1, fetchCount.get());
+    // But not ones from other hosts.
+    assertTrue(fetch(URI_C));
+    assertEquals(2, fetchCount.get());
+
+    now += 1000;
+    assertTrue(fetch(URI_B));
+    assertEquals(0, fetcher.getBackingOffHostCount());
+    // URI_A is still backing off by itself, but its time is up.
+    assertTrue(fetch(URI_A));
+    assertEquals(4, fetchCount.get());
+  }
+
+  public final void testSingleTrial() throws Exception {
+    failure = new ConnectException("Connection refused");
+    assertFalse(fetch(URI_A));
+    now += 1000;
+    failure = null;
+    gate = new CountDownLatch(1);
+
+    final boolean[] trialResult = new boolean[1];
+    Thread trial = new Thread() {
+      @Override
+      public void run() { trialResult[0] = fetch(URI_A); }
+    };
+    trial.start();
+    started.await();
+    // Only the trial reaches the origin while it is in flight.
+    assertFalse(fetch(URI_B));
+    assertFalse(fetch(URI_A));
+    assertEquals(2, fetchCount.get());
+    gate.countDown();
+    trial.join();
+    assertTrue(trialResult[0]);
+    assertTrue(fetch(URI_B));
+  }
+
+  public final void testInterruptionIsNotAFailure() {
+    failure = new ConnectException("Connection refused");
+    assertFalse(fetch(URI_A));
+    now += 1000;
+    gate = new CountDownLatch(1);
+    Thread.currentThread().interrupt();
+    assertFalse(fetch(URI_A));
+    // The trial was given back without extending the backoff.
+    gate = null;
+    failure = null;
+    assertTrue(fetch(URI_A));
+    assertEquals(3, fetchCount.get());
+  }
+
+  public final void testLocalThrottlingIsNotAFailure() {
+    failure = new HttpUriFetcher.HostThrottledException("http://example.com");
+    assertFalse(fetch(URI_A));
+    assertEquals(0, fetcher.getBackingOffUriCount());
+    assertEquals(0, fetcher.getBackoffCount());
+    failure = null;
+    assertTrue(fetch(URI_A));
+    assertEquals(2, fetchCount.get());
+  }
+
+  public final void testTrackedFailuresAreBounded() {
+    failure = new IOException("HTTP status 404");
+    int n = BackoffUriFetcher.MAX_TRACKED * 2;
+    for (int i = 0; i < n; ++i) {
+      assertFalse(fetch(URI.create("http://example.com/" + i + ".js")));
+    }
+    int tracked = fetcher.getBackingOffUriCount();
+    assertTrue("" + tracked, tracked <= BackoffUriFetcher.MAX_TRACKED);
+    // The latest failure is remembered.
+    assertFalse(fetch(URI.create("http://example.com/" + (n - 1) + ".js")));
+    assertEquals(n, fetchCount.get());
+  }
+}
@@ -0,0 +1,153 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lexer.ExternalReference;
+import com.google.caja.lexer.FetchedData;
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class CoalescingUriFetcherTest extends CajaTestCase {
+  private static final URI URI_A = URI.create("http://example.com/a.js");
+
+  private final AtomicInteger fetchCount = new AtomicInteger();
+  private CountDownLatch started;
+  private CountDownLatch release;
+  private volatile boolean fail;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    started = new CountDownLatch(1);
+    release = new CountDownLatch(1);
+  }
+
+  /** A fetcher that blocks until released. */
+  private final UriFetcher slowFetcher = new UriFetcher() {
+    public FetchedData fetch(ExternalReference ref, String mimeType)
+        throws UriFetchException {
+      fetchCount.incrementAndGet();
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        throw new UriFetchException(ref, mimeType, ex);
+      }
+      if (fail) {
+        throw new UriFetchException(
+            ref, mimeType, new IOException("origin down"));
+      }
+      return FetchedData.fromBytes(
+          ref.getUri().toString().getBytes(Charsets.UTF_8), mimeType,
+          "UTF-8", new InputSource(ref.getUri()));
+    }
+  };
+
+  private static final class Fetch extends Thread {
+    final UriFetcher fetcher;
+    final URI uri;
+    final MessageQueue mq = new SimpleMessageQueue();
+    FetchedData result;
+
+    Fetch(UriFetcher fetcher, URI uri) {
+      this.fetcher = fetcher;
+      this.uri = uri;
+    }
+
+    @Override
+    public void run() {
+      try {
+        result = fetcher.fetch(
+            new ExternalReference(uri, FilePosition.UNKNOWN),
+            "text/javascript");
+      } catch (UriFetcher.UriFetchException ex) {
+        ex.toMessageQueue(mq);
+      }
+    }
+  }
+
+  private List<Fetch> startConcurrentFetches(UriFetcher fetcher, int n)
+      throws InterruptedException {
+    List<Fetch> fetches = Lists.newArrayList();
+    Fetch leader = new Fetch(fetcher, URI_A);
+    fetches.add(leader);
+    leader.start();
+    started.await();
+    for (int i = 1; i < n; ++i) {
+      Fetch waiter = new Fetch(fetcher, URI_A);
+      fetches.add(waiter);
+      waiter.start();
+    }
+    // Don't let the leader finish until every waiter is blocked on it.
+    for (Fetch waiter : fetches.subList(1, n)) {
+      while (waiter.getState() != Thread.State.WAITING) { Thread.sleep(1); }
+    }
+    release.countDown();
+    for (Fetch f : fetches) { f.join(); }
+    return fetches;
+  }
+
+  public final void testConcurrentFetchesShareResult() throws Exception {
+    CoalescingUriFetcher fetcher = new CoalescingUriFetcher(slowFetcher);
+    List<Fetch> fetches = startConcurrentFetches(fetcher, 5);
+    assertEquals(1, fetchCount.get());
+    for (Fetch f : fetches) {
+      assertNotNull(f.result);
+      assertSame(fetches.get(0).result, f.result);
+      assertTrue(f.mq.getMessages().isEmpty());
+    }
+    assertEquals(0, fetcher.getInFlightCount());
+  }
+
+  public final void testFailurePropagatesToEveryWaiter() throws Exception {
+    fail = true;
+    CoalescingUriFetcher fetcher = new CoalescingUriFetcher(slowFetcher);
+    List<Fetch> fetches = startConcurrentFetches(fetcher, 3);
+    assertEquals(1, fetchCount.get());
+    for (Fetch f : fetches) {
+      assertNull(f.result);
+      List<Message> messages = f.mq.getMessages();
+      assertEquals(1, messages.size());
+      assertEquals(
+          PluginMessageType.FAILED_TO_LOAD_EXTERNAL_URL,
+          messages.get(0).getMessageType());
+    }
+    // Each waiter has its own queue.
+    assertNotSame(fetches.get(0).mq.getMessages().get(0),
+                  fetches.get(1).mq.getMessages().get(0));
+  }
+
+  public final void testSequentialFetchesAreNotCoalesced() throws Exception {
+    release.countDown();
+    CoalescingUriFetcher fetcher = new CoalescingUriFetcher(slowFetcher);
+    ExternalReference ref = new ExternalReference(URI_A, FilePosition.UNKNOWN);
+    fetcher.fetch(ref, "text/javascript");
+    fetcher.fetch(ref, "text/javascript");
+    fetcher.fetch(ref, "text/css");
+    assertEquals(3, fetchCount.get());
+  }
+}
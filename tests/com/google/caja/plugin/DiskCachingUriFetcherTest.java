@@ -0,0 +1,101 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lexer.ExternalReference;
+import com.google.caja.lexer.FetchedData;
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Charsets;
+
+import java.io.File;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class DiskCachingUriFetcherTest extends CajaTestCase {
+  private static final URI URI_A = URI.create("http://example.com/a.js");
+
+  private final AtomicInteger fetchCount = new AtomicInteger();
+  private long lifetime;
+  private File file;
+  private FetchedDataStore store;
+
+  private final UriFetcher origin = new UriFetcher() {
+    public FetchedData fetch(ExternalReference ref, String mimeType) {
+      return FetchedData.fromBytes(
+          ("alert(" + fetchCount.incrementAndGet() + ")")
+              .getBytes(Charsets.UTF_8),
+          mimeType, "UTF-8", new InputSource(ref.getUri()), lifetime);
+    }
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile(getClass().getSimpleName(), ".dat");
+    file.delete();
+    store = FetchedDataStore.open(file, 1 << 20);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    store.close();
+    file.delete();
+    super.tearDown();
+  }
+
+  private String fetch(UriFetcher fetcher) throws Exception {
+    FetchedData data = fetcher.fetch(
+        new ExternalReference(URI_A, FilePosition.UNKNOWN), "text/javascript");
+    return new String(data.getByteContent(), Charsets.UTF_8);
+  }
+
+  public final void testServedFromDiskAfterRestart() throws Exception {
+    lifetime = 60000;
+    assertEquals(
+        "alert(1)", fetch(new DiskCachingUriFetcher(origin, store, 0)));
+    store.close();
+
+    store = FetchedDataStore.open(file, 1 << 20);
+    UriFetcher fetcher = new DiskCachingUriFetcher(origin, store, 0);
+    assertEquals("alert(1)", fetch(fetcher));
+    assertEquals(1, fetchCount.get());
+  }
+
+  public final void testDefaultLifetime() throws Exception {
+    lifetime = FetchedData.UNKNOWN_FRESHNESS;
+    UriFetcher fetcher = new DiskCachingUriFetcher(origin, store, 60000);
+    assertEquals("alert(1)", fetch(fetcher));
+    assertEquals("alert(1)", fetch(fetcher));
+
+    fetcher = new DiskCachingUriFetcher(origin, store, 0);
+    store.remove(URI_A, "text/javascript");
+    assertEquals("alert(2)", fetch(fetcher));
+    assertEquals("alert(3)", fetch(fetcher));
+  }
+
+  public final void testUncacheableContentIsNotStored() throws Exception {
+    // Expired content is still in the store until compacted.
+    store.put(URI_A, "text/javascript", FetchedData.fromBytes(
+        new byte[0], "text/javascript", "UTF-8", new InputSource(URI_A)), 1);
+    assertEquals(1, store.size());
+    lifetime = 0;
+    UriFetcher fetcher = new DiskCachingUriFetcher(origin, store, 60000);
+    assertEquals("alert(1)", fetch(fetcher));
+    assertEquals(0, store.size());
+    assertEquals("alert(2)", fetch(fetcher));
+  }
+}
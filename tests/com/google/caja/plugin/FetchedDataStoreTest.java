@@ -0,0 +1,323 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lexer.FetchedData;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Charsets;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public final class FetchedDataStoreTest extends CajaTestCase {
+  private static final URI URI_A = URI.create("http://example.com/a.js");
+  private static final URI URI_B = URI.create("http://example.com/b.css");
+  private static final long NOW = 1000000;
+  private static final long LATER = NOW + 60000;
+
+  private File file;
+  private FetchedDataStore store;
+  /** Compactions that the store started, run by runCompactions. */
+  private final List<Runnable> compactions = Lists.newArrayList();
+  private final Executor compactor = new Executor() {
+    public void execute(Runnable r) { compactions.add(r); }
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile(getClass().getSimpleName(), ".dat");
+    file.delete();
+    store = open();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    store.close();
+    file.delete();
+    new File(file.getPath() + ".compact").delete();
+    super.tearDown();
+  }
+
+  private static FetchedData data(String content) {
+    return FetchedData.fromBytes(
+        content.getBytes(Charsets.UTF_8), "text/javascript", "UTF-8",
+        new InputSource(URI_A));
+  }
+
+  private static String content(FetchedData data) throws IOException {
+    return new String(data.getByteContent(), data.getCharSet());
+  }
+
+  private FetchedDataStore open() throws IOException {
+    return FetchedDataStore.open(file, 1 << 16, compactor);
+  }
+
+  private void runCompactions() {
+    while (!compactions.isEmpty()) { compactions.remove(0).run(); }
+  }
+
+  private void reopen() throws IOException {
+    store.close();
+    store = open();
+  }
+
+  public final void testPutAndGet() throws Exception {
+    assertNull(store.get(URI_A, "text/javascript", NOW));
+    store.put(URI_A, "text/javascript", data("alert(1)"), LATER);
+    FetchedData got = store.get(URI_A, "text/javascript", NOW);
+    assertEquals("alert(1)", content(got));
+    assertEquals("text/javascript", got.getContentType());
+    assertEquals("UTF-8", got.getCharSet());
+    assertEquals(LATER - NOW, got.getFreshnessLifetime());
+    // Keyed by MIME type as well as URI.
+    assertNull(store.get(URI_A, "text/css", NOW));
+    assertNull(store.get(URI_B, "text/javascript", NOW));
+  }
+
+  public final void testNullContentType() throws Exception {
+    store.put(URI_A, "*/*", FetchedData.fromBytes(
+        new byte[] { 1, 2 }, null, null, new InputSource(URI_A)), LATER);
+    reopen();
+    FetchedData got = store.get(URI_A, "*/*", NOW);
+    assertNull(got.getContentType());
+    assertEquals("", got.getCharSet());
+    assertEquals(2, got.getByteContent().length);
+  }
+
+  public final void testExpiration() throws Exception {
+    store.put(URI_A, "text/javascript", data("alert(1)"), LATER);
+    assertNotNull(store.get(URI_A, "text/javascript", LATER - 1));
+    assertNull(store.get(URI_A, "text/javascript", LATER));
+  }
+
+  public final void testContentSurvivesReopening() throws Exception {
+    store.put(URI_A, "text/javascript", data("alert(1)"), LATER);
+    store.put(URI_B, "text/css", data("p {}"), LATER);
+    store.put(URI_A, "text/javascript", data("alert(2)"), LATER);
+    store.remove(URI_B, "text/css");
+    long size = store.getFileSize();
+    reopen();
+    assertEquals(size, store.getFileSize());
+    assertEquals(1, store.size());
+    assertEquals(
+        "alert(2)", content(store.get(URI_A, "text/javascript", NOW)));
+    assertNull(store.get(URI_B, "text/css", NOW));
+  }
+
+  public final void testTruncatedRecordIsDropped() throws Exception {
+    store.put(URI_A, "text/javascript", data("alert(1)"), LATER);
+    long goodSize = store.getFileSize();
+    store.put(URI_B, "text/css", data("p { color: red }"), LATER);
+    store.close();
+    // As if the process died part way through the second append.
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(store.getFileSize() - 3);
+    raf.close();
+
+    store = open();
+    assertEquals(goodSize, store.getFileSize());
+    assertEquals(goodSize, file.length());
+    assertEquals(
+        "alert(1)", content(store.get(URI_A, "text/javascript", NOW)));
+    assertNull(store.get(URI_B, "text/css", NOW));
+    // Appends go after the last good record.
+    store.put(URI_B, "text/css", data("p {}"), LATER);
+    reopen();
+    assertEquals("p {}", content(store.get(URI_B, "text/css", NOW)));
+  }
+
+  public final void testCorruptRecordIsDropped() throws Exception {
+    store.put(URI_A, "text/javascript", data("alert(1)"), LATER);
+    long goodSize = store.getFileSize();
+    store.put(URI_B, "text/css", data("p { color: red }"), LATER);
+    store.close();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(raf.length() - 2);
+    raf.write('X');
+    raf.close();
+
+    store = open();
+    assertEquals(goodSize, store.getFileSize());
+    assertNotNull(store.get(URI_A, "text/javascript", NOW));
+    assertNull(store.get(URI_B, "text/css", NOW));
+  }
+
+  public final void testCompaction() throws Exception {
+    for (int i = 0; i < 10; ++i) {
+      store.put(URI_A, "text/javascript", data("alert(" + i + ")"), LATER);
+    }
+    store.put(URI_B, "text/css", data("p {}"), NOW + 1);
+    long liveBytes = store.getLiveBytes();
+    assertTrue(store.getFileSize() > liveBytes);
+
+    // Drops the replaced records, and the expired one.
+    store.compact(NOW + 1);
+    assertEquals(1, store.size());
+    assertTrue(store.getFileSize() < liveBytes);
+    assertEquals(store.getLiveBytes(), store.getFileSize());
+    assertEquals(store.getFileSize(), file.length());
+    assertEquals(
+        "alert(9)", content(store.get(URI_A, "text/javascript", NOW)));
+    assertFalse(new File(file.getPath() + ".compact").exists());
+
+    reopen();
+    assertEquals(
+        "alert(9)", content(store.get(URI_A, "text/javascript", NOW)));
+  }
+
+  public final void testOldestContentIsDroppedWhenOverBudget()
+      throws Exception {
+    String big = new String(new char[1000]).replace('\0', 'x');
+    for (int i = 0; i < 100; ++i) {
+      store.put(URI.create("http://example.com/" + i + ".js"),
+                "text/javascript", data(big), LATER);
+      runCompactions();
+    }
+    assertTrue(store.getFileSize() <= 1 << 16);
+    assertNull(store.get(
+        URI.create("http://example.com/0.js"), "text/javascript", NOW));
+    assertNotNull(store.get(
+        URI.create("http://example.com/99.js"), "text/javascript", NOW));
+  }
+
+  public final void testCompactionDoesNotBlockWrites() throws Exception {
+    String big = new String(new char[1000]).replace('\0', 'x');
+    for (int i = 0; i < 100; ++i) {
+      store.put(URI.create("http://example.com/" + i + ".js"),
+                "text/javascript", data(big), LATER);
+    }
+    // One compaction was started and writes went on without it, up to a
+    // limit.
+    assertEquals(1, compactions.size());
+    assertTrue(store.getFileSize() > 1 << 16);
+    assertTrue(store.getFileSize() <= 2 << 16);
+    assertNotNull(store.get(
+        URI.create("http://example.com/0.js"), "text/javascript", NOW));
+
+    runCompactions();
+    assertTrue(store.getFileSize() <= 1 << 16);
+    assertNull(store.get(
+        URI.create("http://example.com/0.js"), "text/javascript", NOW));
+  }
+
+  public final void testWritesDuringCompactionAreKept() throws Exception {
+    final boolean[] done = new boolean[1];
+    final IOException[] failure = new IOException[1];
+    Thread compacting = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            synchronized (done) { if (done[0]) { break; } }
+            store.compact(NOW);
+          }
+        } catch (IOException ex) {
+          failure[0] = ex;
+        }
+      }
+    };
+    compacting.start();
+    try {
+      for (int j = 0; j < 2; ++j) {
+        for (int i = 0; i < 20; ++i) {
+          store.put(URI.create("http://example.com/" + i + ".js"),
+                    "text/javascript", data(j + "," + i), LATER);
+        }
+      }
+      store.remove(URI.create("http://example.com/0.js"), "text/javascript");
+    } finally {
+      synchronized (done) { done[0] = true; }
+      compacting.join();
+    }
+    assertNull(failure[0]);
+    store.compact(NOW);
+    assertEquals(store.getLiveBytes(), store.getFileSize());
+    for (int k = 0; k < 2; ++k) {
+      assertNull(store.get(
+          URI.create("http://example.com/0.js"), "text/javascript", NOW));
+      for (int i = 1; i < 20; ++i) {
+        assertEquals("1," + i, content(store.get(
+            URI.create("http://example.com/" + i + ".js"), "text/javascript",
+            NOW)));
+      }
+      reopen();
+    }
+  }
+
+  public final void testRemovalDuringCompactionSurvivesReopening()
+      throws Exception {
+    store.put(URI_A, "text/javascript", data("alert(1)"), LATER);
+    store.put(URI_B, "text/css", data("p {}"), LATER);
+    store.compact(NOW, new Runnable() {
+      public void run() {
+        try {
+          store.remove(URI_A, "text/javascript");
+          store.put(URI_B, "text/css", data("b {}"), LATER);
+        } catch (IOException ex) {
+          throw new RuntimeException(ex);
+        }
+      }
+    });
+    assertNull(store.get(URI_A, "text/javascript", NOW));
+    reopen();
+    assertNull(store.get(URI_A, "text/javascript", NOW));
+    assertEquals("b {}", content(store.get(URI_B, "text/css", NOW)));
+  }
+
+  public final void testReadsOfAppendedContent() throws Exception {
+    store.put(URI_A, "text/javascript", data("alert(1)"), LATER);
+    assertEquals(
+        "alert(1)", content(store.get(URI_A, "text/javascript", NOW)));
+    // Read without mapping the file again, until it has doubled.
+    for (int i = 0; i < 20; ++i) {
+      URI uri = URI.create("http://example.com/" + i + ".js");
+      store.put(uri, "text/javascript", data("alert(" + i + ")"), LATER);
+      assertEquals(
+          "alert(" + i + ")",
+          content(store.get(uri, "text/javascript", NOW)));
+    }
+    assertEquals(
+        "alert(1)", content(store.get(URI_A, "text/javascript", NOW)));
+  }
+
+  public final void testContentTooLargeToKeep() throws Exception {
+    store.put(URI_A, "text/javascript", data("alert(1)"), LATER);
+    store.put(URI_A, "text/javascript",
+              data(new String(new char[1 << 16]).replace('\0', 'x')), LATER);
+    // Does not serve the content it replaced either.
+    assertNull(store.get(URI_A, "text/javascript", NOW));
+    assertTrue(store.getFileSize() < 1 << 10);
+  }
+
+  public final void testFileInUse() throws Exception {
+    try {
+      FetchedDataStore.open(file, 1 << 16);
+      fail();
+    } catch (IOException ex) {
+      // expected
+    }
+    // The failed open did not disturb the first.
+    store.put(URI_A, "text/javascript", data("alert(1)"), LATER);
+    assertNotNull(store.get(URI_A, "text/javascript", NOW));
+  }
+}
@@ -0,0 +1,177 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lexer.ExternalReference;
+import com.google.caja.lexer.FetchedData;
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Charsets;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class HedgingUriFetcherTest extends CajaTestCase {
+  private static final ExternalReference REF = new ExternalReference(
+      URI.create("http://example.com/a.js"), FilePosition.UNKNOWN);
+
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  /** Answers with its name, or fails, after waiting for a latch. */
+  private static final class Mirror implements UriFetcher {
+    final String name;
+    final CountDownLatch release;
+    final boolean fail;
+    final AtomicInteger calls = new AtomicInteger();
+    volatile boolean interrupted;
+
+    Mirror(String name, CountDownLatch release, boolean fail) {
+      this.name = name;
+      this.release = release;
+      this.fail = fail;
+    }
+
+    public FetchedData fetch(ExternalReference ref, String mimeType)
+        throws UriFetchException {
+      calls.incrementAndGet();
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        interrupted = true;
+        throw new UriFetchException(ref, mimeType, ex);
+      }
+      if (fail) {
+        throw new UriFetchException(ref, mimeType, new IOException(name));
+      }
+      return FetchedData.fromBytes(
+          name.getBytes(Charsets.UTF_8), mimeType, "UTF-8",
+          new InputSource(ref.getUri()));
+    }
+  }
+
+  private static String fetch(UriFetcher fetcher)
+      throws UriFetcher.UriFetchException, IOException {
+    return new String(
+        fetcher.fetch(REF, "text/javascript").getByteContent(),
+        Charsets.UTF_8);
+  }
+
+  public final void testFirstFetcherAnswersInTime() throws Exception {
+    Mirror a = new Mirror("a", new CountDownLatch(0), false);
+    Mirror b = new Mirror("b", new CountDownLatch(0), false);
+    assertEquals("a", fetch(new HedgingUriFetcher(executor, 10000, a, b)));
+    assertEquals(0, b.calls.get());
+  }
+
+  public final void testHedgesSlowFetcher() throws Exception {
+    CountDownLatch never = new CountDownLatch(1);
+    Mirror a = new Mirror("a", never, false);
+    Mirror b = new Mirror("b", new CountDownLatch(0), false);
+    assertEquals("b", fetch(new HedgingUriFetcher(executor, 10, a, b)));
+    // The loser is cancelled.
+    while (!a.interrupted) { Thread.sleep(1); }
+  }
+
+  public final void testFailureStartsNextAtOnce() throws Exception {
+    Mirror a = new Mirror("a", new CountDownLatch(0), true);
+    Mirror b = new Mirror("b", new CountDownLatch(0), false);
+    long t0 = System.nanoTime();
+    assertEquals("b", fetch(new HedgingUriFetcher(executor, 60000, a, b)));
+    assertTrue(System.nanoTime() - t0 < 30000000000L);
+  }
+
+  public final void testFailureWhileOthersRunStartsNextAtOnce()
+      throws Exception {
+    Mirror a = new Mirror("a", new CountDownLatch(1), false);
+    Mirror b = new Mirror("b", new CountDownLatch(0), true);
+    Mirror c = new Mirror("c", new CountDownLatch(0), false);
+    long t0 = System.nanoTime();
+    // b starts after one delay while a is still running, and fails at once.
+    assertEquals("c", fetch(new HedgingUriFetcher(executor, 1000, a, b, c)));
+    // c did not wait for a second delay.
+    assertTrue(System.nanoTime() - t0 < 1800000000L);
+  }
+
+  public final void testParallel() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final Mirror a = new Mirror("a", release, true);
+    final Mirror b = new Mirror("b", release, true);
+    final Mirror c = new Mirror("c", release, false);
+    // Answers only once all three are fetching.
+    executor.execute(new Runnable() {
+      public void run() {
+        while (a.calls.get() + b.calls.get() + c.calls.get() != 3) {
+          Thread.yield();
+        }
+        release.countDown();
+      }
+    });
+    assertEquals(
+        "c", fetch(new HedgingUriFetcher(executor, 0, a, b, c)));
+  }
+
+  public final void testAllFail() throws Exception {
+    Mirror a = new Mirror("a", new CountDownLatch(0), true);
+    Mirror b = new Mirror("b", new CountDownLatch(0), true);
+    UriFetcher fetcher = new HedgingUriFetcher(executor, 0, b, a);
+    try {
+      fetch(fetcher);
+      fail();
+    } catch (UriFetcher.UriFetchException ex) {
+      // The first fetcher's failure, regardless of which failed first.
+      UriFetcher.UriFetchException cause
+          = (UriFetcher.UriFetchException) ex.getCause();
+      assertEquals("b", cause.getCause().getMessage());
+    }
+  }
+
+  public final void testChainingReportsOnlyThisCallsFailures()
+      throws Exception {
+    final AtomicInteger n = new AtomicInteger();
+    UriFetcher failing = new UriFetcher() {
+      public FetchedData fetch(ExternalReference ref, String mimeType)
+          throws UriFetchException {
+        throw new UriFetchException(
+            ref, mimeType, new IOException("" + n.incrementAndGet()));
+      }
+    };
+    UriFetcher chain = UriFetcher.ChainingUriFetcher.make(failing);
+    for (int i = 1; i <= 3; ++i) {
+      try {
+        fetch(chain);
+        fail();
+      } catch (UriFetcher.UriFetchException ex) {
+        assertEquals("" + i, ex.getCause().getCause().getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,234 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lexer.ExternalReference;
+import com.google.caja.lexer.FetchedData;
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Charsets;
+import com.google.caja.util.LocalServer;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+
+public final class HttpUriFetcherTest extends CajaTestCase {
+  private static final String BODY = "alert('Hello, World!');";
+
+  private final AtomicInteger concurrent = new AtomicInteger();
+  private final AtomicInteger maxConcurrent = new AtomicInteger();
+  private final List<String> acceptEncodings
+      = Collections.synchronizedList(Lists.<String>newArrayList());
+
+  /** Serves BODY, compressed as the "encoding" parameter asks. */
+  private final HttpServlet contentServlet = new HttpServlet() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+        throws IOException {
+      acceptEncodings.add(req.getHeader("Accept-Encoding"));
+      int n = concurrent.incrementAndGet();
+      for (int max; (max = maxConcurrent.get()) < n;) {
+        if (maxConcurrent.compareAndSet(max, n)) { break; }
+      }
+      try {
+        if (req.getParameter("slow") != null) { Thread.sleep(50); }
+      } catch (InterruptedException ex) {
+        throw new IOException(ex.toString());
+      } finally {
+        concurrent.decrementAndGet();
+      }
+      String encoding = req.getParameter("encoding");
+      resp.setContentType("text/javascript; charset=UTF-8");
+      OutputStream out = resp.getOutputStream();
+      if ("gzip".equals(encoding)) {
+        resp.setHeader("Content-Encoding", "gzip");
+        out = new GZIPOutputStream(out);
+      } else if ("deflate".equals(encoding)) {
+        resp.setHeader("Content-Encoding", "deflate");
+        out = new DeflaterOutputStream(out);
+      }
+      out.write(BODY.getBytes(Charsets.UTF_8));
+      out.close();
+    }
+  };
+
+  private final HttpServlet missingServlet = new HttpServlet() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+        throws IOException {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND, "nope");
+    }
+  };
+
+  private final LocalServer localServer = new LocalServer(
+      new LocalServer.ConfigureContextCallback() {
+        public void configureContext(Context ctx) {
+          ctx.addServlet(new ServletHolder(contentServlet), "/content");
+          ctx.addServlet(new ServletHolder(missingServlet), "/missing");
+        }
+      });
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    localServer.start(0);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    localServer.stop();
+    super.tearDown();
+  }
+
+  private ExternalReference ref(String path) {
+    return new ExternalReference(
+        URI.create("http://localhost:" + localServer.getPort() + "/caja"
+                   + path),
+        FilePosition.UNKNOWN);
+  }
+
+  private static String text(FetchedData data) throws Exception {
+    return new String(data.getByteContent(), Charsets.UTF_8);
+  }
+
+  public final void testFetch() throws Exception {
+    FetchedData data = new HttpUriFetcher().fetch(
+        ref("/content"), "text/javascript");
+    assertEquals(BODY, text(data));
+    assertEquals("text/javascript; charset=UTF-8", data.getContentType());
+    assertEquals("UTF-8", data.getCharSet());
+    assertTrue(acceptEncodings.get(0).contains("gzip"));
+  }
+
+  public final void testCompressedContent() throws Exception {
+    HttpUriFetcher fetcher = new HttpUriFetcher();
+    assertEquals(
+        BODY,
+        text(fetcher.fetch(ref("/content?encoding=gzip"), "text/javascript")));
+    assertEquals(
+        BODY,
+        text(fetcher.fetch(
+            ref("/content?encoding=deflate"), "text/javascript")));
+  }
+
+  public final void testFetchedHook() throws Exception {
+    final long[] observed = new long[3];
+    HttpUriFetcher fetcher = new HttpUriFetcher() {
+      @Override
+      protected void fetched(
+          ExternalReference ref, long connectNanos, long readNanos,
+          long byteCount) {
+        observed[0] = connectNanos;
+        observed[1] = readNanos;
+        observed[2] = byteCount;
+      }
+    };
+    fetcher.fetch(ref("/content"), "text/javascript");
+    assertTrue(observed[0] > 0);
+    assertTrue(observed[1] >= 0);
+    assertEquals(BODY.length(), observed[2]);
+    // Counts the bytes on the wire, not the decompressed content.
+    fetcher.fetch(ref("/content?encoding=gzip"), "text/javascript");
+    assertTrue(observed[2] != BODY.length());
+  }
+
+  public final void testErrorStatus() throws Exception {
+    HttpUriFetcher fetcher = new HttpUriFetcher();
+    try {
+      fetcher.fetch(ref("/missing"), "text/javascript");
+      fail("fetched a 404");
+    } catch (UriFetcher.UriFetchException ex) {
+      // pass
+    }
+    // The connection is still usable afterwards.
+    assertEquals(BODY, text(fetcher.fetch(ref("/content"), "*/*")));
+  }
+
+  public final void testNonHttpUri() throws Exception {
+    try {
+      new HttpUriFetcher().fetch(
+          new ExternalReference(
+              URI.create("file:///etc/passwd"), FilePosition.UNKNOWN),
+          "text/plain");
+      fail("fetched a file: URI");
+    } catch (UriFetcher.UriFetchException ex) {
+      // pass
+    }
+  }
+
+  public final void testPerHostConnectionLimit() throws Exception {
+    final HttpUriFetcher fetcher = new HttpUriFetcher(2, 15000, 15000);
+    final AtomicInteger failures = new AtomicInteger();
+    List<Thread> threads = Lists.newArrayList();
+    for (int i = 0; i < 6; ++i) {
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          try {
+            fetcher.fetch(ref("/content?slow=1"), "text/javascript");
+          } catch (UriFetcher.UriFetchException ex) {
+            failures.incrementAndGet();
+          }
+        }
+      };
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads) { t.join(); }
+    assertEquals(0, failures.get());
+    assertTrue("" + maxConcurrent.get(), maxConcurrent.get() <= 2);
+    // Hosts are forgotten once nothing is fetched from them.
+    assertEquals(0, fetcher.getTrackedHostCount());
+  }
+
+  public final void testIdleHostsForgotten() throws Exception {
+    HttpUriFetcher fetcher = new HttpUriFetcher();
+    fetcher.fetch(ref("/content"), "text/javascript");
+    try {
+      fetcher.fetch(ref("/missing"), "text/javascript");
+      fail();
+    } catch (UriFetcher.UriFetchException ex) {
+      // pass
+    }
+    try {
+      fetcher.fetch(
+          new ExternalReference(
+              URI.create("http://unknown.invalid/"), FilePosition.UNKNOWN),
+          "text/javascript");
+      fail();
+    } catch (UriFetcher.UriFetchException ex) {
+      // pass
+    }
+    assertEquals(0, fetcher.getTrackedHostCount());
+  }
+}
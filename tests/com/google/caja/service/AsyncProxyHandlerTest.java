@@ -0,0 +1,237 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import com.google.caja.lexer.ExternalReference;
+import com.google.caja.lexer.FetchedData;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.plugin.UriFetcher;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mortbay.jetty.Server;
+
+public final class AsyncProxyHandlerTest extends CajaTestCase {
+  private CountDownLatch release;
+  private Server server;
+  private AsyncProxyHandler handler;
+  private final AtomicInteger fetching = new AtomicInteger();
+
+  /** A fetcher that blocks until released. */
+  private final UriFetcher slowFetcher = new UriFetcher() {
+    public FetchedData fetch(ExternalReference ref, String mimeType)
+        throws UriFetchException {
+      fetching.incrementAndGet();
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        throw new UriFetchException(ref, mimeType, ex);
+      } finally {
+        fetching.decrementAndGet();
+      }
+      return FetchedData.fromBytes(
+          "alert(1)".getBytes(Charsets.UTF_8), "text/javascript", "UTF-8",
+          new InputSource(ref.getUri()));
+    }
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    release = new CountDownLatch(1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    release.countDown();
+    if (server != null) { server.stop(); }
+    super.tearDown();
+  }
+
+  private void start(int maxInFlight, int maxQueued, long timeoutMillis)
+      throws Exception {
+    server = new Server(0);
+    handler = new AsyncProxyHandler(
+        new ProxyServlet(slowFetcher), maxInFlight, maxQueued, timeoutMillis);
+    server.setHandler(handler);
+    server.start();
+  }
+
+  /** Makes one HTTP request on its own thread. */
+  private static final class Exchange extends Thread {
+    final URL url;
+    final String postBody;
+    int status;
+    String body;
+
+    Exchange(URL url, String postBody) {
+      this.url = url;
+      this.postBody = postBody;
+    }
+
+    @Override
+    public void run() {
+      try {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        if (postBody != null) {
+          conn.setDoOutput(true);
+          conn.setRequestProperty("Content-Type", "application/json");
+          OutputStream out = conn.getOutputStream();
+          out.write(postBody.getBytes(Charsets.UTF_8));
+          out.close();
+        }
+        status = conn.getResponseCode();
+        InputStream in = status == 200
+            ? conn.getInputStream() : conn.getErrorStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (in != null) {
+          byte[] buf = new byte[1024];
+          for (int n; (n = in.read(buf)) > 0;) { out.write(buf, 0, n); }
+          in.close();
+        }
+        body = new String(out.toByteArray(), Charsets.UTF_8);
+      } catch (Exception ex) {
+        body = ex.toString();
+      }
+    }
+  }
+
+  private String serverUrl() {
+    return "http://localhost:" + server.getConnectors()[0].getLocalPort()
+        + "/";
+  }
+
+  private Exchange get() throws Exception {
+    Exchange get = new Exchange(new URL(
+        serverUrl() + "?" + CajaArguments.URL.getArgKeyword()
+        + "=http://foo/bar.js&"
+        + CajaArguments.INPUT_MIME_TYPE.getArgKeyword() + "=text/javascript"),
+        null);
+    get.start();
+    return get;
+  }
+
+  private Exchange post(String body) throws Exception {
+    Exchange post = new Exchange(new URL(serverUrl()), body);
+    post.start();
+    return post;
+  }
+
+  /** A batch of n requests for JavaScript. */
+  private static String batchOf(int n) {
+    StringBuilder batch = new StringBuilder("[");
+    for (int i = 0; i < n; ++i) {
+      if (i != 0) { batch.append(','); }
+      batch.append("{\"url\":\"http://foo/").append(i).append(".js\",")
+          .append("\"input-mime-type\":\"text/javascript\"}");
+    }
+    return batch.append(']').toString();
+  }
+
+  private void waitFor(int inFlight, int queued) throws Exception {
+    while (handler.getInFlightCount() != inFlight
+           || handler.getQueueDepth() != queued) {
+      Thread.sleep(1);
+    }
+  }
+
+  public final void testFetch() throws Exception {
+    release.countDown();
+    start(2, 2, 10000);
+    Exchange get = get();
+    get.join();
+    assertEquals(200, get.status);
+    assertEquals(
+        "{\"messages\":[],\"html\":\"alert(1)\"}", get.body);
+  }
+
+  public final void testRejectsWhenQueueIsFull() throws Exception {
+    start(1, 1, 10000);
+    List<Exchange> accepted = Lists.newArrayList();
+    accepted.add(get());
+    waitFor(1, 0);
+    accepted.add(get());
+    waitFor(1, 1);
+
+    Exchange rejected = get();
+    rejected.join();
+    assertEquals(503, rejected.status);
+    assertEquals(1, handler.getRejectedCount());
+
+    release.countDown();
+    for (Exchange get : accepted) {
+      get.join();
+      assertEquals(200, get.status);
+    }
+    waitFor(0, 0);
+  }
+
+  public final void testBatchEntriesAreFetchedInParallel() throws Exception {
+    start(4, 1, 10000);
+    Exchange post = post(batchOf(4));
+    // Each entry counts against the handler's limit.
+    waitFor(4, 0);
+    while (fetching.get() != 4) { Thread.sleep(1); }
+    release.countDown();
+    post.join();
+    assertEquals(200, post.status);
+    assertTrue(post.body, post.body.startsWith(
+        "{\"results\":[{\"messages\":[],\"html\":\"alert(1)\"},"));
+  }
+
+  public final void testBatchEntriesShareInFlightLimit() throws Exception {
+    start(2, 1, 10000);
+    Exchange post = post(batchOf(4));
+    waitFor(2, 0);
+    while (fetching.get() != 2) { Thread.sleep(1); }
+    // A GET waits for an entry to finish.
+    Exchange get = get();
+    Thread.sleep(50);
+    assertEquals(2, fetching.get());
+    assertEquals(2, handler.getInFlightCount());
+
+    release.countDown();
+    post.join();
+    get.join();
+    assertEquals(200, post.status);
+    assertEquals(200, get.status);
+    waitFor(0, 0);
+  }
+
+  public final void testMalformedBatch() throws Exception {
+    start(1, 1, 10000);
+    Exchange post = post("[");
+    post.join();
+    assertEquals(400, post.status);
+  }
+
+  public final void testTimeout() throws Exception {
+    start(1, 1, 100);
+    Exchange get = get();
+    get.join();
+    assertEquals(504, get.status);
+    assertEquals(1, handler.getTimeoutCount());
+  }
+}
@@ -0,0 +1,150 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import com.google.caja.lexer.CharProducer;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.JsLexer;
+import com.google.caja.lexer.JsTokenQueue;
+import com.google.caja.lexer.Keyword;
+import com.google.caja.lexer.ParseException;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.js.Identifier;
+import com.google.caja.parser.js.Parser;
+import com.google.caja.parser.quasiliteral.QuasiBuilder;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.CajaTestCase;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+public final class JsonpCallbackCheckTest extends CajaTestCase {
+  private static final String[] CANDIDATES = {
+      "f", "f$_", "_", "$", "jQuery17205_1394", "__proto__", "eval",
+      "undefined", "\u00e9t\u00e9", "a\u0301", "x\u203f",
+      "1", "1a", "", "a b", "a,b", "a=0,b", "a(b)", "a.b", "a;b", "a\n",
+      "ev\\u0061l", "\\u0061", "e\u0301", "\u0301a", "a\u2028",
+      "var", "class", "yield", "null", "true",
+  };
+
+  public final void testValidity() {
+    assertTrue(JsonpCallbackCheck.isValid("f"));
+    assertTrue(JsonpCallbackCheck.isValid("jQuery17205_1394"));
+    assertTrue(JsonpCallbackCheck.isValid("\u00e9t\u00e9"));
+    assertFalse(JsonpCallbackCheck.isValid("a(b)"));
+    assertFalse(JsonpCallbackCheck.isValid("a\n"));
+    // The decoded name is what would be called.
+    assertFalse(JsonpCallbackCheck.isValid("ev\\u0061l"));
+    // Not in normal form C.
+    assertFalse(JsonpCallbackCheck.isValid("e\u0301"));
+    for (Keyword k : Keyword.values()) {
+      assertFalse(k.toString(), JsonpCallbackCheck.isValid(k.toString()));
+    }
+  }
+
+  public final void testAgreesWithParser() {
+    for (String candidate : CANDIDATES) {
+      assertEquals(
+          candidate, parsesAsVarName(candidate),
+          JsonpCallbackCheck.isValid(candidate));
+    }
+    for (Keyword k : Keyword.values()) {
+      assertEquals(
+          k.toString(), parsesAsVarName(k.toString()),
+          JsonpCallbackCheck.isValid(k.toString()));
+    }
+  }
+
+  public final void testMemo() {
+    JsonpCallbackCheck check = new JsonpCallbackCheck(4);
+    assertFalse(check.isMemoized("foo"));
+    assertTrue(check.check("foo"));
+    assertTrue(check.isMemoized("foo"));
+    assertTrue(check.check("foo"));
+
+    assertFalse(check.check("foo()"));
+    assertFalse(check.isMemoized("foo()"));
+
+    // Bounded: filling the table pushes out earlier entries.
+    for (int i = 0; i < 100; ++i) { assertTrue(check.check("f" + i)); }
+    int memoized = 0;
+    for (int i = 0; i < 100; ++i) {
+      if (check.isMemoized("f" + i)) { ++memoized; }
+    }
+    assertTrue("" + memoized, memoized <= 4);
+  }
+
+  public final void testBadMemoSize() {
+    try {
+      new JsonpCallbackCheck(3);
+      fail();
+    } catch (IllegalArgumentException ex) {
+      // pass
+    }
+  }
+
+  public final void testCheckSpeed() throws Exception {
+    JsonpCallbackCheck check = new JsonpCallbackCheck();
+    benchmark(check, 1000);  // prime the JIT
+    benchmarkParse(100);
+    Thread.sleep(250);  // Let the JIT kick-in.
+    int nanosPerCheck = benchmark(check, 100000);
+    int nanosPerParse = benchmarkParse(1000);
+    // See extractVarZ in "tools/dashboard/dashboard.pl".
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".nsPerCheck=" + nanosPerCheck);
+    System.out.println(
+        " VarZ:" + getClass().getName() + ".nsPerParse=" + nanosPerParse);
+  }
+
+  private static int benchmark(JsonpCallbackCheck check, int nRuns) {
+    long t0 = System.nanoTime();
+    for (int i = nRuns; --i >= 0;) {
+      check.check(CANDIDATES[i % CANDIDATES.length]);
+    }
+    return (int) (((double) (System.nanoTime() - t0)) / nRuns);
+  }
+
+  private static int benchmarkParse(int nRuns) {
+    long t0 = System.nanoTime();
+    for (int i = nRuns; --i >= 0;) {
+      parsesAsVarName(CANDIDATES[i % CANDIDATES.length]);
+    }
+    return (int) (((double) (System.nanoTime() - t0)) / nRuns);
+  }
+
+  /**
+   * The check ProxyServlet used to do: true iff the candidate parses as the
+   * name in a var declaration.
+   */
+  private static boolean parsesAsVarName(String candidate) {
+    MessageQueue mq = new SimpleMessageQueue();
+    Parser parser = new Parser(
+        new JsTokenQueue(
+            new JsLexer(
+                CharProducer.Factory.fromString(
+                    "var " + candidate + ";", InputSource.UNKNOWN)),
+            InputSource.UNKNOWN),
+        mq);
+    ParseTreeNode node;
+    try { node = parser.parse(); } catch (ParseException e) { return false; }
+    if (node == null || !mq.getMessages().isEmpty()) { return false; }
+    Map<String, ParseTreeNode> bindings = Maps.newHashMap();
+    if (!QuasiBuilder.match("{ var @p; }", node, bindings)) { return false; }
+    if (!(bindings.get("p") instanceof Identifier)) { return false; }
+    return candidate.equals(((Identifier) bindings.get("p")).getName());
+  }
+}
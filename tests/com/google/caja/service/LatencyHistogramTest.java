@@ -0,0 +1,53 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import com.google.caja.util.CajaTestCase;
+
+public final class LatencyHistogramTest extends CajaTestCase {
+  public final void testBucketsAreContiguous() {
+    assertEquals(0, LatencyHistogram.bucketOf(0));
+    for (long micros = 1; micros < 1 << 20; ++micros) {
+      int bucket = LatencyHistogram.bucketOf(micros);
+      assertTrue(micros <= LatencyHistogram.upperBound(bucket));
+      assertTrue(micros > LatencyHistogram.upperBound(bucket - 1));
+    }
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(
+        LatencyHistogram.bucketOf(Long.MAX_VALUE)));
+  }
+
+  public final void testEmpty() {
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0, h.getCount());
+    assertEquals(0, h.percentileMicros(0.5));
+  }
+
+  public final void testPercentiles() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (int i = 1; i <= 100; ++i) { h.record(i * 1000000000L); }  // 1-100s
+    assertEquals(100, h.getCount());
+    assertEquals(100000000L, h.getMaxMicros());
+    assertEquals(5050000000L, h.getTotalMicros());
+    assertWithin(50000000L, h.percentileMicros(0.5));
+    assertWithin(95000000L, h.percentileMicros(0.95));
+    assertWithin(99000000L, h.percentileMicros(0.99));
+    assertEquals(100000000L, h.percentileMicros(1.0));
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue(expected + " vs " + actual, actual >= expected);
+    assertTrue(expected + " vs " + actual, actual <= expected * 1.25);
+  }
+}
@@ -0,0 +1,120 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import com.google.caja.lexer.ExternalReference;
+import com.google.caja.lexer.FetchedData;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.plugin.UriFetcher;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Charsets;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+
+public final class ProxyMetricsTest extends CajaTestCase {
+  private ProxyServlet servlet;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    servlet = new ProxyServlet(
+        new UriFetcher() {
+          public FetchedData fetch(ExternalReference ref, String mimeType) {
+            return FetchedData.fromBytes(
+                "body {}".getBytes(Charsets.UTF_8), "text/css", "UTF-8",
+                new InputSource(ref.getUri()));
+          }
+        },
+        new ProxyResponseCache(1 << 20, 5000));
+  }
+
+  private static ContentHandlerArgs args(
+      String url, String mimeType, String alt, String callback) {
+    final Map<String, String> params = Maps.newHashMap();
+    params.put(CajaArguments.URL.getArgKeyword(), url);
+    params.put(CajaArguments.INPUT_MIME_TYPE.getArgKeyword(), mimeType);
+    params.put(CajaArguments.ALT.getArgKeyword(), alt);
+    params.put(CajaArguments.CALLBACK.getArgKeyword(), callback);
+    return new ContentHandlerArgs() {
+      @Override
+      public String get(String name) { return params.get(name); }
+    };
+  }
+
+  public final void testPhasesAreTimed() throws Exception {
+    servlet.handle(
+        args("http://foo/a.css", "text/css", "json-in-script", "f"),
+        new SimpleMessageQueue());
+    ProxyMetrics metrics = servlet.getMetrics();
+    for (ProxyMetrics.Phase phase : new ProxyMetrics.Phase[] {
+             ProxyMetrics.Phase.FETCH, ProxyMetrics.Phase.DECODE,
+             ProxyMetrics.Phase.RENDER, ProxyMetrics.Phase.VALIDATE }) {
+      assertEquals(phase.name(), 1, metrics.getLatency(phase).getCount());
+    }
+    // The test fetcher does not talk to an origin.
+    assertEquals(0, metrics.getLatency(ProxyMetrics.Phase.CONNECT).getCount());
+  }
+
+  public final void testErrorsAreCounted() throws Exception {
+    servlet.handle(
+        args(null, "text/css", null, null), new SimpleMessageQueue());
+    servlet.handle(
+        args("http://foo/a.css", "text/javascript", null, null),
+        new SimpleMessageQueue());
+    servlet.handle(
+        args("http://foo/b.css", null, null, null), new SimpleMessageQueue());
+    ProxyMetrics metrics = servlet.getMetrics();
+    assertEquals(
+        2, metrics.getErrorCount(ServiceMessageType.MISSING_ARGUMENT));
+    assertEquals(
+        1,
+        metrics.getErrorCount(ServiceMessageType.UNEXPECTED_INPUT_MIME_TYPE));
+    assertEquals(
+        0, metrics.getErrorCount(ServiceMessageType.INVALID_INPUT_URL));
+  }
+
+  public final void testRendering() throws Exception {
+    ContentHandlerArgs a = args("http://foo/a.css", "text/css", null, null);
+    servlet.handle(a, new SimpleMessageQueue());
+    servlet.handle(a, new SimpleMessageQueue());
+    servlet.handle(args(null, null, null, null), new SimpleMessageQueue());
+
+    ProxyAdminHandler admin = new ProxyAdminHandler(servlet, null);
+    JSONObject json = admin.renderJson();
+    JSONObject cache = (JSONObject) json.get("cache");
+    assertEquals(1L, cache.get("hits"));
+    // The request without a URL is a cache miss too.
+    assertEquals(2L, cache.get("misses"));
+    JSONObject errors = (JSONObject) json.get("errors");
+    assertEquals(1L, errors.get("MISSING_ARGUMENT"));
+    JSONObject fetch = (JSONObject)
+        ((JSONObject) json.get("latency")).get("fetch");
+    assertEquals(1L, fetch.get("count"));
+    assertNull(json.get("queue"));
+
+    String text = admin.renderText();
+    assertTrue(text, text.contains(
+        "caja_proxy_latency_micros_count{phase=\"fetch\"} 1\n"));
+    assertTrue(text, text.contains(
+        "caja_proxy_errors{type=\"MISSING_ARGUMENT\"} 1\n"));
+    assertTrue(text, text.contains("caja_proxy_cache_hits 1\n"));
+    assertTrue(text, text.contains(
+        "caja_proxy_latency_micros{phase=\"render\",quantile=\"0.99\"} "));
+  }
+}
@@ -0,0 +1,220 @@
+// Copyright (C) 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import com.google.caja.lexer.ExternalReference;
+import com.google.caja.lexer.FetchedData;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.plugin.UriFetcher;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Charsets;
+import com.google.common.collect.Maps;
+
+import java.net.URI;
+import java.util.Map;
+
+public final class ProxyResponseCacheTest extends CajaTestCase {
+  private long now;
+  private ProxyResponseCache cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    now = 1000000;
+    cache = new ProxyResponseCache(100, 5000) {
+      @Override
+      protected long currentTime() { return now; }
+    };
+  }
+
+  private static ContentHandlerArgs args(
+      String url, String mimeType, String alt, String callback) {
+    final Map<String, String> params = Maps.newHashMap();
+    params.put(CajaArguments.URL.getArgKeyword(), url);
+    params.put(CajaArguments.INPUT_MIME_TYPE.getArgKeyword(), mimeType);
+    params.put(CajaArguments.ALT.getArgKeyword(), alt);
+    params.put(CajaArguments.CALLBACK.getArgKeyword(), callback);
+    return new ContentHandlerArgs() {
+      @Override
+      public String get(String name) { return params.get(name); }
+    };
+  }
+
+  private static ContentHandlerArgs args(String url) {
+    return args(url, "text/javascript", null, null);
+  }
+
+  private void put(ContentHandlerArgs args, String content, long lifetime) {
+    cache.put(
+        args, content.getBytes(Charsets.UTF_8), "application/json", "UTF-8",
+        InputSource.UNKNOWN, lifetime);
+  }
+
+  private static String content(FetchedData data) throws Exception {
+    return new String(data.getByteContent(), Charsets.UTF_8);
+  }
+
+  public final void testHitAndMiss() throws Exception {
+    ContentHandlerArgs a = args("http://foo/a.js");
+    assertNull(cache.get(a));
+    put(a, "{}", 1000);
+    FetchedData hit = cache.get(a);
+    assertEquals("{}", content(hit));
+    assertEquals("application/json", hit.getContentType());
+    assertEquals("UTF-8", hit.getCharSet());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public final void testKeyIncludesEnvelope() throws Exception {
+    put(args("http://foo/a.js", "text/javascript", "json", null), "{}", 1000);
+    assertNull(cache.get(
+        args("http://foo/a.js", "text/javascript", "json-in-script", "f")));
+    assertNull(cache.get(
+        args("http://foo/a.js", "text/css", "json", null)));
+    assertNotNull(cache.get(
+        args("http://foo/a.js", "text/javascript", "json", null)));
+  }
+
+  public final void testExpiration() throws Exception {
+    ContentHandlerArgs a = args("http://foo/a.js");
+    put(a, "{}", 1000);
+    now += 999;
+    assertNotNull(cache.get(a));
+    now += 1;
+    assertNull(cache.get(a));
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getByteSize());
+  }
+
+  public final void testDefaultLifetime() throws Exception {
+    ContentHandlerArgs a = args("http://foo/a.js");
+    put(a, "{}", FetchedData.UNKNOWN_FRESHNESS);
+    now += 4999;
+    assertNotNull(cache.get(a));
+    now += 1;
+    assertNull(cache.get(a));
+  }
+
+  public final void testUncacheable() throws Exception {
+    ContentHandlerArgs a = args("http://foo/a.js");
+    put(a, "{}", 1000);
+    // A later response that forbids reuse replaces the earlier one.
+    put(a, "{}", 0);
+    assertNull(cache.get(a));
+    assertEquals(0, cache.size());
+  }
+
+  public final void testLruEviction() throws Exception {
+    ContentHandlerArgs a = args("a");
+    ContentHandlerArgs b = args("b");
+    ContentHandlerArgs c = args("c");
+    String body = "0123456789";  // 42 bytes with the key
+    put(a, body, 1000);
+    put(b, body, 1000);
+    assertNotNull(cache.get(a));  // b is now least recently used
+    put(c, body, 1000);
+    assertNotNull(cache.get(a));
+    assertNull(cache.get(b));
+    assertNotNull(cache.get(c));
+    assertEquals(1, cache.getEvictionCount());
+    assertTrue(cache.getByteSize() <= 100);
+  }
+
+  public final void testOversizedContentNotCached() throws Exception {
+    ContentHandlerArgs a = args("a");
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 101; ++i) { sb.append('x'); }
+    put(a, sb.toString(), 1000);
+    assertEquals(0, cache.size());
+  }
+
+  public final void testEntryLimit() throws Exception {
+    cache = new ProxyResponseCache(100, 40, 5000);
+    put(args("a"), "0123456789", 1000);  // 42 bytes with the key
+    put(args("b"), "01234567", 1000);  // 40 bytes with the key
+    assertNull(cache.get(args("a")));
+    assertNotNull(cache.get(args("b")));
+    assertEquals(40, cache.getMaxEntryBytes());
+  }
+
+  public final void testServletUsesCache() throws Exception {
+    final int[] fetchCount = new int[1];
+    ProxyServlet servlet = new ProxyServlet(
+        new UriFetcher() {
+          public FetchedData fetch(ExternalReference ref, String mimeType) {
+            ++fetchCount[0];
+            return FetchedData.fromBytes(
+                "body {}".getBytes(Charsets.UTF_8), "text/css", "UTF-8",
+                new InputSource(URI.create("http://foo/bar.css")));
+          }
+        },
+        new ProxyResponseCache(1 << 20, 5000));
+    ContentHandlerArgs a = args("http://foo/bar.css", "text/css", "json", null);
+    String first = content(servlet.handle(a, new SimpleMessageQueue()));
+    String second = content(servlet.handle(a, new SimpleMessageQueue()));
+    assertEquals(first, second);
+    assertEquals(1, fetchCount[0]);
+    assertEquals(1, servlet.getResponseCache().getHitCount());
+
+    servlet.handle(
+        args("http://foo/bar.css", "text/css", "json-in-script", "foo"),
+        new SimpleMessageQueue());
+    assertEquals(2, fetchCount[0]);
+  }
+
+  public final void testServletStreamsMissesIntoCache() throws Exception {
+    final int[] fetchCount = new int[1];
+    UriFetcher fetcher = new UriFetcher() {
+      public FetchedData fetch(ExternalReference ref, String mimeType) {
+        ++fetchCount[0];
+        return FetchedData.fromBytes(
+            "body {}".getBytes(Charsets.UTF_8), "text/css", "UTF-8",
+            new InputSource(URI.create("http://foo/bar.css")));
+      }
+    };
+    String query = "?url=http://foo/bar.css&input-mime-type=text/css";
+
+    ProxyServlet servlet = new ProxyServlet(
+        fetcher, new ProxyResponseCache(1 << 20, 5000));
+    TestHttpServletResponse miss = get(servlet, query);
+    TestHttpServletResponse hit = get(servlet, query);
+    assertEquals(1, fetchCount[0]);
+    assertEquals(miss.getOutputObject(), hit.getOutputObject());
+    // A hit is sent whole, so its length is known up front.
+    byte[] body = ((String) hit.getOutputObject()).getBytes(Charsets.UTF_8);
+    assertEquals("" + body.length, hit.getHeaders().get("content-length"));
+
+    // Responses too large to cache are still streamed, without keeping more
+    // than an entry's worth of copy.
+    fetchCount[0] = 0;
+    servlet = new ProxyServlet(
+        fetcher, new ProxyResponseCache(1 << 20, 16, 5000));
+    assertEquals(
+        miss.getOutputObject(), get(servlet, query).getOutputObject());
+    get(servlet, query);
+    assertEquals(2, fetchCount[0]);
+    assertEquals(0, servlet.getResponseCache().size());
+  }
+
+  private static TestHttpServletResponse get(
+      ProxyServlet servlet, String query) throws Exception {
+    TestHttpServletResponse resp = new TestHttpServletResponse();
+    servlet.doGet(new TestHttpServletRequest(query), resp);
+    assertEquals(200, resp.getStatus());
+    return resp;
+  }
+}
@@ -81,6 +81,71 @@ public final class ProxyServletTest extends ServiceTestCase {
     assertFalse(ProxyServlet.checkIdentifier("a(b)"));
   }
 
+  private JSONArray requestBatch(String body) throws Exception {
+    TestHttpServletResponse resp = requestPost(body);
+    assertEquals(200, resp.getStatus());
+    assertEquals("application/json", resp.getContentType().split(";")[0]);
+    return (JSONArray) ((JSONObject) json((String) resp.getOutputObject()))
+        .get("results");
+  }
+
+  public final void testBatch() throws Exception {
+    registerUri("http://foo/a.js", "a()", "text/javascript");
+    registerUri("http://foo/b.css", "b {}", "text/css");
+    JSONArray results = requestBatch(
+        "[{\"url\":\"http://foo/a.js\","
+        + "\"input-mime-type\":\"text/javascript\"},"
+        + "{\"url\":\"http://foo/b.css\",\"input-mime-type\":\"text/css\"},"
+        // Each entry is validated like a GET.
+        + "{\"url\":\"http://foo/b.css\",\"input-mime-type\":\"image/*\"},"
+        + "{\"input-mime-type\":\"text/css\"},"
+        + "{\"url\":\"http://foo/missing.js\","
+        + "\"input-mime-type\":\"text/javascript\"},"
+        // alt and callback do not apply to entries.
+        + "{\"url\":\"http://foo/a.js\","
+        + "\"input-mime-type\":\"text/javascript\","
+        + "\"alt\":\"json-in-script\",\"callback\":\"alert(1)//\"}]");
+    assertEquals(6, results.size());
+    assertEquals("a()", ((JSONObject) results.get(0)).get("html"));
+    assertEquals("b {}", ((JSONObject) results.get(1)).get("html"));
+    for (int i = 2; i < 5; ++i) {
+      JSONObject result = (JSONObject) results.get(i);
+      assertNull(result.get("html"));
+      assertFalse(((JSONArray) result.get("messages")).isEmpty());
+    }
+    assertEquals("a()", ((JSONObject) results.get(5)).get("html"));
+  }
+
+  public final void testBatchContentLength() throws Exception {
+    registerUri("http://foo/a.js", "a()", "text/javascript");
+    TestHttpServletResponse resp = requestPost(
+        "[{\"url\":\"http://foo/a.js\","
+        + "\"input-mime-type\":\"text/javascript\"}]");
+    assertEquals(200, resp.getStatus());
+    assertEquals(
+        "" + ((String) resp.getOutputObject()).getBytes("UTF-8").length,
+        resp.getHeaders().get("content-length"));
+  }
+
+  public final void testMalformedBatch() throws Exception {
+    for (String body : new String[] {
+             "", "{}", "[]", "[1]", "[{\"url\":", "\"http://foo/a.js\"",
+         }) {
+      TestHttpServletResponse resp = requestPost(body);
+      assertEquals(body, 400, resp.getStatus());
+    }
+  }
+
+  public final void testBatchTooLarge() throws Exception {
+    StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i <= ProxyServlet.MAX_BATCH_SIZE; ++i) {
+      if (i != 0) { sb.append(','); }
+      sb.append("{\"url\":\"http://foo/a.js\"}");
+    }
+    sb.append(']');
+    assertEquals(400, requestPost(sb.toString()).getStatus());
+  }
+
   /*
    * Note: These following tests are now redundant with browser-side test
    * .../plugin/test-fetch-proxy.js. They have been left in because there's no
@@ -128,4 +193,23 @@ public final class ProxyServletTest extends ServiceTestCase {
         "application/json");
     // TODO(kpreid): assertions about content, not just mime type
   }
+
+  public final void testJsonEscaping() throws Exception {
+    String content = "a\"b\\c/</script>\b\f\n\r\t\u0001\u007f\u2028"
+        + "\u00e9\ud834\udd1e";
+    StringBuilder big = new StringBuilder();
+    // Longer than one chunk so escapes straddle chunk boundaries.
+    for (int i = 0; i < 1000; ++i) { big.append(content); }
+    registerUri("http://foo/bar.js", big.toString(), "text/javascript");
+    String s = (String) requestGet("?url=http://foo/bar.js"
+        + "&input-mime-type=text/javascript"
+        + "&alt=json",
+        "application/json");
+    JSONObject result = (JSONObject) json(s);
+    assertEquals(big.toString(), result.get("html"));
+    assertTrue(((JSONArray) result.get("messages")).isEmpty());
+    // Nothing that could end a script block or a JS string.
+    assertFalse(s.contains("</"));
+    assertFalse(s.contains("\u2028"));
+  }
 }
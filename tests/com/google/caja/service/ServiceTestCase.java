@@ -111,6 +111,15 @@ public abstract class ServiceTestCase extends CajaTestCase {
     return resp.getOutputObject();
   }
 
+  protected TestHttpServletResponse requestPost(String body)
+      throws Exception {
+    TestHttpServletRequest req = new TestHttpServletRequest(
+        "", body.getBytes("UTF-8"), "application/json", "UTF-8");
+    TestHttpServletResponse resp = new TestHttpServletResponse();
+    servlet.doPost(req, resp);
+    return resp;
+  }
+
   // TODO(ihab.awad): Change tests to use structural equality (via quasi
   // matches) rather than golden text to avoid this.
   protected static void assertEqualsIgnoreSpace(